@@ -19,6 +19,7 @@
                  [co.paralleluniverse/quasar-core   ~quasar-version] ; :classifier "jdk8"
                  [co.paralleluniverse/quasar-actors ~quasar-version]
                  [org.ow2.asm/asm "5.2"]
+                 [org.reactivestreams/reactive-streams "1.0.0"]
                  [org.clojure/core.match "0.2.2" :exclusions [org.ow2.asm/*]]
                  [org.flatland/useful "0.11.5"]
                  [gloss "0.2.6" :exclusions [com.yammer.metrics/metrics-core useful]]]
@@ -36,7 +37,8 @@
   :profiles {;; ----------- dev --------------------------------------
              :dev
              {:plugins [[lein-midje "3.2"]]
-              :dependencies [[midje "1.8.3"]]
+              :dependencies [[midje "1.8.3"]
+                             [org.reactivestreams/reactive-streams-tck "1.0.0"]]
               :jvm-opts [;; Debugging
                          "-ea"
                          ;"-Dco.paralleluniverse.fibers.verifyInstrumentation=true"
@@ -59,6 +61,14 @@
              :auto-instrument-all
              {:jvm-opts ["-Dco.paralleluniverse.pulsar.instrument.auto=all"]}
 
+             :auto-instrument-minimal
+             {:jvm-opts ["-Dco.paralleluniverse.pulsar.instrument.auto=minimal"]}
+
+             ;; ----------- instrumentation profiling ----------------
+             ;; writes a ranked report of instrumented methods to target/instrumentation-profile on exit
+             :instrument-profile
+             {:jvm-opts ["-Dco.paralleluniverse.pulsar.instrument.profile=target/instrumentation-profile"]}
+
              ;; ----------- cluster --------------------------------------
              :cluster
              {:repositories {"oracle" "http://download.oracle.com/maven/"}
@@ -15,23 +15,26 @@
   (:require [co.paralleluniverse.pulsar.core :refer :all]
             [co.paralleluniverse.pulsar.interop :refer :all]
             [clojure.string :as str]
-            [clojure.core.match :refer [match]])
+            [clojure.core.match :refer [match]]
+            [gloss.core :as gloss])
   (:refer-clojure :exclude [promise await bean])
-  (:import [java.util.concurrent TimeUnit ExecutionException TimeoutException]
+  (:import [java.util ArrayList Iterator]
+           [java.util.concurrent TimeUnit ExecutionException TimeoutException]
            [co.paralleluniverse.fibers FiberScheduler FiberFactory]
            [co.paralleluniverse.strands Strand StrandFactory SuspendableCallable]
            [co.paralleluniverse.strands.channels Channel SendPort]
-           [co.paralleluniverse.strands.queues QueueIterator]
-           [co.paralleluniverse.actors Actor ActorRef ActorRegistry PulsarActor ActorBuilder MailboxConfig
+           [co.paralleluniverse.actors Actor ActorRef ActorRegistry PulsarActor ActorBuilder MailboxConfig MailboxWatermarks
                                        ActorUtil LocalActor
                                        LifecycleListener ShutdownMessage]
-           [co.paralleluniverse.pulsar ClojureHelper]
+           [co.paralleluniverse.pulsar ClojureHelper HashedWheelTimer HashedWheelTimer$Entry LatencyTracker BinaryFrame]
+           [co.paralleluniverse.strands.concurrent CountDownLatch]
+           [co.paralleluniverse.strands.dataflow Val]
            [co.paralleluniverse.actors.behaviors Behavior BehaviorActor Initializer
                                                  ServerActor ServerHandler
                                                  EventSource EventSourceActor EventHandler
                                                  FiniteStateMachineActor
                                                  Supervisor Supervisor$ChildSpec Supervisor$ChildMode SupervisorActor SupervisorActor$RestartStrategy]
-           [clojure.lang IDeref]))
+           [clojure.lang IDeref IBlockingDeref IPending]))
 
 ;; ## Private util functions
 ;; These are internal functions aided to assist other functions in handling variadic arguments and the like.
@@ -133,9 +136,44 @@
              (def ~n sn#)
              sn#)))))
 
+(def ^:private default-ring-size 1024)
+
+(defn resolve-mailbox-size
+  "Returns the size of a mailbox of the given `:mailbox-type` (see `spawn`)."
+  {:no-doc true}
+  [type size]
+  (case (or type :default)
+    :default  size
+    :ring     (if (pos? size) size default-ring-size)
+    (:linked :priority) (if (pos? size)
+                          (throw (IllegalArgumentException. (str "A " (name type) " mailbox is unbounded; use :watermarks instead of :mailbox-size")))
+                          -1)))
+
 (defmacro ->MailboxConfig
-  [size overflow-policy]
-  `(co.paralleluniverse.actors.MailboxConfig. (int ~size) (keyword->enum co.paralleluniverse.strands.channels.Channels$OverflowPolicy ~overflow-policy)))
+  ([size overflow-policy]
+   `(co.paralleluniverse.actors.MailboxConfig. (int ~size) (keyword->enum co.paralleluniverse.strands.channels.Channels$OverflowPolicy ~overflow-policy)))
+  ([type size overflow-policy]
+   `(->MailboxConfig (resolve-mailbox-size ~type ~size) ~overflow-policy)))
+
+(defn ->priority-key
+  {:no-doc true}
+  [type key]
+  (when (= type :priority)
+    (or key identity)))
+
+(defn ->watermarks
+  {:no-doc true}
+  ([w]
+   (cond
+     (nil? w)     nil
+     (integer? w) (MailboxWatermarks. (int w) (int (quot w 2)))
+     :else        (let [[high low] w] (MailboxWatermarks. (int high) (int low)))))
+  ([w mailbox-type mailbox-size overflow-policy]
+   ; messages dropped by the mailbox are never received, so they'd be counted as pending forever
+   (when (and w (pos? (resolve-mailbox-size mailbox-type mailbox-size)) (#{:drop :displace} overflow-policy))
+     (throw (IllegalArgumentException. (str ":watermarks cannot be used with a bounded mailbox with the "
+                                            overflow-policy " overflow policy"))))
+   (->watermarks w)))
 
 (defn ^StrandFactory strand-factory
   [f]
@@ -170,6 +208,15 @@
      - `:throw` - an exception will be thrown *into the receiving actor*
      - `:drop`  -  the message will be silently discarded
      - `:block` - the sender will block until there's room in the mailbox.
+  * `:mailbox-type` - The mailbox implementation. Can be one of:
+     - `:ring`     - a pre-allocated array ring of `:mailbox-size` (default 1024) messages
+     - `:linked`   - an unbounded linked queue
+     - `:priority` - an unbounded mailbox from which messages are received in order of priority,
+                     as given by `:priority-key`
+     If not specified, a ring is used if `:mailbox-size` is given, and a linked queue otherwise.
+  * `:priority-key` - For a `:priority` mailbox, a function of a message returning its priority
+                      (default: `identity`). Messages with a greater key are received first, and
+                      messages with equal keys in the order they've arrived.
   * `:trap` - If set to `true`, linked actors' death will send an exit message rather than throw an exception.
   * `:lifecycle-handle` - A function that will be called to handle special messages sent to the actor.
                           If set to `nil` (the default), the default handler is used, which is what you
@@ -178,10 +225,14 @@
   * `:scheduler` - The `FiberScheduler` in which the fiber will run.
                  If `:fj-pool` is not specified, then the pool used will be either the pool of the fiber calling
                  `spawn-fiber`, or, if `spawn-fiber` is not called from within a fiber, a default pool.
-  * `:stack-size` - The initial fiber stack size."
-  {:arglists '([:name? :mailbox-size? :overflow-policy? :trap? :lifecycle-handler? :scheduler? :stack-size? f & args])}
+  * `:stack-size` - The initial fiber stack size.
+  * `:watermarks` - `[high low]` (or just `high`, in which case `low` is half of it) - mailbox backpressure.
+                    Once `high` messages sent with `!` or `!!` are waiting in the mailbox, senders block
+                    until the actor has drained it down to `low`, or has terminated. See `mailbox-pressure?`.
+                    Can't be used with a bounded mailbox whose `:overflow-policy` is `:drop` or `:displace`."
+  {:arglists '([:name? :mailbox-size? :overflow-policy? :mailbox-type? :priority-key? :trap? :lifecycle-handler? :scheduler? :stack-size? :watermarks? f & args])}
   [& args]
-  (let [[{:keys [^String name ^Boolean trap ^Integer mailbox-size overflow-policy ^IFn lifecycle-handler ^Integer stack-size ^FiberScheduler scheduler], :or {trap false mailbox-size -1 stack-size -1}} body] (kps-args args)
+  (let [[{:keys [^String name ^Boolean trap ^Integer mailbox-size overflow-policy mailbox-type priority-key ^IFn lifecycle-handler ^Integer stack-size ^FiberScheduler scheduler watermarks], :or {trap false mailbox-size -1 stack-size -1}} body] (kps-args args)
         b   (gensym 'b)    ; Using 'gensym' as autogen syms (e.g. 'sym#') seem not to behave as desired in unquote
         cls (gensym 'cls)]
     `(let [args#  (list ~@(rest body))     ; eval once all args
@@ -195,11 +246,50 @@
            ^Actor actor#
                   (if (instance? Actor ~b)
                     ~b
-                    (PulsarActor. nme# ~b ~trap (->MailboxConfig ~mailbox-size ~overflow-policy) ~lifecycle-handler f#))
+                    (doto (PulsarActor. nme# ~b ~trap (->MailboxConfig ~mailbox-type ~mailbox-size ~overflow-policy) ~lifecycle-handler f#)
+                      (.setPriorityKey (->priority-key ~mailbox-type ~priority-key))
+                      (.setWatermarks (->watermarks ~watermarks ~mailbox-type ~mailbox-size ~overflow-policy))))
            ^StrandFactory sf# (when-not (nil? ~scheduler)
                                 (if (= ~scheduler :thread) (strand-factory #(thread-strand % nme#)) ~scheduler))]
        (.spawn actor# sf#))))
 
+(defn spawn-many
+  "Creates and starts many actors running the same actor function, as by `spawn`, and returns them in a vector.
+
+  n-or-args - either the number of actors to spawn, each calling `f` with no arguments,
+              or a sequence of argument vectors, one per actor, each applied to `f`.
+  f         - the actor function.
+
+  The function is instrumented, and the options resolved, once for all actors, and the actors' fibers
+  are started as a batch.
+
+  Options are the same as `spawn`'s, except that `:name`, if given, is used as a prefix:
+  the actors are named name-0, name-1, etc."
+  {:arglists '([:name? :mailbox-size? :overflow-policy? :mailbox-type? :priority-key? :trap? :lifecycle-handler? :scheduler? :watermarks? n-or-args f])}
+  [& args]
+  (let [[{:keys [name trap mailbox-size overflow-policy mailbox-type priority-key lifecycle-handler scheduler watermarks], :or {trap false mailbox-size -1}} [n-or-args f]] (kps-args args)
+        _ (assert (not (instance? Actor f)) "spawn-many takes an actor function")
+        f (suspendable! f)
+        prefix (when name (clojure.core/name name))
+        ^MailboxConfig mailbox-config (->MailboxConfig mailbox-type mailbox-size overflow-policy)
+        key (->priority-key mailbox-type priority-key)
+        argvs (if (integer? n-or-args) (repeat n-or-args nil) n-or-args)
+        spawn-all (fn []
+                    (into [] (map-indexed
+                               (fn [i args]
+                                 (let [^String nme (when prefix (str prefix "-" i))
+                                       target (if (seq args) (suspendable! (fn [] (apply f args))) f)
+                                       actor (doto (PulsarActor. nme ^IFn f (boolean trap) mailbox-config ^IFn lifecycle-handler ^IFn target)
+                                               (.setPriorityKey key)
+                                               (.setWatermarks (->watermarks watermarks mailbox-type mailbox-size overflow-policy)))
+                                       ^StrandFactory sf (when-not (nil? scheduler)
+                                                           (if (= scheduler :thread) (strand-factory #(thread-strand % nme)) scheduler))]
+                                   (.spawn actor sf))))
+                          argvs))]
+    (if (= scheduler :thread)
+      (spawn-all)
+      (run-batch (when (instance? FiberScheduler scheduler) scheduler) spawn-all))))
+
 (defmacro recur-swap
   "Recurs to `f` (which is the actor function), checking for possible hot code swaps
   and applying them."
@@ -374,6 +464,22 @@
   [^ActorRef actor]
   actor)
 
+(defn mailbox-pressure?
+  "Tests whether the given actor's mailbox is above its high watermark (see `spawn`), i.e., whether sending
+  it a message with `!` or `!!` would block. Returns `false` if the actor has no watermarks.
+
+  This is a cheap, non-blocking check, which producers may use to shed or divert load."
+  [actor]
+  (let [^MailboxWatermarks w (PulsarActor/getWatermarks (get-actor actor))]
+    (boolean (and w (.isUnderPressure w)))))
+
+(defn mailbox-pending
+  "Returns the number of messages sent with `!` or `!!` to the given actor (which must have been spawned with
+  `:watermarks`) that it has not yet received, or `nil` if the actor has no watermarks."
+  [actor]
+  (when-let [^MailboxWatermarks w (PulsarActor/getWatermarks (get-actor actor))]
+    (.getPending w)))
+
 ;(ann whereis [Any -> Actor])
 (defn ^ActorRef whereis
   "Returns a registered actor by name, blocking until one is registered"
@@ -513,10 +619,11 @@
          has-else    (seq (filter #(= % :else) (take-nth 2 body)))]
      (let [pbody   (partition 2 body)
            mailbox (tagged `Actor (gensym "mailbox"))
-           it      (tagged `QueueIterator (gensym "it"))
+           it      (tagged `Iterator (gensym "it"))
            m2      (gensym "m2")
            mtc     (gensym "mtc")
-           exp     (gensym "exp")] ; symbols
+           exp     (gensym "exp")
+           wakeup  (tagged `HashedWheelTimer$Entry (gensym "wakeup"))] ; symbols
        `(let [[~mtc ~m]
               (let ~(into [] (concat `[~mailbox (PulsarActor/currentActor)]
                                      (if after-clause
@@ -527,12 +634,16 @@
                                                (long (+
                                                  (long (System/nanoTime))
                                                  (long (* 1000000 ~timeout))))
-                                               0)]
+                                               0)
+                                         ~wakeup
+                                           (when (pos? ~timeout) ; a single, coarse timer for the whole receive
+                                             (.wakeup (HashedWheelTimer/getInstance) (Strand/currentStrand) ~exp))]
                                        [])))
                 (PulsarActor/maybeSetCurrentStrandAsOwner ~mailbox)
 
                 (let [~it (PulsarActor/iterator ~mailbox)]
-                  (loop [~i 0]
+                 ~(let [receive-loop
+                  `(loop [~i 0]
                    (PulsarActor/lock ~mailbox)
                    ~(let [quick-match (concat             ; ((pat1 act1) (pat2 act2)...) => (pat1 (do (co.paralleluniverse.actors.PulsarActor/processed mailbox# n#) 0) pat2 (do (del mailbox# n#) 1)... :else -1)
                                         (mapcat
@@ -560,16 +671,13 @@
                                  (recur (inc ~i))))))     ; no match. try the next
                          ; !it.hasNext()
                          ~(if after-clause
-                            `(if-not (== ~timeout 0)
-                               (do                        ; timeout != 0 and ~n == nil
-                                 (try
-                                   (PulsarActor/await
-                                     ~mailbox ~i
-                                     (- ~exp (long (System/nanoTime)))
-                                     TimeUnit/NANOSECONDS)
+                            `(if (pos? ~timeout)
+                               (do                        ; timeout > 0 and ~n == nil
+                                 (try                     ; normally woken by a new message or by the wheel; the timed await bounds the wait regardless
+                                   (PulsarActor/await ~mailbox ~i (- ~exp (long (System/nanoTime))) TimeUnit/NANOSECONDS)
                                    (finally
                                      (PulsarActor/unlock ~mailbox)))
-                                 (when-not (> (long (System/nanoTime)) ~exp)
+                                 (when (< (long (System/nanoTime)) ~exp)
                                    (recur (inc ~i))))
                                (PulsarActor/unlock ~mailbox))
                             `(do
@@ -577,7 +685,14 @@
                                  (PulsarActor/await ~mailbox ~i)
                                  (finally
                                    (PulsarActor/unlock ~mailbox)))
-                               (recur (inc ~i)))))))))]
+                               (recur (inc ~i)))))))]
+                    (if after-clause
+                      `(try
+                         ~receive-loop
+                         (finally
+                           (when ~wakeup
+                             (.cancel ~wakeup))))
+                      receive-loop))))]
           ~@(surround-with (when after-clause `(if (nil? ~mtc) ~(nth after-clause 2)))
                            ; now, mtc# is the number of the matching clause and m# is the message.
                            ; but the patterns might have wildcards so we need to match again (for the bindings)
@@ -593,6 +708,41 @@
                                     (range)))))))))
 ;`(match [~mtc ~m] ~@(mapcat #(list [%2 (first %1)] (second %1)) pbody (range))))))))))
 
+;; ### Binary messages
+
+(defn ^BinaryFrame binary-frame
+  "Defines the layout of a fixed-size binary message made of primitive fields, for matching in `receive`.
+
+  Takes field names and gloss primitive types (`:byte`, `:int16`, `:uint32`, `:float64-le` etc.),
+  in the order they're laid out, like gloss's `ordered-map`. Messages should be encoded with
+  `(frame-codec frame)`.
+
+  See `frame-view`."
+  [& kvs]
+  (BinaryFrame. (vec (take-nth 2 kvs)) (vec (take-nth 2 (rest kvs))) (gloss/compile-frame (apply gloss/ordered-map kvs))))
+
+(defn frame-codec
+  "Returns the gloss codec of a binary frame."
+  [^BinaryFrame frame]
+  (.getCodec frame))
+
+(defn frame-view
+  "Returns a view of a binary message (a `ByteBuffer`, or a sequence of buffers as returned by gloss's `encode`)
+  laid out according to the given `binary-frame`. If `message` isn't a buffer, or is too short, it is returned as is.
+
+  The view can be matched with map patterns. Fields are read directly from the buffer, and only when
+  a pattern needs them. A new view is made on every call, as the buffer's contents may change between
+  calls (e.g. if it is reused), so a field is read again whenever a selective `receive` rescans the mailbox.
+  With one argument, returns a function suitable as the transformation in `receive`'s binding:
+
+     (receive [m (frame-view fr)]
+       {:type 1 :x x} (move x)
+       {:type 2}      (stop))"
+  ([frame]
+   (fn [message] (frame-view frame message)))
+  ([^BinaryFrame frame message]
+   (or (.view frame message) message)))
+
 (defn shutdown!
   "Asks a gen-server or a supervisor to shut down"
   ([^Behavior gs]
@@ -671,16 +821,22 @@
 
 
 (defmacro gen-server
-  "Creates (but doesn't start) a new gen-server"
-  {:arglists '([:name? :timeout? :mailbox-size? :overflow-policy? server & args])}
+  "Creates (but doesn't start) a new gen-server.
+
+  If the server implements `BatchServer`, calls and casts are handled in batches of up to
+  `:max-batch` (default 64) requests.
+
+  `:mailbox-type` may be `:ring` or `:linked` (see `spawn`)."
+  {:arglists '([:name? :timeout? :mailbox-size? :overflow-policy? :mailbox-type? :max-batch? server & args])}
   [& args]
-  (let [[{:keys [^String name ^Integer timeout ^Integer mailbox-size overflow-policy], :or {timeout -1 mailbox-size -1}} body] (kps-args args)
+  (let [[{:keys [^String name ^Integer timeout ^Integer mailbox-size overflow-policy mailbox-type ^Integer max-batch], :or {timeout -1 mailbox-size -1 max-batch 64}} body] (kps-args args)
+        _ (assert-args (not= mailbox-type :priority) "a gen-server cannot have a :priority mailbox")
         s (first body)]
     `(->
       (co.paralleluniverse.actors.behaviors.ServerActor. ~name
-                                                        (Server->java ~s)
+                                                        (->ServerHandler ~s ~max-batch)
                                                         (long ~timeout) TimeUnit/MILLISECONDS
-                                                        nil (->MailboxConfig ~mailbox-size ~overflow-policy))
+                                                        nil (->MailboxConfig ~mailbox-type ~mailbox-size ~overflow-policy))
       (.setForwardWatch true))))
 
 (defsfn call!
@@ -701,6 +857,148 @@
    (unwrap-exception
      (.call gs (vec (cons m args)) (long timeout) (->timeunit unit)))))
 
+;; ### Concurrent calls
+;; Calls made by `call-async!`, `call-many!` and `call-hedged!` each run in a fiber of their own, which
+;; passes the response (or a CallError) to a callback.
+;; Sending all requests from the calling strand and parking once on the replies isn't possible with
+;; Quasar 0.7.9's public API: the only way to make a call to a gen-server is `Server.call`, which
+;; both sends the request and waits for its reply (in the caller's mailbox, or in a temporary actor's
+;; if the caller isn't an actor). So each concurrent call costs a fiber.
+;; Once its result is no longer needed (the caller has timed out, or another call has won), a call's
+;; fiber is interrupted, which ends its wait for the reply and removes its watch on the server.
+
+(deftype CallError [^Throwable e])
+
+(defn- call-result
+  [r]
+  (if (instance? CallError r)
+    (throw (.e ^CallError r))
+    r))
+
+(defn- call*
+  "Makes the call in a new fiber, which passes its result to `f`. Returns the fiber."
+  [gs m args f]
+  (spawn-fiber
+    (fn []
+      (f (try
+           (apply call! gs m args)
+           (catch Throwable e
+             (CallError. e)))))))
+
+(defn- cancel-calls
+  [fibers]
+  (doseq [^Strand f fibers]
+    (when-not (.isTerminated f)
+      (.interrupt f))))
+
+(defn- set-once!
+  [^Val dv r]
+  (try
+    (.set dv r)
+    (catch IllegalStateException _ nil)))
+
+(defn call-async!
+  "Makes a call to a gen-server without blocking, and returns a derefable that will hold the response.
+  Dereferencing it blocks until the response has been received, and throws the exception thrown by the call, if any."
+  [gs m & args]
+  (let [dv (Val.)]
+    (call* gs m args #(set-once! dv %))
+    (sreify
+      IDeref
+      (deref [_]
+             (call-result (.get dv)))
+      IBlockingDeref
+      (deref [_ timeout-ms timeout-val]
+             (try
+               (call-result (.get dv (long timeout-ms) TimeUnit/MILLISECONDS))
+               (catch TimeoutException e
+                 timeout-val)))
+      IPending
+      (isRealized [_]
+                  (.isDone dv)))))
+
+(defn- start-calls
+  [calls]
+  (let [calls (vec calls)
+        n (count calls)
+        results (object-array n)
+        latch (CountDownLatch. n)
+        fibers (mapv (fn [i]
+                       (let [[gs m & args] (nth calls i)]
+                         (call* gs m args (fn [r]
+                                            (aset results i r)
+                                            (.countDown latch)))))
+                     (range n))]
+    [results latch fibers]))
+
+(defsfn call-many!
+  "Makes synchronous calls to several gen-servers at once, and returns their responses in a vector.
+
+  `calls` is a sequence of `[gs m & args]` vectors, each denoting a call as by `call!`.
+  The calls are made concurrently, and the calling strand blocks once, until all responses have been
+  received (or the timeout, if given, has elapsed, in which case a TimeoutException is thrown).
+  If any of the calls has thrown an exception, it is thrown by `call-many!`.
+
+  Each call is made by a fiber of its own, as Quasar's gen-servers don't let a strand send several
+  calls before waiting for their replies. Calls still pending when `call-many!` returns or throws
+  are cancelled."
+  ([calls]
+   (let [[results ^CountDownLatch latch fibers] (start-calls calls)]
+     (try
+       (.await latch)
+       (finally
+         (cancel-calls fibers)))
+     (mapv call-result results)))
+  ([timeout unit calls]
+   (let [[results ^CountDownLatch latch fibers] (start-calls calls)]
+     (try
+       (when-not (.await latch (long timeout) (->timeunit unit))
+         (throw (TimeoutException.)))
+       (finally
+         (cancel-calls fibers)))
+     (mapv call-result results))))
+
+(defsfn call-hedged!
+  "Makes a synchronous call to one of several replicated gen-servers, and returns the first response.
+
+  The request is sent to the first server in `gss`. If no response has been received within the hedging
+  delay, it is also sent to the next one, and so on. The response (or exception) received first is returned,
+  and the calls still pending are cancelled.
+
+  Options:
+  * `:percentile` - The hedging delay is this percentile of the first server's recent response times (default: 95).
+                    No backup requests are sent until enough responses have been timed.
+  * `:delay`      - A fixed hedging delay, in milliseconds, used instead of the percentile."
+  {:arglists '([:percentile? :delay? gss m & args])}
+  [& args]
+  (let [[{:keys [percentile] fixed-delay :delay :or {percentile 95}} [gss m & margs]] (kps-args args)
+        gss (vec gss)
+        ^LatencyTracker tracker (LatencyTracker/of (first gss))
+        delay-nanos (long (if fixed-delay
+                            (convert-duration fixed-delay :ms :nanos)
+                            (.percentile tracker (double percentile))))
+        dv (Val.)
+        start (System/nanoTime)
+        fibers (java.util.ArrayList.)]
+    (.add fibers (call* (first gss) m margs (fn [r]
+                                              (.record tracker (- (System/nanoTime) start))
+                                              (set-once! dv r))))
+    (try
+      (loop [i 1]
+        (if (and (< i (count gss)) (>= delay-nanos 0))
+          (let [r (try
+                    (.get dv delay-nanos TimeUnit/NANOSECONDS)
+                    (catch TimeoutException e
+                      dv))]
+            (if (identical? r dv)
+              (do
+                (.add fibers (call* (nth gss i) m margs #(set-once! dv %)))
+                (recur (inc i)))
+              (call-result r)))
+          (call-result (.get dv))))
+      (finally
+        (cancel-calls fibers)))))
+
 (defn cast!
   "Makes an asynchronous call to a gen-server"
   ([^co.paralleluniverse.actors.behaviors.Server gs m]
@@ -723,6 +1021,81 @@
   [^Actor to id ^Throwable error]
   (.replyError (ServerActor/currentServerActor) to id error))
 
+;; ## batch gen-server
+
+(defprotocol BatchServer
+  "A gen-server that handles requests in batches. A server implementing BatchServer still implements
+  `Server`'s `init`, `terminate`, `handle-info` and `handle-timeout`, but its `handle-call` and
+  `handle-cast` are never called."
+  (handle-call-batch [this batch]
+    "Handles the calls and casts that have been queued in the server's mailbox.
+    `batch` is a vector of requests, each with the keys `:type` (`:call` or `:cast`), `:from`, `:id` and `:message`.
+    Returns a sequence of responses corresponding to the requests in the batch. Responses to casts are ignored;
+    a `nil` response to a call means that no response is sent (one can be sent later with `reply!`).
+    If handle-call-batch throws an exception, it is returned to all callers in the batch."))
+
+(suspendable! co.paralleluniverse.pulsar.actors.BatchServer)
+
+(defrecord BatchRequest [type from id message])
+
+(defsfn ^:private flush-batch!
+  [server ^ArrayList pending]
+  (when-not (.isEmpty pending)
+    (let [batch (vec pending)]
+      (.clear pending)
+      (try
+        (loop [reqs (seq batch)
+               rs (seq (handle-call-batch server batch))]
+          (when reqs
+            (let [^BatchRequest req (first reqs)
+                  r (first rs)]
+              (when (and (identical? (.type req) :call) (some? r))
+                (reply! (.from req) (.id req) r))
+              (recur (next reqs) (next rs)))))
+        (catch Exception e
+          (doseq [^BatchRequest req batch]
+            (when (identical? (.type req) :call)
+              (reply-error! (.from req) (.id req) e))))))))
+
+(defsfn ^:private add-to-batch!
+  [server ^ArrayList pending max-batch req]
+  (.add pending req)
+  ; flush once the mailbox has been drained of the requests that were waiting in it
+  (when (or (>= (.size pending) (long max-batch))
+            (PulsarActor/isMailboxEmpty (Actor/currentActor)))
+    (flush-batch! server pending)))
+
+(defn ^ServerHandler BatchServer->java
+  {:no-doc true}
+  [server max-batch]
+  (suspendable! server [co.paralleluniverse.pulsar.actors.Server co.paralleluniverse.pulsar.actors.BatchServer])
+  (let [pending (ArrayList.)]
+    (reify
+      ServerHandler
+      (^void init [this]
+        (init server))
+      (handleCall [this ^ActorRef from id message]
+        (add-to-batch! server pending max-batch (->BatchRequest :call from id (->msg message)))
+        nil)
+      (^void handleCast [this ^ActorRef from id message]
+        (add-to-batch! server pending max-batch (->BatchRequest :cast from id (->msg message))))
+      (^void handleInfo [this message]
+        (flush-batch! server pending)
+        (handle-info server (->msg message)))
+      (^void handleTimeout [this]
+        (flush-batch! server pending)
+        (handle-timeout server))
+      (^void terminate  [this ^Throwable cause]
+        (flush-batch! server pending)
+        (terminate server cause)))))
+
+(defn ^ServerHandler ->ServerHandler
+  {:no-doc true}
+  [server max-batch]
+  (if (satisfies? BatchServer server)
+    (BatchServer->java server max-batch)
+    (Server->java server)))
+
 ;; ## gen-event
 
 (defn gen-event
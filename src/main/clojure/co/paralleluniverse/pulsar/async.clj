@@ -21,14 +21,14 @@
   (:require
     [co.paralleluniverse.pulsar.core :as p :refer [defsfn sfn]])
   (:import
-    [co.paralleluniverse.strands.channels Channel QueueObjectChannel TransferChannel TimeoutChannel Channels$OverflowPolicy SendPort ReceivePort Selector SelectAction Channels ReceivePortGroup Mix$SoloEffect Mix$State Mix$Mode]
+    [co.paralleluniverse.strands.channels Channel QueueObjectChannel TransferChannel Channels$OverflowPolicy SendPort ReceivePort Selector SelectAction Channels]
     [co.paralleluniverse.strands.queues ArrayQueue BoxQueue CircularObjectBuffer]
     [java.util Collection]
-    [java.util.concurrent TimeUnit Executors Executor]
-    [com.google.common.util.concurrent ThreadFactoryBuilder]
+    [java.util.concurrent TimeUnit]
     (java.util List)
     (co.paralleluniverse.strands Strand SuspendableAction1 SuspendableAction2 SuspendableCallable)
-    (co.paralleluniverse.pulsar.async DelegatingChannel CoreAsyncSendPort IdentityPipeline PredicateSplitSendPort ParallelTopic PubSplitSendPort)
+    (co.paralleluniverse.pulsar ClojureHelper HashedWheelTimer BlockingExecutor BlockingExecutor$Rejection PortSet)
+    (co.paralleluniverse.pulsar.async DelegatingChannel CoreAsyncSendPort IdentityPipeline PredicateSplitSendPort ParallelTopic PubSplitSendPort PromiseChannel WeightedMix WeightedMix$SoloEffect)
     (co.paralleluniverse.common.util Function2 Pair)
     (com.google.common.base Predicate Function)
     (co.paralleluniverse.strands.channels.transfer Pipeline)))
@@ -68,44 +68,42 @@
 (defn rx-chan [chan xform exh]
   "Returns a new transforming channel based on the one passed as a first argument. The given transducer will
   be applied to the add (send) function."
-  (let [add-reducer-builder
-          (fn [snd-op]
-            (sfn
-              ([x] x)
-              ([x v] (snd-op v) x)))
-        handle-builder
-          (fn [snd-op]
-            (sfn [x exh t]
-              (let [else ((or (p/suspendable! exh) ex-handler) t)]
-                (if (nil? else)
-                  x
-                  ((add-reducer-builder snd-op) x else)))))
-        xf-add-reducer-builder
-          (fn [snd-op]
-            (let [add-reducer (add-reducer-builder snd-op)
-                  handle (handle-builder snd-op)
-                  add! (if xform (p/suspendable! (xform add-reducer)) add-reducer)]
+  (if (and (nil? xform) (nil? exh))
+    chan
+    (let [add-reducer-builder
+            (fn [snd-op]
               (sfn
-                ([x]
-                  (try
-                    (add! x)
-                    (catch Throwable t
-                      (handle x exh t))))
-                ([x v]
-                  (try
-                    (add! x v)
-                    (catch Throwable t
-                      (handle x exh t)))))))
-        px
-          (CoreAsyncSendPort.
-            chan
-            (p/sreify SuspendableAction1
-              (call [_ v] ((xf-add-reducer-builder (sfn [v] (.send ^Channel chan v))) chan v))))]
-     (cond
-       (and (nil? xform) (nil? exh))
-         chan
-       :else
-         (DelegatingChannel. px chan chan))))
+                ([x] x)
+                ([x v] (snd-op v) x)))
+          handle-builder
+            (fn [snd-op]
+              (sfn [x exh t]
+                (let [else ((or (p/suspendable! exh) ex-handler) t)]
+                  (if (nil? else)
+                    x
+                    ((add-reducer-builder snd-op) x else)))))
+          xf-add-reducer-builder
+            (fn [snd-op]
+              (let [add-reducer (add-reducer-builder snd-op)
+                    handle (handle-builder snd-op)
+                    add! (if xform (p/suspendable! (xform add-reducer)) add-reducer)]
+                (sfn
+                  ([x]
+                    (try
+                      (add! x)
+                      (catch Throwable t
+                        (handle x exh t))))
+                  ([x v]
+                    (try
+                      (add! x v)
+                      (catch Throwable t
+                        (handle x exh t)))))))
+          px
+            (CoreAsyncSendPort.
+              chan
+              (p/sreify SuspendableAction1
+                (call [_ v] ((xf-add-reducer-builder (sfn [v] (.send ^Channel chan v))) chan v))))]
+      (DelegatingChannel. px chan chan))))
 
 (defn chan
   "Creates a channel with an optional buffer, an optional transducer
@@ -125,6 +123,17 @@
      (nil? buf-or-n)    (do (when xform (assert buf-or-n "buffer must be supplied when transducer is")) (rx-chan (TransferChannel.) nil nil))
      :else              (let [buf (first buf-or-n) policy (second buf-or-n)] (rx-chan (QueueObjectChannel. buf policy false false) xform ex-handler)))))
 
+(defn promise-chan
+  "Creates a promise channel with an optional transducer, and an optional
+  exception-handler. A promise channel can take exactly one value that consumers
+  will receive. Once full, puts complete but val is dropped (no transfer).
+  Consumers will block until either a value is placed in the channel or the
+  channel is closed. See chan for the semantics of xform and ex-handler."
+  ([] (promise-chan nil))
+  ([xform] (promise-chan xform nil))
+  ([xform ex-handler]
+   (rx-chan (PromiseChannel. true) xform ex-handler)))
+
 (defsfn <!
   "Takes a val from port. Must be called inside a (go ...) block. Will
    return nil if closed. Will park if nothing is available.
@@ -187,9 +196,13 @@
   (p/close! chan))
 
 (defn timeout
-  "Returns a channel that will close after msecs"
+  "Returns a channel that will close after msecs
+
+   Pulsar implementation: timeouts are scheduled on a shared hashed-wheel timer
+   whose resolution is set by the `co.paralleluniverse.pulsar.timer.tickMillis` system
+   property (default 10). Calls whose deadlines fall on the same tick return the same channel."
   [msecs]
-  (TimeoutChannel/timeout msecs TimeUnit/MILLISECONDS))
+  (.timeout (HashedWheelTimer/getInstance) (long msecs) TimeUnit/MILLISECONDS))
 
 (defsfn ^:private do-alts-internal
   "Returns a SelectAction given a set of selection operations and an options map"
@@ -208,11 +221,18 @@
 (defsfn do-alts
   "Returns derefable [val port] if immediate, nil if enqueued"
   [fret ports opts]
-  (let [^SelectAction sa (do-alts-internal ports opts)
-        v [(.message sa) (.port sa)]]
-    (if (and (contains? opts :default) (nil? sa))
-      [(:default opts) :default]
-      (if fret (fret v) v))))
+  (if (instance? PortSet ports)
+    (let [v (if (contains? opts :default)
+              (.trySelect ^PortSet ports)
+              (.select ^PortSet ports))]
+      (if (nil? v)
+        [(:default opts) :default]
+        (if fret (fret v) v)))
+    (let [^SelectAction sa (do-alts-internal ports opts)
+          v [(.message sa) (.port sa)]]
+      (if (and (contains? opts :default) (nil? sa))
+        [(:default opts) :default]
+        (if fret (fret v) v)))))
 
 (defsfn alts!
   "Completes at most one of several channel operations. Must be called
@@ -236,7 +256,9 @@
    used, nor in what order should they be, so they should not be
    depended upon for side effects.
 
-   Pulsar implementation: Identical to alts!!. May be used outside go blocks as well."
+   Pulsar implementation: Identical to alts!!. May be used outside go blocks as well.
+   ports may also be a port set (see co.paralleluniverse.pulsar.core/port-set), which only
+   takes from its channels; :priority is then set when the port set is created."
   [ports & {:as opts}]
   (do-alts identity ports opts))
 
@@ -296,37 +318,69 @@
                                    ~@a))))
                         (range) exprs))))))
 
-(defrecord ^:private FToChanExc [^Throwable exc])
-(alter-meta! #'->FToChanExc assoc :private true)
-(alter-meta! #'map->FToChanExc assoc :private true)
-
 (defn- f-to-chan
-  [c f]
+  [^PromiseChannel c f]
   (p/sfn []
     (let [ret (try (f)
                 (catch Throwable t
-                  (->FToChanExc t)))]
-      (when-not (or (nil? ret) (instance? FToChanExc ret))
-        (>! c ret))
-      (close! c)
-      (when (instance? FToChanExc ret)
-        (throw (:exc ret))))))
-
-(defonce ^:private ^Executor thread-macro-executor
-  (Executors/newCachedThreadPool (-> (ThreadFactoryBuilder.) (.setNameFormat "async-thread-%d") (.setDaemon true) (.build))))
-
-(defn thread-call
+                  (.close c)
+                  (throw t)))]
+      (if (nil? ret)
+        (.close c)
+        (.send c ret))))) ; closes the channel
+
+(defn blocking-executor
+  "Creates a bounded pool of threads for blocking work, which can be passed to thread-call.
+   This function is not part of core.async.
+
+   Options:
+   :threads    - the maximum number of threads (default: 256)
+   :queue      - the maximum number of tasks waiting for a thread (default: 4096)
+   :rejection  - what happens to a task submitted while the queue is full: :block (the default)
+                 blocks the submitting strand - parking it, if it's a fiber - until there's room,
+                 :abort throws a RejectedExecutionException and :caller-runs runs the task in
+                 the submitting thread (a fiber, whose carrier thread mustn't be blocked, is
+                 parked as with :block instead)
+   :keep-alive - how long, in milliseconds, an idle thread is kept (default: 60000)
+   :name       - the name format of the threads (default: \"async-blocking-%d\")
+
+   The executor's counters - queue depth, active threads, wait time percentiles and more - are
+   returned by blocking-executor-stats."
+  [& {:keys [threads queue rejection keep-alive name]
+      :or {threads 256 queue 4096 rejection :block keep-alive 60000 name "async-blocking-%d"}}]
+  (BlockingExecutor. name (int threads) (int queue)
+                     (case rejection
+                       :block       BlockingExecutor$Rejection/BLOCK
+                       :abort       BlockingExecutor$Rejection/ABORT
+                       :caller-runs BlockingExecutor$Rejection/CALLER_RUNS)
+                     (long keep-alive)))
+
+(defn blocking-executor-stats
+  "Returns the counters of an executor created by blocking-executor (or, with no arguments,
+   of the default one, used by thread) as a map. Wait times are in nanoseconds.
+   This function is not part of core.async."
+  ([] (blocking-executor-stats (BlockingExecutor/getDefault)))
+  ([^BlockingExecutor executor] (.getStats executor)))
+
+(defsfn thread-call
   "Executes f in another thread, returning immediately to the calling
    thread. Returns a channel which will receive the result of calling
-   f when completed."
-  [f]
-  (let [c (chan 1)]
-    (let [binds (clojure.lang.Var/getThreadBindingFrame)]
-      (.execute thread-macro-executor
-                (fn []
-                  (clojure.lang.Var/resetThreadBindingFrame binds)
-                  ((f-to-chan c f)))))
-    c))
+   f when completed.
+
+   Pulsar implementation: f runs in a bounded pool of threads: either the given executor (see
+   blocking-executor) or a default one, with 256 threads and room for 4096
+   waiting tasks (set with the co.paralleluniverse.pulsar.async.blockingThreads
+   and co.paralleluniverse.pulsar.async.blockingQueue system properties).
+   When the default pool's queue is full, the calling strand blocks until there's room."
+  ([f] (thread-call (BlockingExecutor/getDefault) f))
+  ([^BlockingExecutor executor f]
+   (let [c (PromiseChannel. false)
+         binds (ClojureHelper/captureBindingFrame)]
+     (.execute executor
+               (fn []
+                 (ClojureHelper/conveyBindingFrame binds)
+                 ((f-to-chan c f))))
+     c)))
 
 (defmacro thread
   "Executes the body in another thread, returning immediately to the
@@ -341,7 +395,7 @@
    strand. Returns a channel which will receive the result of calling
    f when completed."
   [f]
-  (let [c (chan 1)]
+  (let [c (PromiseChannel. false)]
     (p/spawn-fiber (f-to-chan c (p/suspendable! f)))
     c))
 
@@ -547,43 +601,32 @@
             paused.
 
     :mute - muted channels will have their contents consumed but not included in the mix
-    :pause - paused channels will not have their contents consumed (and thus also not included in the mix)"
+    :pause - paused channels will not have their contents consumed (and thus also not included in the mix)
+
+    Pulsar implementation: inputs are scheduled by weighted fair queuing. Each channel may also
+    be given a positive integer :weight via 'toggle' (default 1); when several inputs are busy,
+    each receives a share of the output proportional to its weight."
    [out]
-   (let [rp-array #(let [a (make-array ReceivePort 1)] (aset ^"[Lco.paralleluniverse.strands.channels.ReceivePort;" a 0 ^ReceivePort %) a)
-         empty-rp-array (make-array ReceivePort 0)
-         flatten-coll-map (fn [coll-map f-key f-val]
-                            (reduce-kv
-                              (fn [res coll val]
-                                (core/merge
-                                  res
-                                  (core/map
-                                    (fn [a] {(f-key a) (f-val val)})
-                                    coll)))
-                              {} coll-map))
-         to-flattened-c-state (fn [c-state-map] (flatten-coll-map c-state-map identity identity))
-         to-mix-state (fn [flattened-c-state]
-                        (Mix$State.
-                          (cond
-                            (:mute flattened-c-state) Mix$Mode/MUTE
-                            (:pause flattened-c-state) Mix$Mode/PAUSE
-                            :else Mix$Mode/NORMAL)
-                          (:solo flattened-c-state)))
-         to-mix-state-map (fn [state-map]
-                            (flatten-coll-map state-map identity #(to-mix-state (to-flattened-c-state %))))
-         solo-modes #{:mute :pause}
-         g (ReceivePortGroup. true)
+   (let [solo-modes #{:mute :pause}
+         g (WeightedMix. out)
          m (p/sreify
              Mux
              (muxch* [_] out)
              Mix
-             (admix* [_ ch] (.add g (rp-array ch)))
-             (unmix* [_ ch] (.remove g (rp-array ch)))
-             (unmix-all* [_] (.remove g empty-rp-array))
-             (toggle* [_ state-map] (.setState g (to-mix-state-map state-map)))
-             (solo-mode* [this mode]
+             (admix* [_ ch] (.add g ch))
+             (unmix* [_ ch] (.remove g ch))
+             (unmix-all* [_] (.removeAll g))
+             (toggle* [_ state-map]
+               (doseq [[ch s] state-map]
+                 (.setState g ch
+                            (some-> (:mute s) boolean)
+                            (some-> (:pause s) boolean)
+                            (some-> (:solo s) boolean)
+                            ^Number (:weight s))))
+             (solo-mode* [_ mode]
                (assert (solo-modes mode) (str "mode must be one of: " solo-modes))
-               (.setSoloEffect ^co.paralleluniverse.strands.channels.Mix this (condp mode = :mute Mix$SoloEffect/MUTE_OTHERS :pause Mix$SoloEffect/PAUSE_OTHERS))))]
-     (pipe g out)
+               (.setSoloEffect g (case mode :mute WeightedMix$SoloEffect/MUTE_OTHERS :pause WeightedMix$SoloEffect/PAUSE_OTHERS))))]
+     (p/spawn-fiber #(.run g))
      m))
 
 (defn admix
@@ -608,6 +651,9 @@
    more of :mute, :pause or :solo. Any states supplied are merged with
    the current state.
 
+   Pulsar implementation: a channel-state-map may also contain a :weight
+   attribute, a positive integer setting the channel's share of the mix.
+
    Note that channels can be added to a mix via toggle, which can be
    used to add channels in a particular (e.g. paused) state."
   [mix state-map]
@@ -773,6 +819,9 @@
           identity-transform
             (p/sreify SuspendableAction2
               (call [_ v c] (>! c v) (close! c)))
+          blocking-transform
+            (p/sreify SuspendableAction2
+              (call [_ v c] (<! (thread-call #(do (>!! c v) (close! c))))))
           transforming-transform
             (p/sreify SuspendableAction2
               (call [_ v c] (xf v c)))
@@ -788,7 +837,7 @@
             (p/sreify SuspendableCallable
               (run [_] (chan 1)))]
       (case type
-        :blocking (pline 0 identity-transform transducing-channel-builder)
+        :blocking (pline n blocking-transform transducing-channel-builder)
         :compute (pline n identity-transform transducing-channel-builder)
         :async (pline n transforming-transform plain-channel-builder)))))
 
@@ -811,7 +860,10 @@
   ([n to xf from close? ex-handler] (pipeline* n to xf from close? ex-handler :compute)))
 
 (defn pipeline-blocking
-  "Like pipeline, for blocking operations."
+  "Like pipeline, for blocking operations.
+
+   Pulsar implementation: the transducer runs in the threads used by thread
+   (see thread-call), with up to n elements in flight."
   ([n to xf from] (pipeline-blocking n to xf from true))
   ([n to xf from close?] (pipeline-blocking n to xf from close? nil))
   ([n to xf from close? ex-handler] (pipeline* n to xf from close? ex-handler :blocking)))
@@ -20,6 +20,7 @@
   Go-like channles and Erlang-like actors for the JVM"
 (:refer-clojure :exclude [promise await bean])
 (:import [java.util.concurrent TimeUnit ExecutionException TimeoutException Future]
+         [java.nio ByteBuffer]
          [co.paralleluniverse.strands Strand Stranded]
          [co.paralleluniverse.strands SuspendableCallable]
          [co.paralleluniverse.fibers DefaultFiberScheduler FiberScheduler Fiber Joinable FiberUtil]
@@ -31,7 +32,7 @@
           IntSendPort LongSendPort FloatSendPort DoubleSendPort
           IntReceivePort LongReceivePort FloatReceivePort DoubleReceivePort]
          [co.paralleluniverse.strands.dataflow Val Var]
-         [co.paralleluniverse.pulsar ClojureHelper ChannelsHelper ClojureFiberAsync]
+         [co.paralleluniverse.pulsar ClojureHelper ChannelsHelper ClojureFiberAsync FiberStackSizes SuspendableMemo RateLimiter RateLimitedSendPort BufferPool PooledBuffer PortSet]
          ; for types:
          [clojure.lang Keyword Sequential IObj IMeta IDeref ISeq IPersistentCollection IPersistentVector IPersistentMap])
 (:require [co.paralleluniverse.pulsar.interop :refer :all]))
@@ -193,14 +194,14 @@
 (defn suspendable?
   "Returns true of a function has been instrumented as suspendable; false otherwise."
   [f]
-  (or (instance? co.paralleluniverse.pulsar.IInstrumented f)
-      (.isAnnotationPresent (.getClass ^Object f) co.paralleluniverse.fibers.Instrumented)))
+  (ClojureHelper/isInstrumented ^Object f))
 
 #_(ann suspendable! (IFn [IFn -> IFn]
                       [IFn * -> (ISeq IFn)]
                       [(ISeq IFn) -> (ISeq IFn)]))
 (defn suspendable!
-  "Makes a function suspendable."
+  "Makes a function suspendable.
+  Returns the function itself: instrumentation applies to the function's class."
   ([f]
    (when f
      (ClojureHelper/retransform f nil)))
@@ -313,7 +314,7 @@
   It is much preferable to use `spawn-fiber`."
   [& args]
   (let [[^String name ^FiberScheduler scheduler ^Integer stacksize f] (ops-args [[string? nil] [#(instance? FiberScheduler %) default-fiber-scheduler] [integer? -1]] args)]
-    (Fiber. name (get-scheduler scheduler) (int stacksize) (->suspendable-callable f))))
+    (Fiber. name (get-scheduler scheduler) (FiberStackSizes/stackSize f (int stacksize)) (->suspendable-callable f))))
 
 ;(ann start [Fiber -> Fiber])
 (defn start
@@ -329,14 +330,15 @@
 
   Options:
   :name str     - the fiber's name
-  :stack-size n - the fiber's initial stack size
+  :stack-size n - the fiber's initial stack size; if omitted, the size learned from
+                  previous fibers running the same function (see `FiberStackSizes`)
   :scheduler    - the fiber schdeuler in which the fiber will run
   "
   {:arglists '([:name? :stack-size? :scheduler? f & args])}
   [& args]
   (let [[{:keys [^String name ^Integer stack-size ^FiberScheduler scheduler] :or {stack-size -1}} body] (kps-args args)]
     `(let [f#     (suspendable! ~(if (== (count body) 1) (first body) `(fn [] (apply (suspendable! (first ~body)) (rest ~body)))))
-           fiber# (co.paralleluniverse.fibers.Fiber. ~name (get-scheduler ~scheduler) (int ~stack-size) (->suspendable-callable f#))]
+           fiber# (co.paralleluniverse.fibers.Fiber. ~name (get-scheduler ~scheduler) (FiberStackSizes/stackSize f# (int ~stack-size)) (->suspendable-callable f#))]
        (.start fiber#))))
 
 ;(ann current-fiber [-> Fiber])
@@ -371,6 +373,47 @@
   [& body]
   `(spawn-fiber (fn [] ~@body)))
 
+(defn run-batch
+  "Calls f, which starts many strands, in a fiber running in `scheduler`, and returns its result.
+  A fiber started by another fiber is pushed onto the local queue of the fork/join worker running it, which is much
+  cheaper than submitting each fiber to the pool from the outside."
+  {:no-doc true}
+  [^FiberScheduler scheduler f]
+  (if (current-fiber)
+    (f)
+    (join (spawn-fiber :scheduler scheduler f))))
+
+(defn spawn-fibers
+  "Creates and starts many fibers running the same function, and returns them in a vector.
+
+  n-or-args - either the number of fibers to spawn, each calling `f` with no arguments,
+              or a sequence of argument vectors, one per fiber, each applied to `f`.
+  f         - the function to run in the fibers.
+
+  The function is instrumented, and the options resolved, once for all fibers, and the fibers
+  are started as a batch.
+
+  Options:
+  :name str     - the fibers' name prefix; the fibers are named str-0, str-1, etc.
+  :stack-size n - the fibers' initial stack size
+  :scheduler    - the fiber schdeuler in which the fibers will run
+  "
+  {:arglists '([:name? :stack-size? :scheduler? n-or-args f])}
+  [& args]
+  (let [[{:keys [name stack-size scheduler] :or {stack-size -1}} [n-or-args f]] (kps-args args)
+        f (suspendable! f)
+        scheduler (get-scheduler scheduler)
+        stack-size (FiberStackSizes/stackSize f (int stack-size))
+        argvs (if (integer? n-or-args) (repeat n-or-args nil) n-or-args)]
+    (run-batch scheduler
+               (fn []
+                 (into [] (map-indexed
+                            (fn [i args]
+                              (let [^String nme (when name (str name "-" i))
+                                    g (if (seq args) (suspendable! (fn [] (apply f args))) f)]
+                                (.start (Fiber. nme scheduler (int stack-size) (->suspendable-callable g))))))
+                       argvs)))))
+
 (defmacro await
 "Calls f, which takes a callback of a single argument as its last parameter,
   with arguments args, and blocks the current fiber until the callback is called,
@@ -517,6 +560,153 @@
   ([]
    (promise nil)))
 
+;; ## Memoization
+
+(defn smemoize
+  "Returns a memoized version of a (possibly suspendable) function. Unlike clojure.core/memoize, concurrent calls
+  with the same arguments are coalesced: the function is called once, while the other callers block (if running
+  in fibers, without blocking a thread) until its result is ready. Exceptions are not cached.
+
+  Options:
+  :max-size n       - the maximum number of cached results (default: unbounded)
+  :policy p         - which result to evict when the cache is full: `:lru` (least recently used; the default)
+                      or `:lfu` (least frequently used, approximately)
+  :ttl [n unit]     - how long results are cached after they've been computed (default: forever)
+  :refresh [n unit] - how long after a result has been computed the next call recomputes it in the background,
+                      while the current result is returned. Must be shorter than `:ttl`.
+
+  Durations are given as a number of milliseconds or a `[duration unit]` pair, with `unit` as in `->timeunit`.
+  Use `smemo-stats` for the cache's counters."
+  {:arglists '([f :max-size? :policy? :ttl? :refresh?])}
+  [f & opts]
+  (let [{:keys [max-size policy ttl refresh] :or {max-size -1 policy :lru}} (apply hash-map opts)
+        ->nanos (fn [d] (cond
+                          (nil? d) -1
+                          (number? d) (convert-duration d :ms :ns)
+                          :else (convert-duration (first d) (second d) :ns)))
+        memo (SuspendableMemo. (suspendable! f) (int max-size) (= policy :lfu) (long (->nanos ttl)) (long (->nanos refresh)))
+        mf (sfn [& args] (.get memo args))]
+    (SuspendableMemo/register mf memo)
+    mf))
+
+(defn smemo-stats
+  "Returns a map of the hit, miss, coalesced-call, eviction and refresh counts,
+  as well as the current size, of a function returned by `smemoize`."
+  [f]
+  (when-let [^SuspendableMemo memo (SuspendableMemo/of f)]
+    (.getStats memo)))
+
+(defn smemo-clear!
+  "Discards all cached results of a function returned by `smemoize`."
+  [f]
+  (when-let [^SuspendableMemo memo (SuspendableMemo/of f)]
+    (.clear memo)))
+
+;; ## Rate limiting
+
+(defn ^RateLimiter rate-limiter
+  "Creates a rate limiter issuing `permits` permits per time `unit` (given as in `->timeunit`; default: seconds).
+  Up to `burst` permits (default: 1) can be acquired at once after the limiter has been idle.
+
+  The limiter has no lock, and can be shared by any number of strands. A strand acquiring a permit with `acquire!`
+  blocks exactly until the permit becomes available."
+  ([permits]
+   (rate-limiter permits :sec 1))
+  ([permits unit]
+   (rate-limiter permits unit 1))
+  ([permits unit burst]
+   (RateLimiter. (double permits) (->timeunit unit) (int burst))))
+
+(defsfn acquire!
+  "Acquires `n` permits (default: 1) from a rate limiter, blocking until they're available."
+  ([^RateLimiter rl]
+   (.acquire rl 1))
+  ([^RateLimiter rl n]
+   (.acquire rl (int n))))
+
+(defsfn try-acquire!
+  "Acquires `n` permits (default: 1) from a rate limiter if they are available immediately, or,
+  if a timeout is given, if they will become available within the timeout (blocking until they do).
+  Returns `true` if the permits have been acquired; `false` otherwise."
+  ([^RateLimiter rl]
+   (.tryAcquire rl 1))
+  ([^RateLimiter rl n]
+   (.tryAcquire rl (int n)))
+  ([^RateLimiter rl n timeout unit]
+   (.tryAcquire rl (int n) (long timeout) (->timeunit unit))))
+
+(defn ^SendPort rate-limited
+  "Returns a send port that sends messages to `port`, acquiring a permit from the rate limiter `rl` before each one.
+  The port can be used wherever a send port is expected, e.g. as the target of a pipe or a pipeline,
+  and the same limiter can be shared by any number of ports."
+  [^SendPort port ^RateLimiter rl]
+  (RateLimitedSendPort. port rl))
+
+;; ## Pooled buffers
+
+(defn ^BufferPool buffer-pool
+  "Creates a pool of byte buffers in power-of-two size classes.
+
+  Options:
+  * `:direct`   - whether the buffers are direct (default: `true`)
+  * `:min-size` - the smallest size class (default: 512)
+  * `:max-size` - the largest size class; larger buffers aren't pooled (default: 1MB)
+  * `:max-idle` - the maximum number of idle buffers kept in each size class (default: 1024)"
+  [& {:keys [direct min-size max-size max-idle] :or {direct true min-size 512 max-size (* 1024 1024) max-idle 1024}}]
+  (BufferPool. (boolean direct) (int min-size) (int max-size) (int max-idle)))
+
+(def ^BufferPool default-message-pool
+  "The pool `pooled-buffer` takes buffers from by default (heap buffers)."
+  (buffer-pool :direct false))
+
+(defn ^PooledBuffer pooled-buffer
+  "Takes a buffer with room for at least `size` bytes from a pool (by default, `default-message-pool`),
+  and returns it as a reference-counted message, with a single reference held by the caller.
+
+  Sending the message with `!`, `snd` or `>!` passes the reference to the receiver without copying
+  the buffer. Whoever holds a reference must eventually `release!` it, explicitly or with `with-buffer`;
+  once all references have been released, the buffer goes back to the pool. Buffers are never released
+  automatically when a receiver is done with them: one that isn't released is lost to the pool.
+
+  In debug mode, or if the `co.paralleluniverse.pulsar.buffers.detectLeaks` system property is `true`,
+  buffers that are garbage collected before they've been released are reported, and a buffer
+  that's been sent can only be accessed by its receiver, unless it's been retained and shared."
+  ([size]
+   (PooledBuffer/acquire default-message-pool (int size)))
+  ([^BufferPool pool size]
+   (PooledBuffer/acquire pool (int size))))
+
+(defn ^ByteBuffer byte-buffer
+  "Returns the `ByteBuffer` of a pooled buffer."
+  [^PooledBuffer b]
+  (.buffer b))
+
+(defn retain!
+  "Adds a reference to a pooled buffer, e.g. before sending it to one more receiver. Returns the buffer."
+  [^PooledBuffer b]
+  (.retain b))
+
+(defn release!
+  "Releases a reference to a pooled buffer. Returns `true` if it was the last one, and the buffer has
+  been returned to its pool."
+  [^PooledBuffer b]
+  (.release b))
+
+(defmacro with-buffer
+  "Binds `sym` to the value of `expr` - typically a received message - and evaluates the body,
+  releasing the value afterwards if it's a pooled buffer. Every receiver of a pooled buffer must
+  release it, with `with-buffer` or `release!`, or the buffer won't go back to its pool.
+
+    (with-buffer [b (rcv ch)]
+      (process (byte-buffer b)))"
+  [[sym expr] & body]
+  `(let [~sym ~expr]
+     (try
+       ~@body
+       (finally
+         (when (instance? PooledBuffer ~sym)
+           (.release ~(tagged `PooledBuffer sym)))))))
+
 ;; ## Channels
 
 #_(ann channel (IFn [AnyInteger -> Channel]
@@ -576,6 +766,8 @@
   If the channel's overflow policy is `:block` than this function will block
   if the channels' capacity is exceeded."
   [^SendPort channel message]
+  (when (instance? PooledBuffer message)
+    (.transfer ^PooledBuffer message))
   (.send channel message))
 
 ;(ann snd (All [x] [Channel x -> x]))
@@ -585,6 +777,8 @@
   Returns `true` if the operation succeeded; `false` otherwise.
   This function never blocks."
   [^SendPort channel message]
+  (when (instance? PooledBuffer message)
+    (.transfer ^PooledBuffer message))
   (.trySend channel message))
 
 #_(ann rcv (IFn [Channel -> Any]
@@ -620,6 +814,7 @@
    (cond
      (instance? SendPort channel)    (.close ^SendPort channel)
      (instance? ReceivePort channel) (.close ^ReceivePort channel)
+     (instance? PortSet channel)     (.close ^PortSet channel)
      :else (throw (IllegalArgumentException. (str (.toString ^Object channel) " is not a channel")))))
   ([^SendPort channel ^Throwable exception]
    (.close ^SendPort channel exception)))
@@ -723,11 +918,18 @@
   If an operation succeeds, returns a vector `[m ch]` with `m` being the message received if the
   operation is a `rcv`, or `nil` if it's a `snd`, and `ch` is the channel on which the succesful
   opration was performed.
-  If a timeout is set and expires before any of the operations are available, returns `nil`."
+  If a timeout is set and expires before any of the operations are available, returns `nil`.
+
+  `ports` may also be a port set (see `port-set`), in which case the `:priority` option is ignored."
   [ports & {:as opts}]
-  (let [^SelectAction sa (do-sel ports (:priority opts) (:timeout opts))]
-    (when sa
-      [(.message sa) (.port sa)])))
+  (if (instance? PortSet ports)
+    (let [millis (:timeout opts)]
+      (if millis
+        (.select ^PortSet ports (long millis) TimeUnit/MILLISECONDS)
+        (.select ^PortSet ports)))
+    (let [^SelectAction sa (do-sel ports (:priority opts) (:timeout opts))]
+      (when sa
+        [(.message sa) (.port sa)]))))
 
 (defmacro select
   "Performs a very similar operation to `sel`, but allows you to specify an action to perform depending
@@ -788,6 +990,38 @@
                              ~@a))))
                   (range) exprs))))))
 
+;; ### Port sets
+
+(defn ^PortSet port-set
+  "Creates a set of channels to receive from with `sel` (or core.async's `alts!`) over and over.
+
+  A port set keeps watching its channels between selects, rather than registering with each of
+  them on every select, so selecting from it costs the same however many channels it has.
+  To do so, it takes up to one message out of each channel ahead of time, so its channels should
+  not be received from by anyone else. A closed channel is selected once, with a `nil` message,
+  and then leaves the set.
+
+  Options:
+  :priority bool - If `true`, whenever two or more channels are ready, the one added to the set first
+                   is selected. Otherwise (the default), ready channels are selected in the order they've
+                   become ready, so that a busy channel can't starve the others."
+  [ports & {:keys [priority]}]
+  (let [ps (PortSet. (boolean priority))]
+    (doseq [port ports]
+      (.add ps ^ReceivePort port))
+    ps))
+
+(defn add-port!
+  "Adds a channel to a port set. Returns `true` if it wasn't already in the set."
+  [^PortSet ps ^ReceivePort port]
+  (.add ps port))
+
+(defn remove-port!
+  "Removes a channel from a port set. Returns `true` if it was in the set.
+  A message already taken from the channel may still be selected."
+  [^PortSet ps ^ReceivePort port]
+  (.remove ps port))
+
 ;; ### Primitive channels
 
 #_(ann int-channel (IFn [AnyInteger -> IntChannel]
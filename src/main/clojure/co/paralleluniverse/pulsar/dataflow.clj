@@ -17,6 +17,7 @@
     [co.paralleluniverse.pulsar.core :refer :all])
   (:import
     [co.paralleluniverse.strands.dataflow Val Var]
+    [co.paralleluniverse.pulsar.dataflow PropagationGraph PropagationGraph$Node]
     [java.util.concurrent TimeUnit TimeoutException]))
 
 
@@ -55,6 +56,18 @@
   ([]
    (df-val nil)))
 
+(defn df-graph
+  "Returns a new propagation graph, to be passed to `df-var`.
+
+  Vars created in a propagation graph are glitch-free: when inputs change, every affected formula is recomputed
+  exactly once, in topological order, and its dependents are only recomputed if its value has actually changed
+  (as determined by `=`). Updates made within `df-batch` are propagated together when the batch completes.
+  Watchers added with `df-watch!` are notified once per propagation, after all formulas have been recomputed.
+
+  Formulas in a propagation graph are run synchronously by the strand that updates the graph, and must not block."
+  []
+  (PropagationGraph.))
+
 (defn df-var
   "Returns a var, a variable whose value can be set multiple times and by multiple strands, and whose changing values can
   be monitored and propagated.
@@ -67,26 +80,78 @@
   The var can also be set by providing a formula function, whose return value will set the var's value.
   If the function dereferences other vars (or vals), any change to them will recompute the function and re-set this var's value.
 
+  If a graph (created with `df-graph`) is given instead of history, the var is a node in that propagation graph.
+  Its deref never blocks (it returns `nil` if the var has not been set), and its formula may only dereference
+  other vars in the same graph.
+
   history - how many historical values to maintain for each strand reading the var
+  graph - a propagation graph created with `df-graph`
   f - this var's formula function"
-  ([^long history f]
-   (let [v (Var. (int history) (->suspendable-callable (suspendable! f)))]
-     (sreify
-       clojure.lang.IDeref
-       (deref [_]
-              (.get v))
-       clojure.lang.IFn
-       (invoke
-         [this x]
-         (try
-           (.set v x)
-           this
-           (catch IllegalStateException _ nil)))
-       (toString [this] (.toString v)))))
+  ([history-or-graph f]
+   (if (instance? PropagationGraph history-or-graph)
+     (if f
+       (.formula ^PropagationGraph history-or-graph nil f)
+       (.input ^PropagationGraph history-or-graph nil nil))
+     (let [v (Var. (int history-or-graph) (->suspendable-callable (suspendable! f)))]
+       (sreify
+         clojure.lang.IDeref
+         (deref [_]
+                (.get v))
+         clojure.lang.IFn
+         (invoke
+           [this x]
+           (try
+             (.set v x)
+             this
+             (catch IllegalStateException _ nil)))
+         (toString [this] (.toString v))))))
   ([history-or-f]
-   (if (ifn? history-or-f)
-     (df-var 0 ^Ifn history-or-f)
-     (df-var (int history-or-f) nil)))
+   (cond
+     (instance? PropagationGraph history-or-f) (df-var history-or-f nil)
+     (ifn? history-or-f) (df-var 0 ^Ifn history-or-f)
+     :else (df-var (int history-or-f) nil)))
   ([]
    (df-var 0 nil)))
 
+(defmacro df-batch
+  "Executes body as a single transaction of the given propagation graph:
+  all vars set by the current strand within the body are only propagated, together, when the body completes,
+  so that every affected formula is recomputed at most once.
+  If the body throws an exception, the updates are discarded.
+  Batches may be nested: a nested batch joins the enclosing one, so its updates are propagated when the
+  outermost batch completes, and if it throws, only the updates made within it are discarded."
+  [graph & body]
+  `(let [^PropagationGraph g# ~graph]
+     (.begin g#)
+     (let [res# (try
+                  ~@body
+                  (catch Throwable t#
+                    (.abort g#)
+                    (throw t#)))]
+       (.commit g#)
+       res#)))
+
+(defn df-watch!
+  "Calls f with the new value of the given propagation-graph var whenever it changes.
+  f is called once per propagation, after all formulas in the graph have been recomputed,
+  by the strand that has updated the graph."
+  [^PropagationGraph$Node v f]
+  (.addObserver v f)
+  v)
+
+(defn df-unwatch!
+  "Removes a function added to a var with `df-watch!`."
+  [^PropagationGraph$Node v f]
+  (.removeObserver v f)
+  v)
+
+(defn recompute-counts
+  "Returns a map from every formula var in the given propagation graph to the number of times it has been recomputed.
+  Useful for profiling."
+  [^PropagationGraph graph]
+  (into {} (.getRecomputeCounts graph)))
+
+(defn reset-recompute-counts!
+  "Resets the recompute counts of all vars in the given propagation graph."
+  [^PropagationGraph graph]
+  (.resetRecomputeCounts graph))
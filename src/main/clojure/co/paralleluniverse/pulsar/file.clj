@@ -0,0 +1,357 @@
+; Pulsar: lightweight threads and Erlang-like actors for Clojure.
+; Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+;
+; This program and the accompanying materials are dual-licensed under
+; either the terms of the Eclipse Public License v1.0 as published by
+; the Eclipse Foundation
+;
+;   or (per the licensee's choosing)
+;
+; under the terms of the GNU Lesser General Public License version 3.0
+; as published by the Free Software Foundation.
+
+(ns co.paralleluniverse.pulsar.file
+  "Fiber-blocking file streams.
+
+  Readers expose a file as a channel of lines, fixed-size records or gloss frames, filled by a fiber
+  that reads ahead of the consumer. Writers append the messages sent to them in batches, and force
+  each batch to the storage device with a single fsync."
+  (:require [co.paralleluniverse.pulsar.core :refer :all]
+            [gloss.io :as gio]
+            [gloss.core.protocols :as gp])
+  (:refer-clojure :exclude [promise await])
+  (:import [co.paralleluniverse.fibers.io FiberFileChannel]
+           [co.paralleluniverse.strands.channels ReceivePort SendPort]
+           [co.paralleluniverse.strands.concurrent ReentrantReadWriteLock ReentrantReadWriteLock$ReadLock
+                                                   ReentrantReadWriteLock$WriteLock]
+           [co.paralleluniverse.pulsar LineSplitter]
+           [java.nio ByteBuffer]
+           [java.nio.channels FileChannel FileChannel$MapMode]
+           [java.nio.charset Charset]
+           [java.nio.file Path Paths OpenOption StandardOpenOption]
+           [java.io File]))
+
+(defn- ^Path ->path
+  [f]
+  (cond
+    (instance? Path f) f
+    (instance? File f) (.toPath ^File f)
+    :else (Paths/get (str f) (make-array String 0))))
+
+(defn- open-options
+  [& options]
+  (into-array OpenOption options))
+
+;; ## Reading
+
+(def ^:private read-defaults
+  {:mmap        false
+   :read-size   (* 64 1024)
+   :region-size (* 64 1024 1024)
+   :capacity    1024
+   :offset      0
+   :charset     "UTF-8"})
+
+(defsfn ^:private read-fully
+  ; reads from pos until buf is full or the file ends; returns the number of bytes read
+  [^FiberFileChannel file ^ByteBuffer buf pos]
+  (loop [n 0]
+    (if (.hasRemaining buf)
+      (let [r (.read file buf (long (+ pos n)))]
+        (if (neg? r)
+          n
+          (recur (+ n r))))
+      n)))
+
+(defsfn ^:private each-chunk
+  ; calls f with consecutive chunks of the file; all but the last are a multiple of align bytes long
+  [path opts align f]
+  (let [{:keys [mmap read-size region-size offset]} opts
+        align (long align)
+        round (fn [n] (max align (* align (quot (long n) align))))]
+    (if mmap
+      (with-open [^FileChannel file (FileChannel/open (->path path) (open-options StandardOpenOption/READ))]
+        (let [size (.size file)
+              region (long (round region-size))]
+          (loop [p (long offset)]
+            (when (< p size)
+              (let [n (min region (- size p))]
+                (f (.map file FileChannel$MapMode/READ_ONLY p n))
+                (recur (+ p n)))))))
+      (with-open [^FiberFileChannel file (FiberFileChannel/open (->path path) (open-options StandardOpenOption/READ))]
+        (let [chunk-size (long (round read-size))]
+          (loop [p (long offset)]
+            (let [buf (ByteBuffer/allocate (int chunk-size))
+                  n (long (read-fully file buf p))]
+              (when (pos? n)
+                (f (.flip buf))
+                (when (== n chunk-size)
+                  (recur (+ p n)))))))))))
+
+(defn- ^ReceivePort reader
+  [path opts align on-chunk on-end]
+  (let [ch (channel (:capacity opts) :block true false)]
+    (spawn-fiber
+      :name (str "pulsar-file-reader-" path)
+      (fn []
+        (try
+          (each-chunk path opts align (sfn [chunk] (on-chunk ch chunk)))
+          (on-end ch)
+          (close! ch)
+          (catch Exception e
+            (close! ch e)))))
+    ch))
+
+(defn ^ReceivePort lines
+  "Returns a channel of the lines of a text file, without their terminators (`\\n` or `\\r\\n`).
+
+  The channel is filled by a fiber, which reads the file in chunks and stays up to `:capacity`
+  lines ahead of the consumer. The channel is closed at the end of the file; if reading fails,
+  receiving from the channel throws the error.
+
+  Options:
+  * `:charset`     - the file's encoding (default: `\"UTF-8\"`)
+  * `:mmap`        - if `true`, the file is memory-mapped in regions of `:region-size` bytes
+                     (default: 64MB) instead of read with fiber-blocking reads of `:read-size`
+                     bytes (default: 64KB). Mapping saves a copy, but a page fault blocks the
+                     reader's thread rather than parking its fiber.
+  * `:capacity`    - how many lines the reader may read ahead (default: 1024)
+  * `:offset`      - the position in the file to start at (default: 0)"
+  [path & opts]
+  (let [opts (merge read-defaults (apply hash-map opts))
+        splitter (LineSplitter. (Charset/forName (:charset opts)))]
+    (reader path opts 1
+            (sfn [ch chunk]
+              (doseq [line (.split splitter chunk)]
+                (snd ch line)))
+            (sfn [ch]
+              (when-let [line (.flush splitter)]
+                (snd ch line))))))
+
+(defn ^ReceivePort records
+  "Returns a channel of the fixed-size records of a binary file, as `ByteBuffer`s of `size` bytes.
+  A trailing partial record is ignored.
+
+  Records are slices of the chunks the file is read in (or of its mapped regions, with `:mmap`),
+  so no record is copied. Options are the same as `lines`', except for `:charset`;
+  `:read-size` and `:region-size` are rounded down to a multiple of `size`."
+  [path size & opts]
+  (let [opts (merge read-defaults (apply hash-map opts))
+        size (long size)]
+    (reader path opts size
+            (sfn [ch ^ByteBuffer chunk]
+              (loop [p (long (.position chunk))]
+                (when (<= (+ p size) (.limit chunk))
+                  (let [b (.duplicate chunk)]
+                    (.position b (int p))
+                    (.limit b (int (+ p size)))
+                    (snd ch (.slice b)))
+                  (recur (+ p size)))))
+            (sfn [ch]
+              nil))))
+
+(defn- non-empty
+  [bufs]
+  (seq (filter #(.hasRemaining ^ByteBuffer %) bufs)))
+
+(defn ^ReceivePort frames
+  "Returns a channel of the frames of a binary file, decoded with a gloss codec.
+  Trailing bytes that don't make up a complete frame are ignored.
+
+  Options are the same as `lines`', except for `:charset`."
+  [path codec & opts]
+  (let [opts (merge read-defaults (apply hash-map opts))
+        state (volatile! [codec nil])] ; the decoder to continue with, and the bytes it hasn't consumed
+    (reader path opts 1
+            (sfn [ch chunk]
+              (let [[decoder pending] @state]
+                (vreset! state
+                         (loop [decoder decoder
+                                bufs (non-empty (concat pending [chunk]))]
+                           (if-not bufs
+                             [codec nil]
+                             (let [[ok x remainder] (gp/read-bytes decoder bufs)]
+                               (if ok
+                                 (do (snd ch x)
+                                     (recur codec (non-empty remainder)))
+                                 [x remainder])))))))
+            (sfn [ch]
+              nil))))
+
+;; ## Writing
+
+; state is nil while open, then :closed or the write error.
+; appenders hold lock's read lock from checking the state until their message is in in, and close-writer!
+; holds its write lock while closing in, so a message is never dropped by a concurrent close
+(defrecord FileWriter [^SendPort in fiber state ^ReentrantReadWriteLock lock])
+
+(deftype ^:private SyncRequest [done])
+
+(def ^:private write-defaults
+  {:append    true
+   :codec     nil
+   :charset   "UTF-8"
+   :sync      true
+   :max-batch 1024
+   :capacity  1024})
+
+(defn- ->buffers
+  [codec ^Charset charset x]
+  (cond
+    codec                              (gio/encode codec x)
+    (instance? ByteBuffer x)           [(.duplicate ^ByteBuffer x)]
+    (instance? String x)               [(ByteBuffer/wrap (.getBytes ^String x charset))]
+    (instance? (Class/forName "[B") x) [(ByteBuffer/wrap ^bytes x)]
+    :else (throw (IllegalArgumentException. (str "Cannot write a " (type x) " without a codec")))))
+
+(defn- ^ByteBuffer coalesce
+  [bufs]
+  (if (== 1 (count bufs))
+    (first bufs)
+    (let [b (ByteBuffer/allocate (int (reduce + (map #(.remaining ^ByteBuffer %) bufs))))]
+      (doseq [^ByteBuffer x bufs]
+        (.put b x))
+      (.flip b))))
+
+(defsfn ^:private write-fully
+  ; returns the number of bytes written
+  [^FiberFileChannel file ^ByteBuffer buf pos]
+  (let [n (.remaining buf)]
+    (loop [p (long pos)]
+      (when (.hasRemaining buf)
+        (recur (+ p (.write file buf p)))))
+    n))
+
+(defsfn ^:private write-loop
+  ; writes each batch of waiting messages (up to max-batch) with a single write, followed by a single force
+  [^FiberFileChannel file ^ReceivePort in position opts]
+  (let [{:keys [codec charset sync max-batch]} opts
+        charset (Charset/forName charset)]
+    (loop [position (long position)]
+      (when-let [m (rcv in)]
+        (let [ms (loop [ms [m]]
+                   (if (< (count ms) max-batch)
+                     (if-let [m (try-rcv in)]
+                       (recur (conj ms m))
+                       ms)
+                     ms))
+              requests (filter #(instance? SyncRequest %) ms)
+              n (try
+                  (let [n (long (write-fully file (coalesce (mapcat #(->buffers codec charset %)
+                                                                    (remove #(instance? SyncRequest %) ms)))
+                                             position))]
+                    (when (or (and sync (pos? n)) (seq requests))
+                      (.force file false))
+                    n)
+                  (catch Exception e
+                    (doseq [^SyncRequest r requests]
+                      (deliver (.done r) e))
+                    (throw e)))]
+          (doseq [^SyncRequest r requests]
+            (deliver (.done r) true))
+          (recur (+ position n)))))))
+
+(defn ^FileWriter file-writer
+  "Opens a file for writing, and returns a writer that appends the messages given to `append!`.
+
+  Messages are written by the writer's fiber, which writes all messages waiting to be written
+  (up to `:max-batch`) with a single write and, with `:sync`, forces them to the storage device
+  with a single fsync. So the more strands append concurrently, the fewer writes (and fsyncs)
+  each message costs.
+
+  Options:
+  * `:append`    - whether to append to an existing file or truncate it (default: `true`)
+  * `:codec`     - a gloss codec the messages are encoded with; if `nil` (the default), messages must
+                   be `ByteBuffer`s, byte arrays or strings (encoded with `:charset`, default `\"UTF-8\"`)
+  * `:sync`      - whether each batch is forced to the storage device (default: `true`); without it,
+                   data is only forced by `sync!`
+  * `:max-batch` - the maximum number of messages written together (default: 1024)
+  * `:capacity`  - the number of messages that can wait to be written before `append!` blocks (default: 1024)"
+  [path & opts]
+  (let [opts (merge write-defaults (apply hash-map opts))
+        ^FiberFileChannel file (FiberFileChannel/open (->path path)
+                                                      (if (:append opts)
+                                                        (open-options StandardOpenOption/WRITE StandardOpenOption/CREATE)
+                                                        (open-options StandardOpenOption/WRITE StandardOpenOption/CREATE
+                                                                      StandardOpenOption/TRUNCATE_EXISTING)))
+        in (channel (:capacity opts) :block false true)
+        position (if (:append opts) (.size file) 0)
+        state (atom nil)]
+    (->FileWriter in
+                  (spawn-fiber
+                    :name (str "pulsar-file-writer-" path)
+                    (fn []
+                      (try
+                        (write-loop file in position opts)
+                        (catch Exception e
+                          (reset! state e) ; before closing in, so that senders whose messages are dropped see it
+                          (close! in)
+                          (loop []
+                            (when-let [m (try-rcv in)]
+                              (when (instance? SyncRequest m)
+                                (deliver (.done ^SyncRequest m) e))
+                              (recur)))
+                          (throw e))
+                        (finally
+                          (.close file)))))
+                  state
+                  (ReentrantReadWriteLock.))))
+
+(defn- check-writer
+  [^FileWriter writer]
+  (let [s @(:state writer)]
+    (cond
+      (nil? s)                s
+      (instance? Throwable s) (throw s)
+      :else                   (throw (IllegalStateException. "File writer is closed")))))
+
+(defsfn append!
+  "Appends a message to a file opened with `file-writer`. Blocks only if too many messages are
+  waiting to be written; use `sync!` to wait until the message is on the storage device.
+  Throws the error if writing has failed, and an `IllegalStateException` if the writer has been closed.
+  A message `append!` has returned for is written before the file is closed, even if `close-writer!`
+  is called concurrently."
+  [^FileWriter writer message]
+  (let [^ReentrantReadWriteLock$ReadLock l (.readLock ^ReentrantReadWriteLock (:lock writer))]
+    (.lock l)
+    (try
+      (check-writer writer)
+      (snd (:in writer) message)
+      (finally
+        (.unlock l))))
+  (when (instance? Throwable @(:state writer))
+    (check-writer writer))) ; the writer has failed, so the message may have been dropped
+
+(defsfn sync!
+  "Blocks until all messages this strand has passed to `append!` have been written and forced to
+  the storage device. Strands calling `sync!` concurrently share a single fsync.
+  Throws the error if writing has failed, and an `IllegalStateException` if the writer has been closed."
+  [^FileWriter writer]
+  (check-writer writer)
+  (let [done (promise)]
+    (snd (:in writer) (SyncRequest. done))
+    (when @(:state writer)
+      ; the writer has failed or is closing, so the request may have been dropped; once the writer's fiber
+      ; has terminated, every request it has received has been answered
+      (try
+        (join (:fiber writer))
+        (catch Throwable _ nil))
+      (when-not (realized? done)
+        (check-writer writer)))
+    (let [r @done]
+      (if (instance? Throwable r)
+        (throw r)
+        nil))))
+
+(defsfn close-writer!
+  "Closes a writer once all messages passed to `append!` have been written, and waits until the file is closed."
+  [^FileWriter writer]
+  (let [^ReentrantReadWriteLock$WriteLock l (.writeLock ^ReentrantReadWriteLock (:lock writer))]
+    (.lock l)
+    (try
+      (compare-and-set! (:state writer) nil :closed)
+      (close! (:in writer))
+      (finally
+        (.unlock l))))
+  (join (:fiber writer))
+  nil)
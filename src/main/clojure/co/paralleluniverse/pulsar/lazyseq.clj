@@ -10,62 +10,201 @@
  ; under the terms of the GNU Lesser General Public License version 3.0
  ; as published by the Free Software Foundation.
  
- (ns co.paralleluniverse.pulsar.lazyseq
-   "Functions to transform a channel into a laze seq"
-   (:require
-     [co.paralleluniverse.pulsar.core :refer :all]
-     [clojure.core.match :refer [match]])
-   (:refer-clojure :exclude [promise await
-                             ;filter
-                             ])
-   (:import
-     [co.paralleluniverse.strands.channels Channel SendPort ReceivePort]
-     [co.paralleluniverse.pulsar ClojureHelper SuspendableLazySeq]))
- 
- ;; We don't need to make most seq functions suspendable because of the way lazy-seqs work
- ;; but we do need to call the lazy-seq body more than once (on each resume), and the default
- ;; implementation adds the ^:once metadata which clears closure during the first call.
- ;; Here, lazy-seq is defined without the :once tag.
-;(defmacro lazy-seq
-;  "Takes a body of expressions that returns an ISeq or nil, and yields
-;  a Seqable object that will invoke the body only the first time seq
-;  is called, and will cache the result and return it on all subsequent
-;  seq calls. See also - realized?"
-;  [& body]
-;  `(new co.paralleluniverse.pulsar.SuspendableLazySeq (fn [] ~@body)))
-;;  `(new clojure.lang.LazySeq (fn [] ~@body)))
-;;  (list 'new 'clojure.lang.LazySeq (list* '^{:once true} fn* [] body)))
+(ns co.paralleluniverse.pulsar.lazyseq
+  "Functions to transform a channel into a lazy seq, and suspendable versions of the common seq functions
+  that can consume such seqs in fibers.
+
+  The seq functions in this namespace are used exactly like their `clojure.core` counterparts, but
+  they produce and consume seqs that may be realized by suspending the current fiber (like those returned
+  by `channel->lazy-seq`). `clojure.core`'s own seq functions are left uninstrumented, so they can't be
+  used to realize such seqs in a fiber."
+  (:require
+    [co.paralleluniverse.pulsar.core :refer :all]
+    [clojure.core.match :refer [match]])
+  (:refer-clojure :exclude [promise await
+                            lazy-seq map filter remove keep take take-while drop drop-while
+                            partition reduce doall dorun nthnext nthrest])
+  (:import
+    [co.paralleluniverse.strands.channels Channel SendPort ReceivePort]
+    [co.paralleluniverse.pulsar ClojureHelper SuspendableLazySeq]
+    [clojure.lang ISeq]))
+
+;; Unlike clojure.core/lazy-seq, the body of a suspendable lazy seq may be called more than once (on each resume),
+;; so it must not be tagged with ^:once, which clears the closure during the first call.
+(defmacro lazy-seq
+  "Takes a body of expressions that returns an ISeq or nil, and yields
+  a Seqable object that will invoke the body only the first time seq
+  is called, and will cache the result and return it on all subsequent
+  seq calls. Unlike `clojure.core/lazy-seq`, the body may suspend the fiber
+  realizing the seq."
+  [& body]
+  `(co.paralleluniverse.pulsar.SuspendableLazySeq. (sfn [] ~@body)))
+
+;; Seqs are only ever realized through SuspendableLazySeq/seq, which is the only seq entry point that needs to be
+;; instrumented (see META-INF/suspendables). Once a seq has been realized, first and more never suspend.
+(defmacro ^:private sseq
+  [coll]
+  `(SuspendableLazySeq/seq ~coll))
+
+(defmacro ^:private sfirst
+  [s]
+  `(.first ^ISeq ~s))
+
+(defmacro ^:private smore
+  [s]
+  `(.more ^ISeq ~s))
 
 (defn channel->lazy-seq
   "Turns a channel into a lazy-seq."
   ([^ReceivePort channel]
-   (clojure.lang.LazySeq.
-     (sfn [] (when-let [m (.receive channel)]
-      (cons m (channel->lazy-seq channel))))))
+   (lazy-seq
+     (when-let [m (.receive channel)]
+       (cons m (channel->lazy-seq channel)))))
   ([^ReceivePort channel timeout unit]
-   (clojure.lang.LazySeq.
-     (sfn [] (when-let [m (.receive channel (long timeout) unit)]
-      (cons m (channel->lazy-seq channel timeout unit)))))))
-
-(suspendable! filter)
-(suspendable! doall)
-(suspendable! dorun)
-(suspendable! take)
-(suspendable! take-while)
-(suspendable! drop)
-(suspendable! map)
-(suspendable! nthnext)
-(suspendable! nthrest)
-
-;(defn filter
-;  "Returns a lazy sequence of the items in coll for which
-;  (pred item) returns true. pred must be free of side-effects."
-;  {:added "1.0"
-;   :static true}
-;  ([pred coll]
-;   (clojure.lang.LazySeq.
-;     (sfn [] (when-let [s (seq coll)]
-;      (let [f (first s)]
-;        (if (pred f)
-;          (cons f (filter pred (rest s)))
-;          (filter pred (rest s)))))))))
\ No newline at end of file
+   (lazy-seq
+     (when-let [m (.receive channel (long timeout) unit)]
+       (cons m (channel->lazy-seq channel timeout unit))))))
+
+(defsfn map
+  "Returns a lazy sequence consisting of the result of applying f to the
+  items of coll (or to the set of first items of c1 and c2, followed by
+  the second items and so on, until either is exhausted)."
+  ([f coll]
+   (lazy-seq
+     (when-let [s (sseq coll)]
+       (cons (f (sfirst s)) (map f (smore s))))))
+  ([f c1 c2]
+   (lazy-seq
+     (let [s1 (sseq c1) s2 (sseq c2)]
+       (when (and s1 s2)
+         (cons (f (sfirst s1) (sfirst s2))
+               (map f (smore s1) (smore s2))))))))
+
+(defsfn filter
+  "Returns a lazy sequence of the items in coll for which
+  (pred item) returns true."
+  [pred coll]
+  (lazy-seq
+    (loop [s (sseq coll)]
+      (when s
+        (let [x (sfirst s)]
+          (if (pred x)
+            (cons x (filter pred (smore s)))
+            (recur (sseq (smore s)))))))))
+
+(defsfn remove
+  "Returns a lazy sequence of the items in coll for which
+  (pred item) returns false."
+  [pred coll]
+  (filter (sfn [x] (not (pred x))) coll))
+
+(defsfn keep
+  "Returns a lazy sequence of the non-nil results of (f item)."
+  [f coll]
+  (lazy-seq
+    (loop [s (sseq coll)]
+      (when s
+        (let [x (f (sfirst s))]
+          (if (nil? x)
+            (recur (sseq (smore s)))
+            (cons x (keep f (smore s)))))))))
+
+(defsfn take
+  "Returns a lazy sequence of the first n items in coll, or all items if
+  there are fewer than n."
+  [n coll]
+  (lazy-seq
+    (when (pos? n)
+      (when-let [s (sseq coll)]
+        (cons (sfirst s) (take (dec n) (smore s)))))))
+
+(defsfn take-while
+  "Returns a lazy sequence of successive items from coll while
+  (pred item) returns true."
+  [pred coll]
+  (lazy-seq
+    (when-let [s (sseq coll)]
+      (let [x (sfirst s)]
+        (when (pred x)
+          (cons x (take-while pred (smore s))))))))
+
+(defsfn nthrest
+  "Returns the nth rest of coll, coll when n is 0."
+  [coll n]
+  (loop [n n xs coll]
+    (if-let [s (and (pos? n) (sseq xs))]
+      (recur (dec n) (smore s))
+      xs)))
+
+(defsfn nthnext
+  "Returns the nth next of coll, (seq coll) when n is 0."
+  [coll n]
+  (loop [n n s (sseq coll)]
+    (if (and s (pos? n))
+      (recur (dec n) (sseq (smore s)))
+      s)))
+
+(defsfn drop
+  "Returns a lazy sequence of all but the first n items in coll."
+  [n coll]
+  (lazy-seq
+    (nthnext coll n)))
+
+(defsfn drop-while
+  "Returns a lazy sequence of the items in coll starting from the first
+  item for which (pred item) returns false."
+  [pred coll]
+  (lazy-seq
+    (loop [s (sseq coll)]
+      (if (and s (pred (sfirst s)))
+        (recur (sseq (smore s)))
+        s))))
+
+(defsfn partition
+  "Returns a lazy sequence of vectors of n items each, at offsets step
+  apart. If step is not supplied, defaults to n, i.e. the partitions
+  do not overlap. Incomplete partitions at the end are dropped."
+  ([n coll]
+   (partition n n coll))
+  ([n step coll]
+   (lazy-seq
+     (loop [p (transient []) i 0 s (sseq coll)]
+       (if (== i n)
+         (cons (persistent! p) (partition n step (nthrest coll step)))
+         (when s
+           (recur (conj! p (sfirst s)) (inc i) (sseq (smore s)))))))))
+
+(defsfn reduce
+  "Like `clojure.core/reduce`, but can consume a seq whose realization suspends the fiber."
+  ([f coll]
+   (if-let [s (sseq coll)]
+     (reduce f (sfirst s) (smore s))
+     (f)))
+  ([f val coll]
+   (loop [acc val s (sseq coll)]
+     (cond
+       (reduced? acc) @acc
+       s (recur (f acc (sfirst s)) (sseq (smore s)))
+       :else acc))))
+
+(defsfn dorun
+  "Realizes a lazy seq for its side effects, returning nil.
+  If n is supplied, realizes at most n items."
+  ([coll]
+   (loop [s (sseq coll)]
+     (when s
+       (recur (sseq (smore s))))))
+  ([n coll]
+   (loop [n n s (sseq coll)]
+     (when (and s (pos? n))
+       (recur (dec n) (sseq (smore s)))))))
+
+(defsfn doall
+  "Realizes a lazy seq, returning the seq itself.
+  If n is supplied, realizes at most n items."
+  ([coll]
+   (dorun coll)
+   coll)
+  ([n coll]
+   (dorun n coll)
+   coll))
@@ -0,0 +1,312 @@
+; Pulsar: lightweight threads and Erlang-like actors for Clojure.
+; Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+;
+; This program and the accompanying materials are dual-licensed under
+; either the terms of the Eclipse Public License v1.0 as published by
+; the Eclipse Foundation
+;
+;   or (per the licensee's choosing)
+;
+; under the terms of the GNU Lesser General Public License version 3.0
+; as published by the Free Software Foundation.
+
+(ns co.paralleluniverse.pulsar.net
+  "Fiber-based TCP servers and clients.
+
+  A server accepts connections in a fiber, and hands each one to a handler running in a fiber
+  or as an actor of its own. All socket IO is fiber-blocking, so connections cost fibers, not threads.
+  Messages are framed with gloss codecs, or passed as raw byte buffers."
+  (:require [co.paralleluniverse.pulsar.core :refer :all]
+            [co.paralleluniverse.pulsar.actors :as actors]
+            [gloss.io :as gio]
+            [gloss.core.protocols :as gp])
+  (:refer-clojure :exclude [promise await])
+  (:import [co.paralleluniverse.fibers.io FiberSocketChannel FiberServerSocketChannel]
+           [co.paralleluniverse.strands.channels SendPort ReceivePort]
+           [co.paralleluniverse.pulsar BufferPool]
+           [java.nio ByteBuffer]
+           [java.nio.channels ClosedChannelException InterruptedByTimeoutException]
+           [java.net InetSocketAddress StandardSocketOptions]
+           [java.util.concurrent TimeUnit]
+           [java.util.concurrent.atomic AtomicBoolean]
+           [org.slf4j Logger LoggerFactory]))
+
+(def ^:private ^Logger log (LoggerFactory/getLogger "co.paralleluniverse.pulsar.net"))
+
+;; ## Buffers
+
+(def ^BufferPool default-buffer-pool
+  "The pool of direct buffers connections read into, unless given another with `:buffer-pool`.
+  Each connection holds a single buffer for as long as it's open."
+  (buffer-pool))
+
+(defn- ^ByteBuffer copy-out
+  ; copies the remaining bytes of the given buffers into a new heap buffer
+  [bufs]
+  (let [b (ByteBuffer/allocate (int (reduce + (map #(.remaining ^ByteBuffer %) bufs))))]
+    (doseq [^ByteBuffer buf bufs]
+      (.put b (.duplicate buf)))
+    (.flip b)))
+
+(defn- ^ByteBuffer ->buffer
+  [x]
+  (cond
+    (instance? ByteBuffer x) x
+    (instance? (Class/forName "[B") x) (ByteBuffer/wrap ^bytes x)
+    :else (throw (IllegalArgumentException. (str "Cannot write a " (type x) " without a codec")))))
+
+;; ## Connections
+
+(defrecord Connection [^FiberSocketChannel socket ^ReceivePort in ^SendPort out])
+
+(def ^:private defaults
+  {:mode             :fiber
+   :codec            nil
+   :buffer-pool      nil
+   :read-buffer-size 8192
+   :idle-timeout     0
+   :max-write-batch  64
+   :in-capacity      64
+   :out-capacity     64
+   :backlog          1024
+   :tcp-no-delay     true})
+
+(defn- non-empty
+  [bufs]
+  (seq (filter #(.hasRemaining ^ByteBuffer %) bufs)))
+
+(defsfn ^:private decode-frames
+  ; decodes and delivers all complete frames in the pending bytes followed by those just read into buf.
+  ; returns the leftover bytes (the beginning of a frame not yet received in full), copied out of buf,
+  ; which is reused by the next read. A frame that straddles reads is decoded from the start once it's
+  ; complete, so no decoder state refers to buf, and each of its bytes is copied once.
+  [codec pending ^ByteBuffer buf on-message]
+  (loop [bufs (non-empty (conj (vec pending) (.duplicate buf)))
+         first? true]
+    (when bufs
+      (let [[ok x remainder] (gp/read-bytes codec bufs)]
+        (cond
+          ok     (do (on-message x)
+                     (recur (non-empty remainder) false))
+          first? (conj (vec pending) (copy-out [buf])) ; no frame completed: nothing has been consumed
+          :else  [(copy-out bufs)])))))                ; pending was consumed by the first frame; bufs are in buf
+
+(defsfn ^:private read-loop
+  ; returns :eof or :idle.
+  ; all reads go into a single buffer taken from the pool, which frames are decoded from in place
+  [^FiberSocketChannel socket codec ^BufferPool pool read-size idle-timeout on-message]
+  (let [^ByteBuffer buf (.acquire pool (int read-size))]
+    (try
+      (loop [pending nil]
+        (.limit (.clear buf) (int read-size)) ; the pool may hand out a larger buffer
+        (let [n (try
+                  (if (pos? idle-timeout)
+                    (.read socket buf (long idle-timeout) TimeUnit/MILLISECONDS)
+                    (.read socket buf))
+                  (catch InterruptedByTimeoutException e
+                    :idle))]
+          (cond
+            (= n :idle)        :idle
+            (neg? (long n))    :eof
+            (zero? (long n))   (recur pending)
+            (nil? codec)       (do (on-message (copy-out [(.flip buf)])) ; raw bytes outlive the read
+                                   (recur nil))
+            :else              (recur (decode-frames codec pending (.flip buf) on-message)))))
+      (finally
+        (.release pool buf)))))
+
+(defsfn ^:private write-fully
+  [^FiberSocketChannel socket ^"[Ljava.nio.ByteBuffer;" bufs]
+  (let [n (alength bufs)]
+    (loop [i 0]
+      (let [i (long (loop [i i]
+                      (if (and (< i n) (not (.hasRemaining ^ByteBuffer (aget bufs i))))
+                        (recur (inc i))
+                        i)))]
+        (when (< i n)
+          (.write socket bufs (int i) (int (- n i)))
+          (recur i))))))
+
+(defsfn ^:private write-loop
+  ; coalesces all messages waiting in out (up to max-batch) into a single gathering write
+  [^FiberSocketChannel socket ^ReceivePort out codec max-batch]
+  (loop []
+    (when-let [m (rcv out)]
+      (let [ms (loop [ms [m]]
+                 (if (< (count ms) max-batch)
+                   (if-let [m (try-rcv out)]
+                     (recur (conj ms m))
+                     ms)
+                   ms))]
+        (write-fully socket (into-array ByteBuffer (mapcat #(if codec (gio/encode codec %) [(->buffer %)]) ms)))
+        (recur)))))
+
+(defn- start-io
+  [^Connection conn opts on-message on-close]
+  (let [{:keys [codec buffer-pool read-buffer-size idle-timeout max-write-batch tcp-no-delay]} opts
+        ^FiberSocketChannel socket (:socket conn)
+        closed (AtomicBoolean.)
+        on-close (sfn [reason]
+                   (when (.compareAndSet closed false true)
+                     (on-close reason)))]
+    (.setOption socket StandardSocketOptions/TCP_NODELAY (boolean tcp-no-delay))
+    (spawn-fiber
+      (fn []
+        (try
+          (write-loop socket (:out conn) codec max-write-batch)
+          (catch Exception e
+            (on-close e)) ; before the reader sees the socket closed
+          (finally
+            ; so that write! doesn't block on a channel no one receives from
+            (close! (:out conn))
+            (.close socket)))))
+    (spawn-fiber
+      (fn []
+        (on-close (try
+                    (read-loop socket codec (or buffer-pool default-buffer-pool) read-buffer-size idle-timeout on-message)
+                    (catch Exception e
+                      e)))))
+    conn))
+
+(defn- ^Connection channel-connection
+  [socket opts]
+  (let [{:keys [in-capacity out-capacity]} opts
+        in (channel in-capacity :block true true)
+        out (channel out-capacity :block)
+        conn (->Connection socket in out)]
+    (start-io conn opts
+              (sfn [m] (snd in m))
+              (sfn [reason]
+                (if (instance? Throwable reason)
+                  (close! in reason)
+                  (close! in))))))
+
+(defn- actor-connection
+  [socket handler opts]
+  (let [out (channel (:out-capacity opts) :block)
+        conn (->Connection socket nil out)
+        actor (actors/spawn handler conn)]
+    (spawn-fiber
+      (fn []
+        (try
+          (join actor)
+          (catch Exception e
+            (.warn log "Connection actor {} has died" actor e))
+          (finally
+            (close! out)))))
+    (start-io conn opts
+              (sfn [m] (actors/! actor m))
+              (sfn [reason]
+                (actors/! actor [::closed reason])))))
+
+(defsfn write!
+  "Sends a message over a connection. The message is encoded with the connection's codec
+  or, if it has none, must be a `ByteBuffer` or a byte array.
+
+  Messages are written by the connection's writer fiber, which coalesces all messages
+  waiting to be written into a single (gathering) socket write. Blocks if too many
+  messages are waiting. Once the connection has been closed, or writing to it has failed,
+  messages are discarded."
+  [conn message]
+  (snd (:out conn) message))
+
+(defsfn read!
+  "Receives the next message from a connection served in `:fiber` mode or opened with `connect`.
+  Returns `nil` when the peer has closed the connection (or, if a timeout is given and it expires);
+  if the connection has failed, the error is thrown."
+  ([conn]
+   (rcv (:in conn)))
+  ([conn timeout unit]
+   (rcv (:in conn) timeout unit)))
+
+(defn close-connection!
+  "Closes a connection once all messages passed to `write!` have been written."
+  [conn]
+  (close! (:out conn)))
+
+(defsfn ^Connection connect
+  "Opens a connection to a TCP server. Messages are read with `read!` and written with `write!`.
+
+  Options are the same as `start-server`'s, except for `:mode` and `:backlog`."
+  [^String host port & opts]
+  (let [opts (merge defaults (apply hash-map opts))
+        socket (FiberSocketChannel/open (InetSocketAddress. host (int port)))]
+    (channel-connection socket opts)))
+
+;; ## Servers
+
+(defrecord Server [^FiberServerSocketChannel socket acceptor port])
+
+(defn- serve
+  [socket handler opts]
+  (if (= (:mode opts) :actor)
+    (actor-connection socket handler opts)
+    (let [conn (channel-connection socket opts)]
+      (spawn-fiber
+        (fn []
+          (try
+            (handler conn)
+            (finally
+              (close-connection! conn))))))))
+
+(defn ^Server start-server
+  "Starts a TCP server, and returns it.
+
+  port    - the port to listen on; if 0, an ephemeral port is chosen (see `server-port`)
+  handler - a function taking a connection, called once for every accepted connection
+
+  The connection is served by two fibers: a reader, which decodes incoming messages and delivers
+  them to the handler, and a writer, which writes the messages given to `write!`.
+  With `:mode :fiber`, the handler runs in a fiber of its own, and receives messages with `read!`;
+  the connection is closed once it returns. With `:mode :actor`, the handler is spawned as an actor,
+  which receives the messages in its mailbox, followed by `[::closed reason]` (`reason` being
+  `:eof`, `:idle` or the exception a read or a write has failed with); the connection is closed when
+  the actor terminates.
+
+  Options:
+  * `:mode`             - `:fiber` (the default) or `:actor`
+  * `:host`             - the address to bind to (default: all interfaces)
+  * `:codec`            - a gloss codec framing the messages; if `nil` (the default), messages
+                          are `ByteBuffer`s holding (a copy of) whatever bytes each socket read has
+                          returned. Frames are decoded directly from the connection's read buffer,
+                          which is reused, so the codec's values must not share its bytes (as those
+                          of gloss's `finite-block` do)
+  * `:buffer-pool`      - the pool the connection's read buffer is taken from; it is returned to the
+                          pool once the connection is closed (default: `default-buffer-pool`)
+  * `:read-buffer-size` - the size of the read buffer, i.e. of each socket read (default: 8192)
+  * `:idle-timeout`     - if positive, a connection on which nothing has been received for this
+                          many milliseconds is treated as if the peer has closed it: `read!` returns
+                          `nil`, or the actor receives `[::closed :idle]` (default: 0)
+  * `:max-write-batch`  - the maximum number of messages coalesced into a single write (default: 64)
+  * `:in-capacity`      - the number of received messages that can wait for `read!` (default: 64)
+  * `:out-capacity`     - the number of messages that can wait to be written (default: 64)
+  * `:backlog`          - the listen backlog (default: 1024)
+  * `:tcp-no-delay`     - whether to disable Nagle's algorithm (default: `true`); as writes are
+                          coalesced anyway, there's little to gain from delaying them"
+  [port handler & opts]
+  (let [opts (merge defaults (apply hash-map opts))
+        {:keys [^String host backlog]} opts
+        handler (suspendable! handler)
+        ^FiberServerSocketChannel ss (-> (FiberServerSocketChannel/open)
+               (.bind (if host (InetSocketAddress. host (int port)) (InetSocketAddress. (int port))) (int backlog)))
+        acceptor (spawn-fiber
+                   :name "pulsar-net-acceptor"
+                   (fn []
+                     (loop []
+                       (when-let [socket (try
+                                           (.accept ss)
+                                           (catch ClosedChannelException e
+                                             nil))]
+                         (serve socket handler opts)
+                         (recur)))))]
+    (->Server ss acceptor (.getPort ^InetSocketAddress (.getLocalAddress ss)))))
+
+(defn server-port
+  "Returns the port a server is listening on."
+  [^Server server]
+  (:port server))
+
+(defn stop-server
+  "Stops accepting connections. Open connections are not affected."
+  [^Server server]
+  (.close ^FiberServerSocketChannel (:socket server)))
@@ -20,6 +20,8 @@
   (:import
     [co.paralleluniverse.strands.channels Channels Channel ReceivePort SendPort]
     [co.paralleluniverse.strands SuspendableAction2]
+    [co.paralleluniverse.pulsar.rx TemporalPorts ChannelPublisher ChannelSubscriber]
+    [org.reactivestreams Publisher Subscriber]
     [com.google.common.base Function Predicate]))
 
 (defn- ^Function fn->guava-fn
@@ -89,6 +91,64 @@
   ([port & ports]
    (Channels/group ^java.util.Collection (cons port ports))))
 
+;; ## Windowing and temporal operators
+;;
+;; These operators run in a fiber of their own, and time their buffers with Pulsar's shared timer,
+;; so their timing is only as precise as the timer's tick (10ms by default).
+
+(defn ^ReceivePort buffer-count
+  "Creates a receive-port (a read-only channel) that receives vectors of `n` messages from the given channel ch.
+  If `skip` is given, a new buffer is started every `skip` messages (by default, every `n` messages), so buffers
+  overlap if `skip` is smaller than `n`, and some messages are dropped if it's larger.
+  When ch is closed, the incomplete buffers (if any) are received, oldest first, before the returned port is closed."
+  ([n ch]
+   (buffer-count n n ch))
+  ([n skip ^ReceivePort ch]
+   (TemporalPorts/bufferCount ch (int n) (int skip))))
+
+(defn ^ReceivePort buffer-time
+  "Creates a receive-port (a read-only channel) that receives vectors of the messages received from the given
+  channel ch within `ms` milliseconds of the first message in each vector. If `max-size` is given, a vector is
+  also emitted as soon as it has `max-size` messages. Empty vectors are never emitted."
+  ([ms ch]
+   (buffer-time ms 0 ch))
+  ([ms max-size ^ReceivePort ch]
+   (TemporalPorts/bufferTime ch (long ms) (int max-size))))
+
+(defn ^ReceivePort window
+  "Creates a receive-port (a read-only channel) that receives a new receive-port for every `n` messages received
+  from the given channel ch. Each of those ports receives the next `n` messages and is then closed."
+  [n ^ReceivePort ch]
+  (TemporalPorts/window ch (int n)))
+
+(defn ^ReceivePort throttle
+  "Creates a receive-port (a read-only channel) that receives a message from the given channel ch, and then
+  drops all messages from ch for the following `ms` milliseconds."
+  [ms ^ReceivePort ch]
+  (TemporalPorts/throttle ch (long ms)))
+
+(defn ^ReceivePort debounce
+  "Creates a receive-port (a read-only channel) that receives a message from the given channel ch only after
+  `ms` milliseconds have passed without ch receiving a newer message.
+  The last message is always received when ch is closed."
+  [ms ^ReceivePort ch]
+  (TemporalPorts/debounce ch (long ms)))
+
+(defn ^ReceivePort sample
+  "Creates a receive-port (a read-only channel) that receives the most recent message from the given channel ch
+  at most once every `ms` milliseconds, and only if ch has received a new message since."
+  [ms ^ReceivePort ch]
+  (TemporalPorts/sample ch (long ms)))
+
+(defn ^ReceivePort distinct-until-changed
+  "Creates a receive-port (a read-only channel) that receives the messages from the given channel ch, dropping
+  messages equal to the one preceding them. If `keyfn` is given, messages are compared by `(keyfn message)`.
+  `keyfn` must not block."
+  ([ch]
+   (distinct-until-changed nil ch))
+  ([keyfn ^ReceivePort ch]
+   (TemporalPorts/distinctUntilChanged ch keyfn)))
+
 (defn fiber-transform
   "Spawns a fiber that runs the supplied function `f`, which is passed the
   supplied receive-port `in` and send-port `out`"
@@ -126,4 +186,23 @@
                                         (nil? v) v
                                         (instance? ReceivePort v) v
                                         (sequential? v) (seq->channel v)
-                                        :else (singleton-channel v)))))))
\ No newline at end of file
+                                        :else (singleton-channel v)))))))
+
+;; ## Reactive Streams
+
+(defn ^Publisher publisher
+  "Returns a Reactive Streams `Publisher` that publishes the messages received from the given channel ch.
+  Each subscriber is served by its own fiber, so multiple subscribers compete for ch's messages.
+  Subscriptions complete when ch is closed, and fail if ch is closed with an exception."
+  [^ReceivePort ch]
+  (ChannelPublisher. ch))
+
+(defn ^Subscriber subscriber
+  "Returns a Reactive Streams `Subscriber` that sends the elements it receives to the given channel ch.
+  Demand is requested in batches to keep a buffer of `buffer-size` elements (16 by default) full, so the publisher
+  is never blocked by ch. ch is closed when the publisher completes, or closed with the publisher's exception
+  if it fails."
+  ([ch]
+   (subscriber 16 ch))
+  ([buffer-size ^SendPort ch]
+   (ChannelSubscriber. ch (int buffer-size))))
@@ -0,0 +1,116 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.actors;
+
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.SimpleConditionSynchronizer;
+import co.paralleluniverse.strands.Strand;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * High/low watermark backpressure for a {@link PulsarActor}'s mailbox.
+ * <p>
+ * Counts the messages sent to the actor with {@code !} that the actor hasn't yet received. Once the count reaches the
+ * high watermark, the actor is <i>under pressure</i>, and strands sending it messages block until the actor has
+ * drained its mailbox down to the low watermark; until then, sends never block. The actor never blocks sending
+ * messages to itself, and once it has terminated, no one blocks sending it messages.
+ * <p>
+ * Watermarks can't be combined with a bounded mailbox that drops messages when it overflows, as the dropped messages
+ * would never be received, and so would be counted as pending forever.
+ */
+public final class MailboxWatermarks {
+    private final int high;
+    private final int low;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final SimpleConditionSynchronizer drained = new SimpleConditionSynchronizer(this);
+    private volatile boolean pressure;
+    private volatile boolean terminated;
+
+    public MailboxWatermarks(int high, int low) {
+        if (high <= 0 || low < 0 || low >= high)
+            throw new IllegalArgumentException("watermarks must satisfy 0 <= low < high: high=" + high + " low=" + low);
+        this.high = high;
+        this.low = low;
+    }
+
+    public int getHigh() {
+        return high;
+    }
+
+    public int getLow() {
+        return low;
+    }
+
+    /**
+     * The number of messages sent but not yet received.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Whether senders are currently blocked (or would block).
+     */
+    public boolean isUnderPressure() {
+        return pressure;
+    }
+
+    void beforeSend(Actor target) throws SuspendExecution {
+        if (terminated)
+            return; // the message won't be received
+        if (pressure && Actor.currentActor() != target)
+            awaitDrained();
+        if (pending.incrementAndGet() >= high && !terminated)
+            pressure = true;
+    }
+
+    void sendFailed() {
+        received();
+    }
+
+    void received() {
+        int p;
+        do {
+            p = pending.get();
+            if (p == 0)
+                return; // the message hasn't been counted (e.g. it's been sent directly to the ActorRef)
+        } while (!pending.compareAndSet(p, p - 1));
+        if (pressure && p - 1 <= low) {
+            pressure = false;
+            drained.signalAll();
+        }
+    }
+
+    /**
+     * Called when the actor terminates; releases the blocked senders.
+     */
+    void terminated() {
+        terminated = true;
+        pressure = false;
+        drained.signalAll();
+    }
+
+    private void awaitDrained() throws SuspendExecution {
+        final Object token = drained.register();
+        try {
+            for (int i = 0; pressure && !terminated; i++)
+                drained.await(i);
+        } catch (InterruptedException e) {
+            Strand.currentStrand().interrupt(); // send isn't interruptible; let the sender see the interrupt later
+        } finally {
+            drained.unregister(token);
+        }
+    }
+}
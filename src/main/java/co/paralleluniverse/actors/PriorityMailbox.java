@@ -0,0 +1,151 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.actors;
+
+import clojure.lang.IFn;
+import clojure.lang.Util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * Orders the messages of a {@link PulsarActor} by priority.
+ * <p>
+ * Messages are still sent to the actor's (unbounded) mailbox, but whenever the actor receives, all messages waiting in
+ * the mailbox are moved into a balanced tree ordered by the priority key function, from which they are then received:
+ * greatest key first, and in arrival order among messages with equal keys. Lifecycle messages precede all others.
+ * Both insertion and taking the first message are O(log n); unlike a heap, the tree can also be traversed in order,
+ * which selective receive requires.
+ * <p>
+ * Only accessed by the actor's own strand.
+ */
+final class PriorityMailbox {
+    private final IFn key;
+    private final TreeSet<Entry> messages = new TreeSet<Entry>();
+    private long seq;
+
+    PriorityMailbox(IFn key) {
+        this.key = key;
+    }
+
+    /**
+     * Removes and returns the highest priority message, or {@code null} if there are none.
+     */
+    Object poll(Actor a) {
+        drain(a);
+        final Entry e = messages.pollFirst();
+        return e != null ? e.message : null;
+    }
+
+    /**
+     * Adds a message just received from the mailbox, and returns the highest priority message.
+     */
+    Object offerAndPoll(Actor a, Object m) {
+        add(m);
+        return poll(a);
+    }
+
+    Cursor iterator(Actor a) {
+        drain(a);
+        return new Cursor(a);
+    }
+
+    private Entry drain(Actor a) {
+        Entry min = null;
+        for (Object m; (m = a.mailbox().tryReceive()) != null;) {
+            final Entry e = add(m);
+            if (min == null || e.compareTo(min) < 0)
+                min = e;
+        }
+        return min;
+    }
+
+    private Entry add(Object m) {
+        final Entry e = m instanceof LifecycleMessage
+                ? new Entry(m, null, true, seq++)
+                : new Entry(m, key.invoke(m), false, seq++);
+        messages.add(e);
+        return e;
+    }
+
+    /**
+     * Traverses the messages in priority order for a selective receive. Messages arriving during the traversal are
+     * picked up when it reaches its end (or earlier, if they precede the current position).
+     */
+    final class Cursor implements Iterator<Object> {
+        private final Actor actor;
+        private Entry current;
+        private Entry next;
+
+        private Cursor(Actor actor) {
+            this.actor = actor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            final Entry min = drain(actor);
+            if (min != null && current != null && min.compareTo(current) < 0)
+                current = null; // start over, so that the new message is not missed
+            next = current == null ? (messages.isEmpty() ? null : messages.first()) : messages.higher(current);
+            return next != null;
+        }
+
+        @Override
+        public Object next() {
+            if (next == null && !hasNext())
+                throw new NoSuchElementException();
+            current = next;
+            next = null;
+            return current.message;
+        }
+
+        Object value() {
+            return current != null ? current.message : null;
+        }
+
+        @Override
+        public void remove() {
+            if (current == null)
+                throw new IllegalStateException();
+            messages.remove(current); // current still serves as the position for higher()
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Object message;
+        final Object key;
+        final boolean lifecycle;
+        final long seq;
+
+        Entry(Object message, Object key, boolean lifecycle, long seq) {
+            this.message = message;
+            this.key = key;
+            this.lifecycle = lifecycle;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (lifecycle != o.lifecycle)
+                return lifecycle ? -1 : 1;
+            if (!lifecycle) {
+                final int c = Util.compare(o.key, key); // greatest key first
+                if (c != 0)
+                    return c;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+}
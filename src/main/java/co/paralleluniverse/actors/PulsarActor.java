@@ -16,10 +16,11 @@ package co.paralleluniverse.actors;
 import clojure.lang.*;
 import co.paralleluniverse.fibers.SuspendExecution;
 import co.paralleluniverse.pulsar.ClojureHelper;
-import co.paralleluniverse.pulsar.InstrumentedIFn;
+import co.paralleluniverse.pulsar.PooledBuffer;
 import co.paralleluniverse.strands.SuspendableCallable;
 import co.paralleluniverse.strands.queues.QueueIterator;
 
+import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -28,11 +29,50 @@ import java.util.concurrent.TimeoutException;
  */
 public class PulsarActor extends Actor<Object, Object> {
     public static void send(ActorRef actor, Object m) throws SuspendExecution {
-        actor.send(m);
+        if (m instanceof PooledBuffer)
+            ((PooledBuffer) m).transfer();
+        final PulsarActor target = watermarked(actor);
+        if (target == null) {
+            actor.send(m);
+            return;
+        }
+        target.watermarks.beforeSend(target);
+        try {
+            actor.send(m);
+        } catch (RuntimeException e) {
+            target.watermarks.sendFailed();
+            throw e;
+        }
     }
 
     public static void sendSync(ActorRef actor, Object m) throws SuspendExecution {
-        actor.sendSync(m);
+        if (m instanceof PooledBuffer)
+            ((PooledBuffer) m).transfer();
+        final PulsarActor target = watermarked(actor);
+        if (target == null) {
+            actor.sendSync(m);
+            return;
+        }
+        target.watermarks.beforeSend(target);
+        try {
+            actor.sendSync(m);
+        } catch (RuntimeException e) {
+            target.watermarks.sendFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the given actor's mailbox watermarks, or {@code null} if it has none (or isn't a local Pulsar actor).
+     */
+    public static MailboxWatermarks getWatermarks(ActorRef actor) {
+        final PulsarActor target = watermarked(actor);
+        return target != null ? target.watermarks : null;
+    }
+
+    private static PulsarActor watermarked(ActorRef actor) {
+        final Object impl = actor.getImpl();
+        return impl instanceof PulsarActor && ((PulsarActor) impl).watermarks != null ? (PulsarActor) impl : null;
     }
 
     public static Actor currentActor() {
@@ -47,11 +87,52 @@ public class PulsarActor extends Actor<Object, Object> {
     }
 
     public static Object selfReceive() throws SuspendExecution, InterruptedException {
-        return Actor.currentActor().receive();
+        final Actor a = Actor.currentActor();
+        if (isPrioritized(a))
+            return received(a, ((PulsarActor) a).receivePrioritized(0, null));
+        return received(a, a.receive());
     }
 
     public static Object selfReceive(long timeout, TimeUnit unit) throws SuspendExecution, InterruptedException {
-        return currentActor().receive(timeout, unit);
+        final Actor a = currentActor();
+        if (isPrioritized(a))
+            return received(a, ((PulsarActor) a).receivePrioritized(timeout, unit));
+        return received(a, a.receive(timeout, unit));
+    }
+
+    private static boolean isPrioritized(Actor a) {
+        return a instanceof PulsarActor && ((PulsarActor) a).priority != null;
+    }
+
+    private Object receivePrioritized(long timeout, TimeUnit unit) throws SuspendExecution, InterruptedException {
+        mailbox().maybeSetCurrentStrandAsOwner();
+        final long deadline = unit != null ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        for (;;) {
+            Object m = priority.poll(this);
+            if (m == null) {
+                if (unit == null)
+                    m = mailbox().receive();
+                else {
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0 || (m = mailbox().receive(left, TimeUnit.NANOSECONDS)) == null)
+                        return null;
+                }
+                m = priority.offerAndPoll(this, m);
+            }
+            record(1, "PulsarActor", "receive", "Received %s <- %s", this, m);
+            m = filterMessage(m);
+            if (m != null)
+                return m;
+        }
+    }
+
+    private static Object received(Actor a, Object m) {
+        if (m != null && !(m instanceof LifecycleMessage) && a instanceof PulsarActor) {
+            final MailboxWatermarks w = ((PulsarActor) a).watermarks;
+            if (w != null)
+                w.received();
+        }
+        return m;
     }
 
     public static Object selfGetState() {
@@ -68,12 +149,14 @@ public class PulsarActor extends Actor<Object, Object> {
     private SuspendableCallable<Object> target;
     private final IFn lifecycleMessageHandler;
     private boolean trap;
+    private volatile MailboxWatermarks watermarks;
+    private PriorityMailbox priority;
 
     @SuppressWarnings("LeakingThisInConstructor")
     public PulsarActor(String name, IFn targetFn, boolean trap, MailboxConfig mailboxConfig, IFn lifecycleMessageHandler, IFn target) {
         super(name, mailboxConfig);
         //this.var = var;
-        this.targetFn = targetFn instanceof InstrumentedIFn ? ((InstrumentedIFn)targetFn).fn : targetFn;
+        this.targetFn = targetFn;
         this.target = ClojureHelper.asSuspendableCallable(target);
         this.trap = trap;
         this.lifecycleMessageHandler = lifecycleMessageHandler;
@@ -87,18 +170,43 @@ public class PulsarActor extends Actor<Object, Object> {
         return trap;
     }
 
+    /**
+     * Makes the actor receive messages in order of priority, as determined by {@code key}: greatest key first.
+     * If {@code key} is {@code null}, messages are received in the order they've arrived. Must be called before the
+     * actor is spawned.
+     */
+    public void setPriorityKey(IFn key) {
+        this.priority = key != null ? new PriorityMailbox(key) : null;
+    }
+
+    /**
+     * Sets (or, if {@code w} is {@code null}, removes) the mailbox watermarks. Must be called before the actor is spawned.
+     */
+    public void setWatermarks(MailboxWatermarks w) {
+        this.watermarks = w;
+    }
+
     @Override
     public Object doRun() throws InterruptedException, SuspendExecution {
-        return target.run();
+        if (watermarks == null)
+            return target.run();
+        boolean swapped = false;
+        try {
+            return target.run();
+        } catch (CodeSwap e) {
+            swapped = true; // the actor will run again
+            throw e;
+        } finally {
+            if (!swapped)
+                watermarks.terminated();
+        }
     }
 
     public boolean isTargetChanged(IFn targetFn) {
-        targetFn = targetFn instanceof InstrumentedIFn ? ((InstrumentedIFn)targetFn).fn : targetFn;
         return this.targetFn != targetFn;
     }
 
     public void recurCodeSwap(IFn targetFn, IFn target) {
-        targetFn = targetFn instanceof InstrumentedIFn ? ((InstrumentedIFn)targetFn).fn : targetFn;
         if(this.targetFn != targetFn) {
             this.targetFn = targetFn;
             this.target = ClojureHelper.asSuspendableCallable(target);
@@ -149,24 +257,36 @@ public class PulsarActor extends Actor<Object, Object> {
     ///////////////// Simple delegates ////////////////////////////
 
 
-    public static QueueIterator<Object> iterator(Actor a) {
+    public static boolean isMailboxEmpty(Actor a) {
+        return a.mailbox().queue().isEmpty();
+    }
+
+    public static Iterator<Object> iterator(Actor a) {
         a.monitorResetSkippedMessages();
+        if (isPrioritized(a))
+            return ((PulsarActor) a).priority.iterator(a);
         return a.mailbox().queue().iterator();
     }
 
-    public static void processed(Actor a, QueueIterator<Object> it) {
+    public static void processed(Actor a, Iterator<Object> it) {
         a.monitorAddMessage();
+        final Object m = value(it);
         it.remove();
+        received(a, m);
     }
 
-    public static void skipped(Actor a, QueueIterator<Object> it) {
+    public static void skipped(Actor a, Iterator<Object> it) {
         a.monitorSkippedMessage();
-        final Object m = it.value();
+        final Object m = value(it);
         if (m instanceof LifecycleMessage)
             handleLifecycleMessage(a, (LifecycleMessage) m);
     }
 
-    public static Object next(Actor a, QueueIterator<Object> it) {
+    private static Object value(Iterator<Object> it) {
+        return it instanceof PriorityMailbox.Cursor ? ((PriorityMailbox.Cursor) it).value() : ((QueueIterator<Object>) it).value();
+    }
+
+    public static Object next(Actor a, Iterator<Object> it) {
         final Object m = it.next();
         a.record(1, "PulsarActor", "receive", "Received %s <- %s", a, m);
         return m;
@@ -0,0 +1,244 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import clojure.lang.ILookup;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layout of a fixed-size binary frame made of primitive fields, as encoded by a gloss {@code ordered-map} frame
+ * with the same fields, used to read individual fields of a binary message in place.
+ * <p>
+ * A {@link View} of a message implements {@link ILookup}, so it can be matched by {@code receive}'s map patterns. Each
+ * field is decoded - with an absolute read from the message's buffer, without copying it - only when a pattern first
+ * looks it up, and then kept in the view. Views aren't cached across calls to {@link #view(Object) view}, as a buffer
+ * may be refilled and reused (e.g. when taken from a buffer pool), so a view must not outlive the scan it was made for.
+ */
+public final class BinaryFrame {
+    private static final Object NOT_DECODED = new Object();
+
+    private final Keyword[] names;
+    private final Type[] types;
+    private final ByteOrder[] orders;
+    private final int[] offsets;
+    private final Map<Keyword, Integer> index = new HashMap<Keyword, Integer>();
+    private final int size;
+    private final Object codec;
+
+    /**
+     * @param names the field names, in the order they are laid out in the frame
+     * @param types the field types, as gloss primitive type keywords (e.g. {@code :int16}, {@code :float64-le})
+     * @param codec the equivalent gloss codec
+     */
+    public BinaryFrame(List<Keyword> names, List<Keyword> types, Object codec) {
+        if (names.size() != types.size())
+            throw new IllegalArgumentException("names and types must be of the same length");
+        final int n = names.size();
+        this.names = names.toArray(new Keyword[n]);
+        this.types = new Type[n];
+        this.orders = new ByteOrder[n];
+        this.offsets = new int[n];
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            if (index.put(this.names[i], i) != null)
+                throw new IllegalArgumentException("Duplicate field " + this.names[i]);
+            this.types[i] = Type.of(types.get(i));
+            this.orders[i] = types.get(i).getName().endsWith("-le") ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            this.offsets[i] = offset;
+            offset += this.types[i].size;
+        }
+        this.size = offset;
+        this.codec = codec;
+    }
+
+    public Object getCodec() {
+        return codec;
+    }
+
+    /**
+     * The frame's size in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int offsetOf(Keyword name) {
+        final Integer i = index.get(name);
+        return i != null ? offsets[i] : -1;
+    }
+
+    /**
+     * Returns a view of the given message, which must be a {@link ByteBuffer} or a list of byte buffers (as returned by
+     * gloss's {@code encode}), or {@code null} if the message isn't one or is too short to hold the frame.
+     */
+    public View view(Object message) {
+        final ByteBuffer buffer = toBuffer(message);
+        if (buffer == null || buffer.remaining() < size)
+            return null;
+        return new View(buffer, buffer.position());
+    }
+
+    private static ByteBuffer toBuffer(Object message) {
+        if (message instanceof ByteBuffer)
+            return (ByteBuffer) message;
+        if (!(message instanceof List))
+            return null;
+        final List<?> bs = (List<?>) message;
+        if (bs.isEmpty())
+            return null;
+        int length = 0;
+        for (Object b : bs) {
+            if (!(b instanceof ByteBuffer))
+                return null;
+            length += ((ByteBuffer) b).remaining();
+        }
+        if (bs.size() == 1)
+            return (ByteBuffer) bs.get(0);
+        final ByteBuffer buffer = ByteBuffer.allocate(length); // fields may straddle buffers
+        for (Object b : bs)
+            buffer.put(((ByteBuffer) b).duplicate());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A lazily-decoded view of a message laid out according to a {@link BinaryFrame}.
+     */
+    public final class View implements ILookup {
+        private final ByteBuffer buffer;
+        private final int base;
+        private final Object[] values;
+
+        View(ByteBuffer buffer, int base) {
+            this.buffer = buffer;
+            this.base = base;
+            this.values = new Object[names.length];
+            Arrays.fill(values, NOT_DECODED);
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public Object valAt(Object key) {
+            return valAt(key, null);
+        }
+
+        @Override
+        public Object valAt(Object key, Object notFound) {
+            final Integer i = index.get(key);
+            if (i == null)
+                return notFound;
+            Object v = values[i];
+            if (v == NOT_DECODED) {
+                v = types[i].read(buffer, base + offsets[i], orders[i]);
+                values[i] = v; // only read by the receiving actor
+            }
+            return v;
+        }
+
+        /**
+         * Decodes all fields into a map.
+         */
+        public IPersistentMap toMap() {
+            final Object[] kvs = new Object[2 * names.length];
+            for (int i = 0; i < names.length; i++) {
+                kvs[2 * i] = names[i];
+                kvs[2 * i + 1] = valAt(names[i]);
+            }
+            return new PersistentArrayMap(kvs);
+        }
+
+        @Override
+        public String toString() {
+            return toMap().toString();
+        }
+    }
+
+    private enum Type {
+        BYTE(1), UBYTE(1), INT16(2), UINT16(2), INT32(4), UINT32(4), INT64(8), FLOAT32(4), FLOAT64(8);
+
+        final int size;
+
+        Type(int size) {
+            this.size = size;
+        }
+
+        static Type of(Keyword k) {
+            final String name = k.getName();
+            final String base = name.endsWith("-le") || name.endsWith("-be") ? name.substring(0, name.length() - 3) : name;
+            switch (base) {
+                case "byte":
+                case "int8":
+                    return BYTE;
+                case "ubyte":
+                case "uint8":
+                    return UBYTE;
+                case "int16":
+                    return INT16;
+                case "uint16":
+                    return UINT16;
+                case "int32":
+                    return INT32;
+                case "uint32":
+                    return UINT32;
+                case "int64":
+                    return INT64;
+                case "float32":
+                    return FLOAT32;
+                case "float64":
+                    return FLOAT64;
+                default:
+                    throw new IllegalArgumentException("Unsupported binary frame field type " + k);
+            }
+        }
+
+        // absolute reads, so the buffer's position is left alone
+        Object read(ByteBuffer b, int i, ByteOrder order) {
+            final boolean swap = b.order() != order;
+            switch (this) {
+                case BYTE:
+                    return (long) b.get(i);
+                case UBYTE:
+                    return (long) (b.get(i) & 0xFF);
+                case INT16:
+                    return (long) (swap ? Short.reverseBytes(b.getShort(i)) : b.getShort(i));
+                case UINT16:
+                    return (long) ((swap ? Short.reverseBytes(b.getShort(i)) : b.getShort(i)) & 0xFFFF);
+                case INT32:
+                    return (long) (swap ? Integer.reverseBytes(b.getInt(i)) : b.getInt(i));
+                case UINT32:
+                    return (swap ? Integer.reverseBytes(b.getInt(i)) : b.getInt(i)) & 0xFFFFFFFFL;
+                case INT64:
+                    return swap ? Long.reverseBytes(b.getLong(i)) : b.getLong(i);
+                case FLOAT32:
+                    return (double) Float.intBitsToFloat(swap ? Integer.reverseBytes(b.getInt(i)) : b.getInt(i));
+                case FLOAT64:
+                    return Double.longBitsToDouble(swap ? Long.reverseBytes(b.getLong(i)) : b.getLong(i));
+                default:
+                    throw new AssertionError();
+            }
+        }
+    }
+}
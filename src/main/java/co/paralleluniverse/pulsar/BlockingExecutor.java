@@ -0,0 +1,208 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.Strand;
+import co.paralleluniverse.strands.concurrent.Semaphore;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of threads for blocking work, used by {@code thread}, {@code thread-call} and
+ * {@code pipeline-blocking}.
+ * <p>
+ * At most {@code threads} tasks run at once, and at most {@code queueLimit} more wait for a thread. A task submitted
+ * when the queue is full is handled according to the rejection policy: {@link Rejection#BLOCK BLOCK} blocks the
+ * submitting strand (parking it, if it's a fiber) until there's room, {@link Rejection#ABORT ABORT} throws a
+ * {@link RejectedExecutionException}, and {@link Rejection#CALLER_RUNS CALLER_RUNS} runs the task in the submitting
+ * thread. As the task is blocking, running it in a fiber would block the fiber's carrier thread, so a fiber submitting
+ * a task under {@code CALLER_RUNS} is blocked (parked) as under {@code BLOCK} instead.
+ * <p>
+ * The default executor has 256 threads and a queue of 4096 tasks, which can be changed with the
+ * {@code co.paralleluniverse.pulsar.async.blockingThreads} and {@code co.paralleluniverse.pulsar.async.blockingQueue}
+ * system properties.
+ */
+public final class BlockingExecutor {
+    private static final String THREADS_PROPERTY = "co.paralleluniverse.pulsar.async.blockingThreads";
+    private static final String QUEUE_PROPERTY = "co.paralleluniverse.pulsar.async.blockingQueue";
+    private static final BlockingExecutor defaultInstance = new BlockingExecutor("async-thread-%d",
+            Integer.getInteger(THREADS_PROPERTY, 256), Integer.getInteger(QUEUE_PROPERTY, 4096), Rejection.BLOCK, 60000);
+
+    public static BlockingExecutor getDefault() {
+        return defaultInstance;
+    }
+
+    public enum Rejection {
+        BLOCK, ABORT, CALLER_RUNS
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final Semaphore permits;
+    private final Rejection rejection;
+    private final LatencyTracker waits = new LatencyTracker(1024);
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param nameFormat      the name format of the pool's threads (see {@link ThreadFactoryBuilder#setNameFormat})
+     * @param threads         the maximum number of threads
+     * @param queueLimit      the maximum number of tasks waiting for a thread
+     * @param rejection       what to do with tasks submitted when the queue is full
+     * @param keepAliveMillis how long an idle thread is kept
+     */
+    public BlockingExecutor(String nameFormat, int threads, int queueLimit, Rejection rejection, long keepAliveMillis) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        if (queueLimit < 0)
+            throw new IllegalArgumentException("queueLimit must be non-negative: " + queueLimit);
+        this.pool = new ThreadPoolExecutor(threads, threads, keepAliveMillis, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), // bounded by the permits
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        this.pool.allowCoreThreadTimeOut(true);
+        this.permits = new Semaphore(threads + queueLimit);
+        this.rejection = rejection;
+    }
+
+    /**
+     * Runs a task in one of the pool's threads, handling it according to the rejection policy if the queue is full.
+     */
+    public void execute(Runnable task) throws SuspendExecution, InterruptedException {
+        if (!permits.tryAcquire()) {
+            switch (rejection) {
+                case ABORT:
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("blocking executor queue is full");
+                case CALLER_RUNS:
+                    if (!Strand.isCurrentFiber()) {
+                        rejected.incrementAndGet();
+                        task.run();
+                        return;
+                    }
+                    // fall through: a fiber parks rather than block its carrier thread with the task
+                default:
+                    blocked.incrementAndGet();
+                    permits.acquire();
+            }
+        }
+        submit(task);
+    }
+
+    /**
+     * Runs a task in one of the pool's threads, unless the queue is full.
+     *
+     * @return {@code true} if the task has been submitted; {@code false} if the queue is full
+     */
+    public boolean tryExecute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        submit(task);
+        return true;
+    }
+
+    private void submit(final Runnable task) {
+        submitted.incrementAndGet();
+        final long submittedAt = System.nanoTime();
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    waits.record(System.nanoTime() - submittedAt);
+                    try {
+                        task.run();
+                    } finally {
+                        completed.incrementAndGet();
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public int getActiveThreads() {
+        return pool.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * The number of submitters that have had to wait for room in the queue.
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the given percentile of the time tasks have recently waited for a thread, in nanoseconds, or {@code -1}
+     * if too few tasks have run.
+     */
+    public long waitPercentile(double p) {
+        return waits.percentile(p);
+    }
+
+    /**
+     * Returns the counters as a map with the keys {@code :queue-depth}, {@code :active}, {@code :pool-size},
+     * {@code :submitted}, {@code :completed}, {@code :blocked}, {@code :rejected}, and the median and 99th percentile
+     * of the wait time in nanoseconds, {@code :wait-p50} and {@code :wait-p99}.
+     */
+    public IPersistentMap getStats() {
+        return RT.map(
+                Keyword.intern("queue-depth"), getQueueDepth(),
+                Keyword.intern("active"), getActiveThreads(),
+                Keyword.intern("pool-size"), getPoolSize(),
+                Keyword.intern("submitted"), getSubmitted(),
+                Keyword.intern("completed"), getCompleted(),
+                Keyword.intern("blocked"), getBlocked(),
+                Keyword.intern("rejected"), getRejected(),
+                Keyword.intern("wait-p50"), waitPercentile(50),
+                Keyword.intern("wait-p99"), waitPercentile(99));
+    }
+}
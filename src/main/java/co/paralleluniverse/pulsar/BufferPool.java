@@ -0,0 +1,163 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte buffers in power-of-two size classes.
+ * <p>
+ * {@link #acquire(int) acquire} returns a buffer from the smallest class that can hold the requested number of bytes
+ * (allocating one if the class is empty), and {@link #release(ByteBuffer) release} returns it to its class, unless the
+ * class already holds its maximum number of idle buffers, in which case the buffer is left to the GC. Requests larger
+ * than the largest class are allocated exactly, and aren't pooled.
+ * <p>
+ * Pooling matters most for direct buffers, which are expensive to allocate and are freed only when the GC gets around
+ * to it. A buffer must not be used after it's been released.
+ */
+public final class BufferPool {
+    private final boolean direct;
+    private final int minShift;
+    private final int maxShift;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCounts;
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * @param direct  whether the pool holds direct buffers
+     * @param minSize the smallest size class (rounded up to a power of two)
+     * @param maxSize the largest size class (rounded up to a power of two)
+     * @param maxIdle the maximum number of idle buffers kept in each class
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, int minSize, int maxSize, int maxIdle) {
+        if (minSize <= 0 || maxSize < minSize)
+            throw new IllegalArgumentException("Illegal size classes: " + minSize + "-" + maxSize);
+        this.direct = direct;
+        this.minShift = shift(minSize);
+        this.maxShift = shift(maxSize);
+        this.maxIdle = maxIdle;
+        final int n = maxShift - minShift + 1;
+        this.idle = new ConcurrentLinkedQueue[n];
+        this.idleCounts = new AtomicInteger[n];
+        for (int i = 0; i < n; i++) {
+            idle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns a cleared buffer with room for at least {@code size} bytes; its limit is set to {@code size}.
+     */
+    public ByteBuffer acquire(int size) {
+        final int c = sizeClass(size);
+        ByteBuffer b = null;
+        if (c >= 0) {
+            b = idle[c].poll();
+            if (b != null) {
+                idleCounts[c].decrementAndGet();
+                reused.incrementAndGet();
+            }
+        }
+        if (b == null) {
+            b = allocate(c >= 0 ? 1 << (c + minShift) : size);
+            allocated.incrementAndGet();
+        }
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int) acquire} to the pool.
+     */
+    public void release(ByteBuffer b) {
+        if (b == null || b.isDirect() != direct || b.isReadOnly())
+            return;
+        final int cap = b.capacity();
+        if (Integer.bitCount(cap) != 1)
+            return; // not one of ours (or too large to be pooled)
+        final int c = shift(cap) - minShift;
+        if (c < 0 || c >= idle.length)
+            return;
+        if (idleCounts[c].incrementAndGet() > maxIdle) {
+            idleCounts[c].decrementAndGet();
+            return;
+        }
+        idle[c].offer(b);
+    }
+
+    /**
+     * The capacity of the buffer {@link #acquire(int) acquire} returns for the given size.
+     */
+    public int capacityFor(int size) {
+        final int c = sizeClass(size);
+        return c >= 0 ? 1 << (c + minShift) : size;
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public int getIdle() {
+        int n = 0;
+        for (AtomicInteger c : idleCounts)
+            n += c.get();
+        return n;
+    }
+
+    /**
+     * Returns the pool's counters as a map with the keys {@code :allocated}, {@code :reused} and {@code :idle}.
+     */
+    public IPersistentMap getStats() {
+        return RT.map(
+                Keyword.intern("allocated"), getAllocated(),
+                Keyword.intern("reused"), getReused(),
+                Keyword.intern("idle"), getIdle());
+    }
+
+    private int sizeClass(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative size: " + size);
+        final int c = Math.max(shift(size), minShift) - minShift;
+        return c < idle.length ? c : -1;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // the smallest s such that 1 << s >= size
+    private static int shift(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
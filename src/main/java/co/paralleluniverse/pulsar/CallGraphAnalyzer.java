@@ -0,0 +1,398 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.asm.ClassReader;
+import co.paralleluniverse.asm.Opcodes;
+import co.paralleluniverse.asm.Type;
+import co.paralleluniverse.asm.tree.AbstractInsnNode;
+import co.paralleluniverse.asm.tree.ClassNode;
+import co.paralleluniverse.asm.tree.FieldInsnNode;
+import co.paralleluniverse.asm.tree.LdcInsnNode;
+import co.paralleluniverse.asm.tree.MethodInsnNode;
+import co.paralleluniverse.asm.tree.MethodNode;
+import co.paralleluniverse.asm.tree.analysis.Analyzer;
+import co.paralleluniverse.asm.tree.analysis.AnalyzerException;
+import co.paralleluniverse.asm.tree.analysis.Frame;
+import co.paralleluniverse.asm.tree.analysis.SourceInterpreter;
+import co.paralleluniverse.asm.tree.analysis.SourceValue;
+import co.paralleluniverse.fibers.instrument.LogLevel;
+import co.paralleluniverse.fibers.instrument.MethodDatabase;
+import co.paralleluniverse.fibers.instrument.Retransform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A static call-graph analysis of loaded Clojure functions, used by the {@code minimal} auto-instrumentation strategy
+ * to leave uninstrumented those functions that can never reach a suspendable call.
+ * <p>
+ * Every Clojure class is summarized as it is loaded (before it is instrumented): for each fn invocation method we record
+ * the Clojure functions it calls (either directly-linked, or through a non-dynamic var whose root is fetched at the call
+ * site) and whether it makes any call that may suspend. A call through a dynamic var ({@code Var.get}) may be rebound
+ * to any function, so it's treated as a call whose target can't be determined. A call may suspend if it's a call to a Quasar or Pulsar method, to a
+ * Clojure runtime method that Pulsar instruments, to a protocol method, or to an {@code IFn} whose target cannot be
+ * determined statically (e.g. a function passed as an argument). A function can suspend if it makes such a call, or
+ * calls a function that can, or calls a function that hasn't been loaded yet.
+ * <p>
+ * The analysis is sound only relative to Pulsar's auto-instrumentation matchlist: code that isn't instrumented (the JDK,
+ * most of the Clojure runtime, and other Java libraries) can't be suspended through in any case.
+ * <p>
+ * Changing the root of a non-dynamic var at runtime is <b>not supported</b>: a call through a var is resolved to the
+ * function the var named when the caller was loaded, so if the var is later given a function that may suspend (with
+ * {@code alter-var-root}, {@code with-redefs}, or by re-evaluating its {@code def}), callers that have already been left
+ * uninstrumented stay so. Code that redefines vars that way should use the {@code all} strategy.
+ */
+final class CallGraphAnalyzer implements Retransform.ClassLoadListener {
+    private static final String VAR = "clojure/lang/Var";
+    private static final String VAR_DESC = "Lclojure/lang/Var;";
+    private static final Set<String> FN_INVOCATION_METHODS = new HashSet<String>(PulsarInstrumentListProvider.CLOJURE_FUNCTION_BASE_INVOCATION_METHODS);
+
+    static {
+        FN_INVOCATION_METHODS.addAll(PulsarInstrumentListProvider.CLOJURE_FUNCTION_ADDITIONAL_INVOCATION_METHODS);
+    }
+
+    private final ConcurrentHashMap<String, ClassSummary> classes = new ConcurrentHashMap<String, ClassSummary>();
+    private final ConcurrentHashMap<String, Boolean> results = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger analyzed = new AtomicInteger();
+    private final AtomicInteger pruned = new AtomicInteger();
+    private final AtomicBoolean reporting = new AtomicBoolean();
+
+    /**
+     * Returns {@code true} if the given method of a Clojure fn class may reach a suspendable call.
+     */
+    boolean maySuspend(MethodDatabase db, String className, String methodName) {
+        if (db.isVerbose() && reporting.compareAndSet(false, true))
+            report(db);
+        final boolean res = maySuspend(className + '.' + methodName, new ArrayList<String>(), new HashSet<String>());
+        analyzed.incrementAndGet();
+        if (!res)
+            pruned.incrementAndGet();
+        return res;
+    }
+
+    private void report(final MethodDatabase db) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.log(LogLevel.INFO, "[PulsarSuspendableClassifier] minimal auto-instrumentation: %d of %d Clojure fn methods can never suspend and have been left uninstrumented",
+                        pruned.get(), analyzed.get());
+            }
+        }, "pulsar-call-graph-stats"));
+    }
+
+    // A depth-first search for a suspendable call. A method found on the current path is optimistically assumed not
+    // to suspend; a negative result that relied on such an assumption about a method other than itself is not cached,
+    // as it might be wrong until the whole cycle has been explored.
+    private boolean maySuspend(String method, List<String> path, Set<String> assumed) {
+        final Boolean cached = results.get(method);
+        if (cached != null)
+            return cached;
+        if (method.startsWith("co/paralleluniverse/") || method.startsWith("clojure/core$reduce"))
+            return true;
+        if (isUninstrumentedPackage(method))
+            return false; // e.g. a clojure.core function, which isn't instrumented
+        if (path.contains(method)) {
+            assumed.add(method);
+            return false;
+        }
+
+        final int dot = method.lastIndexOf('.');
+        final String className = method.substring(0, dot);
+        final String methodName = method.substring(dot + 1);
+        final ClassSummary cs = classes.get(className);
+        if (cs == null)
+            return true; // not loaded (yet); can't tell
+
+        final List<MethodSummary> ms = cs.methods(methodName);
+        if (ms.isEmpty())
+            return true;
+
+        path.add(method);
+        final Set<String> assumed1 = new HashSet<String>();
+        boolean res = false;
+        try {
+            outer:
+            for (MethodSummary m : ms) {
+                if (m.maySuspend) {
+                    res = true;
+                    break;
+                }
+                for (String callee : m.callees) {
+                    if (maySuspend(callee, path, assumed1)) {
+                        res = true;
+                        break outer;
+                    }
+                }
+            }
+        } finally {
+            path.remove(path.size() - 1);
+        }
+
+        assumed1.remove(method);
+        if (res || assumed1.isEmpty())
+            results.put(method, res);
+        assumed.addAll(assumed1);
+        return res;
+    }
+
+    ////////////// Summaries //////////////
+
+    @Override
+    public void beforeTransform(String className, Class clazz, byte[] data) {
+        if (className == null || data == null || !className.contains("$") || isUninstrumentedPackage(className))
+            return;
+        try {
+            final ClassNode cn = new ClassNode();
+            new ClassReader(data).accept(cn, ClassReader.SKIP_FRAMES);
+            if (cn.sourceFile == null || !cn.sourceFile.endsWith(".clj"))
+                return;
+            final ClassSummary cs = summarize(cn);
+            final ClassSummary prev = classes.put(cn.name, cs);
+            if (prev != null)
+                results.clear(); // a function has been redefined
+        } catch (RuntimeException e) {
+            // we'll treat the class as unknown, i.e. suspendable
+        }
+    }
+
+    @Override
+    public void afterTransform(String className, Class clazz, byte[] data) {
+    }
+
+    private ClassSummary summarize(ClassNode cn) {
+        final Map<String, String> vars = constantVars(cn);
+        final ClassSummary cs = new ClassSummary();
+        for (MethodNode mn : cn.methods) {
+            if (FN_INVOCATION_METHODS.contains(mn.name) && (mn.access & Opcodes.ACC_ABSTRACT) == 0)
+                cs.add(mn.name, summarize(cn, mn, vars));
+        }
+        return cs;
+    }
+
+    private MethodSummary summarize(ClassNode cn, MethodNode mn, Map<String, String> vars) {
+        final MethodSummary ms = new MethodSummary();
+        Frame<SourceValue>[] frames = null;
+        for (int i = 0; i < mn.instructions.size(); i++) {
+            final AbstractInsnNode insn = mn.instructions.get(i);
+            if (insn.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN) {
+                ms.maySuspend = true;
+                return ms;
+            }
+            if (!(insn instanceof MethodInsnNode))
+                continue;
+            final MethodInsnNode call = (MethodInsnNode) insn;
+
+            switch (classify(cn.name, call)) {
+                case NON_SUSPENDABLE:
+                    break;
+                case SUSPENDABLE:
+                    ms.maySuspend = true;
+                    return ms;
+                case CLOJURE_FN:
+                    ms.callees.add(call.owner + '.' + call.name);
+                    break;
+                case DYNAMIC:
+                    if (frames == null) {
+                        try {
+                            frames = new Analyzer<SourceValue>(new SourceInterpreter()).analyze(cn.name, mn);
+                        } catch (AnalyzerException e) {
+                            ms.maySuspend = true;
+                            return ms;
+                        }
+                    }
+                    final String var = receiverVar(cn, mn, frames, i, Type.getArgumentTypes(call.desc).length, vars);
+                    if (var == null) {
+                        ms.maySuspend = true;
+                        return ms;
+                    }
+                    ms.callees.add(var + ".*");
+                    break;
+            }
+        }
+        return ms;
+    }
+
+    private enum CallKind { NON_SUSPENDABLE, SUSPENDABLE, CLOJURE_FN, DYNAMIC }
+
+    private CallKind classify(String className, MethodInsnNode call) {
+        final String owner = call.owner;
+        final String name = call.name;
+        if (owner.startsWith("co/paralleluniverse/"))
+            return CallKind.SUSPENDABLE;
+        if (owner.startsWith("clojure/lang/IFn") || owner.equals("clojure/lang/AFn") || owner.equals("clojure/lang/AFunction")
+                || owner.equals("clojure/lang/RestFn") || owner.equals(VAR))
+            return FN_INVOCATION_METHODS.contains(name) ? CallKind.DYNAMIC : CallKind.NON_SUSPENDABLE;
+        if (owner.equals("clojure/lang/MultiFn") || owner.equals("clojure/lang/Reflector") || owner.startsWith("clojure/core$reduce")
+                || owner.startsWith("clojure/lang/IReduce"))
+            return CallKind.SUSPENDABLE; // instrumented by Pulsar's matchlist
+        if (isUninstrumentedPackage(owner))
+            return CallKind.NON_SUSPENDABLE;
+        if (owner.equals(className) || classes.containsKey(owner))
+            return FN_INVOCATION_METHODS.contains(name) ? CallKind.CLOJURE_FN : CallKind.NON_SUSPENDABLE;
+        if (call.getOpcode() == Opcodes.INVOKEINTERFACE || owner.contains("$"))
+            return CallKind.SUSPENDABLE; // a protocol method, or a Clojure class we haven't seen
+        return CallKind.NON_SUSPENDABLE; // a Java library, which isn't instrumented
+    }
+
+    private static boolean isUninstrumentedPackage(String className) {
+        return className.startsWith("java/") || className.startsWith("javax/") || className.startsWith("sun/")
+                || className.startsWith("com/sun/") || (className.startsWith("clojure/") && !className.startsWith("clojure/core$reduce"));
+    }
+
+    // Follows the receiver of the call at index i back to a var in the class's constant pool:
+    // GETSTATIC const__N; INVOKEVIRTUAL Var.getRawRoot; CHECKCAST IFn (the way Clojure compiles calls to non-dynamic vars).
+    // Calls to dynamic vars (Var.get) aren't resolved, as the var may be bound to any function.
+    private static String receiverVar(ClassNode cn, MethodNode mn, Frame<SourceValue>[] frames, int i, int nargs, Map<String, String> vars) {
+        AbstractInsnNode insn = producer(mn, frames, i, nargs);
+        for (int steps = 0; insn != null && steps < 4; steps++) {
+            switch (insn.getOpcode()) {
+                case Opcodes.CHECKCAST:
+                    insn = producer(mn, frames, mn.instructions.indexOf(insn), 0);
+                    break;
+                case Opcodes.INVOKEVIRTUAL:
+                    final MethodInsnNode m = (MethodInsnNode) insn;
+                    if (!m.owner.equals(VAR) || !m.name.equals("getRawRoot"))
+                        return null;
+                    insn = producer(mn, frames, mn.instructions.indexOf(insn), 0);
+                    break;
+                case Opcodes.GETSTATIC:
+                    final FieldInsnNode f = (FieldInsnNode) insn;
+                    return f.owner.equals(cn.name) && VAR_DESC.equals(f.desc) ? vars.get(f.name) : null;
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    // the single instruction that has produced the stack value at the given depth (from the top) before instruction i
+    private static AbstractInsnNode producer(MethodNode mn, Frame<SourceValue>[] frames, int i, int depth) {
+        final Frame<SourceValue> f = frames[i];
+        if (f == null || f.getStackSize() <= depth)
+            return null;
+        final SourceValue v = f.getStack(f.getStackSize() - 1 - depth);
+        return v.insns.size() == 1 ? v.insns.iterator().next() : null;
+    }
+
+    // maps the class's static Var fields to the fn classes of the vars they hold, from the static initializer:
+    // LDC ns; LDC name; INVOKESTATIC RT.var; CHECKCAST Var; PUTSTATIC const__N
+    private static Map<String, String> constantVars(ClassNode cn) {
+        final Map<String, String> vars = new HashMap<String, String>();
+        for (MethodNode mn : cn.methods) {
+            if (!mn.name.equals("<clinit>"))
+                continue;
+            String ns = null;
+            String name = null;
+            String var = null;
+            for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof String) {
+                    ns = name;
+                    name = (String) ((LdcInsnNode) insn).cst;
+                } else if (insn.getOpcode() == Opcodes.INVOKESTATIC && ((MethodInsnNode) insn).owner.equals("clojure/lang/RT")
+                        && ((MethodInsnNode) insn).name.equals("var") && ns != null) {
+                    var = munge(ns).replace('.', '/') + '$' + munge(name);
+                } else if (insn.getOpcode() == Opcodes.PUTSTATIC && VAR_DESC.equals(((FieldInsnNode) insn).desc) && var != null) {
+                    vars.put(((FieldInsnNode) insn).name, var);
+                    var = null;
+                    ns = name = null;
+                }
+            }
+        }
+        return vars;
+    }
+
+    private static final Map<Character, String> CHAR_MAP;
+
+    static {
+        final Map<Character, String> m = new HashMap<Character, String>();
+        m.put('-', "_");
+        m.put(':', "_COLON_");
+        m.put('+', "_PLUS_");
+        m.put('>', "_GT_");
+        m.put('<', "_LT_");
+        m.put('=', "_EQ_");
+        m.put('~', "_TILDE_");
+        m.put('!', "_BANG_");
+        m.put('@', "_CIRCA_");
+        m.put('#', "_SHARP_");
+        m.put('\'', "_SINGLEQUOTE_");
+        m.put('"', "_DOUBLEQUOTE_");
+        m.put('%', "_PERCENT_");
+        m.put('^', "_CARET_");
+        m.put('&', "_AMPERSAND_");
+        m.put('*', "_STAR_");
+        m.put('|', "_BAR_");
+        m.put('{', "_LBRACE_");
+        m.put('}', "_RBRACE_");
+        m.put('[', "_LBRACK_");
+        m.put(']', "_RBRACK_");
+        m.put('/', "_SLASH_");
+        m.put('\\', "_BSLASH_");
+        m.put('?', "_QMARK_");
+        CHAR_MAP = Collections.unmodifiableMap(m);
+    }
+
+    // Same as clojure.lang.Compiler.munge, which we can't call while classes are being loaded
+    private static String munge(String name) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final String sub = CHAR_MAP.get(c);
+            if (sub != null)
+                sb.append(sub);
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static final class ClassSummary {
+        private final Map<String, List<MethodSummary>> methods = new HashMap<String, List<MethodSummary>>();
+
+        void add(String name, MethodSummary ms) {
+            List<MethodSummary> l = methods.get(name);
+            if (l == null) {
+                l = new ArrayList<MethodSummary>(1);
+                methods.put(name, l);
+            }
+            l.add(ms);
+        }
+
+        // "*" means all of the fn's invocation methods (when it's called through a var, we don't know which arity)
+        List<MethodSummary> methods(String name) {
+            if (!name.equals("*")) {
+                final List<MethodSummary> l = methods.get(name);
+                return l != null ? l : Collections.<MethodSummary>emptyList();
+            }
+            final List<MethodSummary> all = new ArrayList<MethodSummary>();
+            for (List<MethodSummary> l : methods.values())
+                all.addAll(l);
+            return all;
+        }
+    }
+
+    private static final class MethodSummary {
+        boolean maySuspend;
+        final Set<String> callees = new HashSet<String>();
+    }
+}
@@ -44,18 +44,13 @@ import co.paralleluniverse.asm.Type;
  * @author pron
  */
 public class ClojureHelper {
-    // This whole mess with lastInstrumented is a heuristic to save us from calling clazz.isAnnotationPresent(Instrumented.class) which turns out to be *slow*.
-    private static final int NUM_LAST_INSTRUMENTED = 3;
-    private static final ThreadLocal<Class[]> lastInstrumented = new ThreadLocal<Class[]>() {
+    // Instrumentation status is tracked per class, rather than by wrapping instrumented functions, so that suspendable!
+    // can return the original function. Caching it also saves us from calling clazz.isAnnotationPresent(Instrumented.class),
+    // which turns out to be *slow*.
+    private static final ClassValue<Status> instrumented = new ClassValue<Status>() {
         @Override
-        protected Class[] initialValue() {
-            return new Class[NUM_LAST_INSTRUMENTED];
-        }
-    };
-    private static final ThreadLocal<Int> lastInstrumentedIndex = new ThreadLocal<Int>() {
-        @Override
-        protected Int initialValue() {
-            return new Int();
+        protected Status computeValue(Class<?> type) {
+            return new Status(IInstrumented.class.isAssignableFrom(type) || type.isAnnotationPresent(Instrumented.class));
         }
     };
 
@@ -84,6 +79,8 @@ public class ClojureHelper {
         // mark all IFn methods as suspendable
         Retransform.getMethodDB(IFn.class.getClassLoader()).getClassEntry(Type.getInternalName(IFn.class)).setAll(MethodDatabase.SuspendableType.SUSPENDABLE_SUPER);
 
+        InstrumentationProfiler.installIfEnabled();
+
         // register kryo serializers for clojure types
         if (ActorRegistry.hasGlobalRegistry()) {
             try {
@@ -98,9 +95,12 @@ public class ClojureHelper {
         if (thing instanceof IInstrumented)
             return thing;
 
-        if (isInLastInstrumented(thing.getClass()))
-            return new InstrumentedIFn((IFn) thing);
-        return retransform1(thing, protocols);
+        final Status status = instrumented.get(thing instanceof Class ? (Class) thing : thing.getClass());
+        if (status.instrumented)
+            return thing;
+        final Object ret = retransform1(thing, protocols);
+        status.instrumented = true;
+        return ret;
     }
 
     private static Object retransform1(Object thing, Collection<Class> protocols) throws UnmodifiableClassException {
@@ -110,13 +110,8 @@ public class ClojureHelper {
 
         final boolean isIFn = protocols == null && IFn.class.isAssignableFrom(clazz);
 
-        if (IInstrumented.class.isAssignableFrom(clazz) || clazz.isAnnotationPresent(Instrumented.class)) {
-            if (isIFn) {
-                addToLastInstrumented(clazz);
-                return !isClass ? new InstrumentedIFn((IFn) thing) : thing;
-            } else
-                return thing;
-        }
+        if (IInstrumented.class.isAssignableFrom(clazz) || clazz.isAnnotationPresent(Instrumented.class))
+            return thing;
 
         if (!isIFn && clazz.isInterface()) {
             // System.out.println("XXXX DB: " + Retransform.getMethodDB(clazz.getClassLoader()));
@@ -178,31 +173,30 @@ public class ClojureHelper {
                     }
                 }
                 Retransform.retransform(cls);
+                instrumented.get(cls).instrumented = true;
             }
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
 
-        if (isIFn) {
-            addToLastInstrumented(clazz);
-            return !isClass ? new InstrumentedIFn((IFn) thing) : thing;
-        } else
-            return thing;
+        return thing;
     }
 
     ////////
     public static SuspendableCallable<Object> asSuspendableCallable(final IFn fn) {
         if (fn == null)
             return null;
-        if (!(fn instanceof InstrumentedIFn))
+        if (!isInstrumented(fn))
             throw new IllegalArgumentException("Function " + fn + " has not been instrumented");
 
-        final Object binding = Var.cloneThreadBindingFrame(); // Clojure treats bindings as an InheritableThreadLocal, yet sets them in a ThreadLocal...
+        final Object binding = captureBindingFrame(); // Clojure treats bindings as an InheritableThreadLocal, yet sets them in a ThreadLocal...
         return new SuspendableCallable<Object>() {
             @Override
             public Object run() throws SuspendExecution, InterruptedException {
-                Var.resetThreadBindingFrame(binding);
-                return suspendableInvoke(fn);
+                conveyBindingFrame(binding);
+                final Object ret = suspendableInvoke(fn);
+                FiberStackSizes.record(fn);
+                return ret;
 //                final Object origBinding = Var.getThreadBindingFrame();
 //                try {
 //                    Var.resetThreadBindingFrame(binding);
@@ -214,31 +208,59 @@ public class ClojureHelper {
         };
     }
 
+    /**
+     * Captures the current thread's binding frame so that it can be conveyed to another strand with
+     * {@link #conveyBindingFrame(Object) conveyBindingFrame}.
+     * When no bindings are in effect (the common case when spawning many strands) this returns the root frame itself,
+     * and nothing is allocated.
+     */
+    public static Object captureBindingFrame() {
+        final Object frame = Var.getThreadBindingFrame();
+        if (frame == ROOT_BINDING_FRAME)
+            return frame;
+        return Var.cloneThreadBindingFrame();
+    }
+
+    /**
+     * Installs a binding frame returned by {@link #captureBindingFrame() captureBindingFrame} in the current strand,
+     * unless it is already installed (as is the root frame in a newly started fiber).
+     */
+    public static void conveyBindingFrame(Object frame) {
+        if (Var.getThreadBindingFrame() != frame)
+            Var.resetThreadBindingFrame(frame);
+    }
+
+    // Var.Frame.TOP, the frame every thread (and fiber) starts with; null if it can't be found, in which case frames are always cloned.
+    private static final Object ROOT_BINDING_FRAME = rootBindingFrame();
+
+    private static Object rootBindingFrame() {
+        try {
+            final java.lang.reflect.Field top = Var.Frame.class.getDeclaredField("TOP");
+            top.setAccessible(true);
+            return top.get(null);
+        } catch (ReflectiveOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
     static Object suspendableInvoke(IFn fn) throws SuspendExecution {
         return fn.invoke();
     }
 
     public static boolean isInstrumented(Class clazz) {
-        return clazz.isAnnotationPresent(Instrumented.class);
+        return instrumented.get(clazz).instrumented;
     }
 
-    private static boolean isInLastInstrumented(Class cls) {
-        Class[] cs = lastInstrumented.get();
-        for (Class c : cs) {
-            if (c == cls)
-                return true;
-        }
-        return false;
+    public static boolean isInstrumented(Object x) {
+        return x instanceof IInstrumented || (x != null && isInstrumented(x.getClass()));
     }
 
-    private static void addToLastInstrumented(Class cls) {
-        Int ind = lastInstrumentedIndex.get();
-        lastInstrumented.get()[ind.i] = cls;
-        ind.i = (ind.i + 1) % NUM_LAST_INSTRUMENTED;
-    }
+    private static final class Status {
+        volatile boolean instrumented;
 
-    private static class Int {
-        public int i;
+        Status(boolean instrumented) {
+            this.instrumented = instrumented;
+        }
     }
 
     private static Collection<Class<?>> supers(Class<?> c, Collection<Class<?>> s) {
@@ -0,0 +1,210 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.fibers.Fiber;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns the stack size fibers running a given function end up needing, so that later fibers running the same function
+ * can be created with a right-sized stack rather than repeatedly growing the default one.
+ * <p>
+ * When a fiber running a Clojure function completes normally, the capacity its stack has grown to is recorded for the
+ * class of the function (as Quasar doubles the stack when it grows, this is at most twice the actual high-water mark).
+ * Fibers subsequently spawned with the same function and without an explicit stack size start with that stack size.
+ * <p>
+ * The learned size decays: a fiber whose stack has grown beyond it raises it at once, while every fiber that completes
+ * without growing its stack lowers it by an eighth, so a single unusually deep run doesn't size all later fibers for
+ * good. (A fiber's stack isn't shrunk when it's popped, so the capacity it ends with tells us how much it has needed
+ * only if the stack has grown.) Once the estimate drops below what the function needs, the next fiber grows its stack
+ * and raises it again, so the estimate stays within a factor of two of the need. It is also capped at
+ * {@value #MAX_STACK_SIZE} slots; fibers that need more grow their stack as usual.
+ * <p>
+ * Adaptive sizing can be turned off by setting the {@code co.paralleluniverse.pulsar.fiber.adaptiveStackSize} system
+ * property to {@code false}. If the {@code co.paralleluniverse.pulsar.fiber.stackSizes} property is set to a file name,
+ * the learned sizes are loaded from that file at startup and saved to it when the JVM exits.
+ */
+public final class FiberStackSizes {
+    public static final String ADAPTIVE_PROPERTY = "co.paralleluniverse.pulsar.fiber.adaptiveStackSize";
+    public static final String FILE_PROPERTY = "co.paralleluniverse.pulsar.fiber.stackSizes";
+
+    private static final int MAX_STACK_SIZE = 1 << 10;
+    private static final int MIN_STACK_SIZE = 32; // Quasar's default; smaller sizes are forgotten
+    private static final int DECAY_SHIFT = 3;
+
+    private static final Field stackField;
+    private static final Field dataObjectField;
+    private static final int stackPadding; // the number of slots Quasar's Stack adds to the requested size
+    private static final boolean enabled;
+
+    private static final ConcurrentHashMap<String, Entry> sizes = new ConcurrentHashMap<String, Entry>();
+    private static final ClassValue<Entry> entries = new ClassValue<Entry>() {
+        @Override
+        protected Entry computeValue(Class<?> type) {
+            final Entry e = new Entry();
+            final Entry e1 = sizes.putIfAbsent(type.getName(), e);
+            return e1 != null ? e1 : e;
+        }
+    };
+
+    static {
+        Field sf = null;
+        Field df = null;
+        int padding = 0;
+        try {
+            sf = Fiber.class.getDeclaredField("stack");
+            sf.setAccessible(true);
+            final Class<?> stackClass = sf.getType();
+            df = stackClass.getDeclaredField("dataObject");
+            df.setAccessible(true);
+            // Stack allocates FRAME_RECORD_SIZE * INITIAL_METHOD_STACK_DEPTH slots on top of the requested size
+            padding = staticInt(stackClass, "INITIAL_METHOD_STACK_DEPTH") * staticInt(stackClass, "FRAME_RECORD_SIZE");
+        } catch (ReflectiveOperationException | SecurityException e) {
+            sf = null;
+            df = null;
+        }
+        stackField = sf;
+        dataObjectField = df;
+        stackPadding = padding;
+        enabled = sf != null && !"false".equals(System.getProperty(ADAPTIVE_PROPERTY));
+
+        final String file = System.getProperty(FILE_PROPERTY);
+        if (enabled && file != null) {
+            try {
+                load(new File(file));
+            } catch (IOException e) {
+                System.err.println("WARNING: Cannot load fiber stack sizes from " + file + ": " + e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        save(new File(file));
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                    }
+                }
+            }, "pulsar-fiber-stack-sizes"));
+        }
+    }
+
+    /**
+     * Returns the stack size a fiber running {@code fn} should be created with.
+     *
+     * @param fn            the fiber's function
+     * @param requestedSize the explicitly requested stack size, or a non-positive value if none has been requested
+     * @return {@code requestedSize} if positive; otherwise the size learned for {@code fn}, or {@code -1} (Quasar's
+     *         default) if none has been learned.
+     */
+    public static int stackSize(Object fn, int requestedSize) {
+        if (requestedSize > 0 || !enabled || fn == null)
+            return requestedSize;
+        final int size = entries.get(fn.getClass()).size;
+        return size > 0 ? size : requestedSize;
+    }
+
+    /**
+     * Records the size of the current fiber's stack as needed by {@code fn}. Called when the fiber's function returns.
+     */
+    static void record(Object fn) {
+        if (!enabled)
+            return;
+        final Fiber fiber = Fiber.currentFiber();
+        if (fiber == null)
+            return;
+        final int size;
+        try {
+            size = Math.min(((Object[]) dataObjectField.get(stackField.get(fiber))).length - stackPadding, MAX_STACK_SIZE);
+        } catch (IllegalAccessException e) {
+            return;
+        }
+        if (size <= 0)
+            return;
+        final Entry e = entries.get(fn.getClass());
+        final int current = e.size;
+        // racing updates may lose one another; the estimate is corrected by the following fibers
+        if (size > current) {
+            if (size > MIN_STACK_SIZE)
+                e.size = size; // the stack has grown
+        } else if (current > 0) {
+            final int decayed = current - (current >> DECAY_SHIFT);
+            e.size = decayed > MIN_STACK_SIZE ? decayed : 0;
+        }
+    }
+
+    /**
+     * Returns the learned stack sizes, by function class name.
+     */
+    public static Map<String, Integer> getStackSizes() {
+        final Map<String, Integer> m = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Entry> e : sizes.entrySet()) {
+            if (e.getValue().size > 0)
+                m.put(e.getKey(), e.getValue().size);
+        }
+        return m;
+    }
+
+    public static void load(File file) throws IOException {
+        if (!file.exists())
+            return;
+        final Properties props = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            props.load(is);
+        }
+        for (String name : props.stringPropertyNames()) {
+            try {
+                final Entry e = new Entry();
+                e.size = Math.min(Integer.parseInt(props.getProperty(name).trim()), MAX_STACK_SIZE);
+                final Entry e1 = sizes.putIfAbsent(name, e);
+                if (e1 != null && e1.size < e.size)
+                    e1.size = e.size;
+            } catch (NumberFormatException ex) {
+                System.err.println("WARNING: Bad fiber stack size for " + name + " in " + file);
+            }
+        }
+    }
+
+    public static void save(File file) throws IOException {
+        final Properties props = new Properties();
+        for (Map.Entry<String, Integer> e : getStackSizes().entrySet())
+            props.setProperty(e.getKey(), e.getValue().toString());
+        try (OutputStream os = new FileOutputStream(file)) {
+            props.store(os, "Pulsar fiber stack sizes");
+        }
+    }
+
+    private static int staticInt(Class<?> clazz, String name) throws ReflectiveOperationException {
+        final Field f = clazz.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.getInt(null);
+    }
+
+    private static final class Entry {
+        volatile int size;
+    }
+
+    private FiberStackSizes() {
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.strands.Strand;
+import co.paralleluniverse.strands.channels.Channel;
+import co.paralleluniverse.strands.channels.Channels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A shared, coarse-grained timer for Pulsar timeouts.
+ * <p>
+ * Deadlines are rounded up to the timer's tick (by default 10ms, set with the
+ * {@code co.paralleluniverse.pulsar.timer.tickMillis} system property) and kept in a hashed wheel, so scheduling and
+ * cancelling a timeout are O(1) and involve no fiber-scheduler timer. Timeout channels with the same (rounded) deadline
+ * are shared.
+ */
+public final class HashedWheelTimer {
+    private static final String TICK_PROPERTY = "co.paralleluniverse.pulsar.timer.tickMillis";
+    private static final String WHEEL_SIZE_PROPERTY = "co.paralleluniverse.pulsar.timer.wheelSize";
+    private static final HashedWheelTimer instance = new HashedWheelTimer(
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(TICK_PROPERTY, 10)),
+            Integer.getInteger(WHEEL_SIZE_PROPERTY, 512));
+
+    public static HashedWheelTimer getInstance() {
+        return instance;
+    }
+
+    private final long tickNanos;
+    private final long origin;
+    private final ConcurrentLinkedQueue<Entry>[] wheel;
+    private final int mask;
+    private final ConcurrentHashMap<Long, ChannelEntry> channels = new ConcurrentHashMap<Long, ChannelEntry>();
+    private volatile long processedTick = -1;
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    HashedWheelTimer(long tickNanos, int wheelSize) {
+        if (tickNanos <= 0)
+            throw new IllegalArgumentException("tick must be positive: " + tickNanos);
+        final int size = Integer.highestOneBit(Math.max(wheelSize, 2) * 2 - 1); // round up to a power of 2
+        this.tickNanos = tickNanos;
+        this.origin = System.nanoTime();
+        this.mask = size - 1;
+        this.wheel = new ConcurrentLinkedQueue[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new ConcurrentLinkedQueue<Entry>();
+
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HashedWheelTimer.this.run();
+            }
+        }, "pulsar-timer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Returns a channel that will close after the given timeout (rounded up to the timer's tick).
+     * Calls with timeouts that round up to the same deadline return the same channel.
+     */
+    public Channel<Object> timeout(long timeout, TimeUnit unit) {
+        final long deadlineTick = tick(System.nanoTime() + unit.toNanos(timeout));
+        final Long key = deadlineTick;
+        ChannelEntry e = channels.get(key);
+        if (e != null) {
+            shared.incrementAndGet();
+            return e.channel;
+        }
+        final ChannelEntry e1 = new ChannelEntry(deadlineTick);
+        e = channels.putIfAbsent(key, e1);
+        if (e != null) {
+            shared.incrementAndGet();
+            return e.channel;
+        }
+        schedule(e1);
+        return e1.channel;
+    }
+
+    /**
+     * Unparks the given strand at the given deadline (in {@link System#nanoTime() nanoTime} terms, rounded up to the timer's tick).
+     * The returned entry should be cancelled if the wakeup is no longer needed.
+     */
+    public Entry wakeup(Strand strand, long deadlineNanos) {
+        final Entry e = new WakeupEntry(tick(deadlineNanos), strand);
+        schedule(e);
+        return e;
+    }
+
+    /**
+     * The number of timers scheduled so far.
+     */
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    /**
+     * The number of timeout channel requests served by an already-scheduled channel.
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    private long tick(long nanos) {
+        final long t = nanos - origin;
+        return t <= 0 ? 0 : (t + tickNanos - 1) / tickNanos;
+    }
+
+    private void schedule(Entry e) {
+        scheduled.incrementAndGet();
+        wheel[(int) (e.deadlineTick & mask)].add(e);
+        if (processedTick >= e.deadlineTick) // the timer thread may have already drained the slot; fire() is idempotent
+            e.fire();
+    }
+
+    private void run() {
+        long tick = 0;
+        for (;;) {
+            final long now = System.nanoTime();
+            final long nowTick = (now - origin) / tickNanos;
+            while (tick <= nowTick) {
+                processedTick = tick; // published before draining, so a concurrent schedule() can't slip in behind it
+                expire(tick);
+                tick++;
+            }
+            LockSupport.parkNanos(this, origin + tick * tickNanos - now);
+        }
+    }
+
+    private void expire(long tick) {
+        final ConcurrentLinkedQueue<Entry> bucket = wheel[(int) (tick & mask)];
+        final List<Entry> entries = new ArrayList<Entry>();
+        Entry e;
+        while ((e = bucket.poll()) != null)
+            entries.add(e);
+        for (Entry e1 : entries) {
+            if (e1.state.get() != Entry.PENDING)
+                continue;
+            if (e1.deadlineTick <= tick)
+                e1.fire();
+            else
+                bucket.add(e1); // due in a later round
+        }
+    }
+
+    public static abstract class Entry {
+        static final int PENDING = 0;
+        static final int FIRED = 1;
+        static final int CANCELLED = 2;
+
+        final long deadlineTick;
+        final AtomicInteger state = new AtomicInteger(PENDING);
+
+        Entry(long deadlineTick) {
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels this timer. Returns {@code true} if the timer had not yet fired.
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        void fire() {
+            if (state.compareAndSet(PENDING, FIRED))
+                expired();
+        }
+
+        abstract void expired();
+    }
+
+    private static final class WakeupEntry extends Entry {
+        private final Strand strand;
+
+        WakeupEntry(long deadlineTick, Strand strand) {
+            super(deadlineTick);
+            this.strand = strand;
+        }
+
+        @Override
+        void expired() {
+            Strand.unpark(strand);
+        }
+    }
+
+    private final class ChannelEntry extends Entry {
+        final Channel<Object> channel = Channels.newChannel(0, Channels.OverflowPolicy.BLOCK, false, false);
+
+        ChannelEntry(long deadlineTick) {
+            super(deadlineTick);
+        }
+
+        @Override
+        void expired() {
+            channels.remove(deadlineTick, this);
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.fibers.instrument.Retransform;
+import co.paralleluniverse.asm.ClassReader;
+import co.paralleluniverse.asm.ClassWriter;
+import co.paralleluniverse.asm.Opcodes;
+import co.paralleluniverse.asm.Type;
+import co.paralleluniverse.asm.tree.AnnotationNode;
+import co.paralleluniverse.asm.tree.ClassNode;
+import co.paralleluniverse.asm.tree.InsnList;
+import co.paralleluniverse.asm.tree.InsnNode;
+import co.paralleluniverse.asm.tree.LabelNode;
+import co.paralleluniverse.asm.tree.LdcInsnNode;
+import co.paralleluniverse.asm.tree.MethodInsnNode;
+import co.paralleluniverse.asm.tree.MethodNode;
+import co.paralleluniverse.asm.tree.TryCatchBlockNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts, for every method instrumented by Quasar, how many times it's been invoked and how many times it has actually
+ * been suspended.
+ * <p>
+ * Profiling is turned on by setting the {@code co.paralleluniverse.pulsar.instrument.profile} system property to an
+ * output directory. When the JVM exits, the profiler writes three files to that directory:
+ * <ul>
+ * <li>{@code instrumentation-profile.txt} - a report of all instrumented methods, ranked by invocation count</li>
+ * <li>{@code suspendables} - the methods that have been suspended, in {@code META-INF/suspendables} format</li>
+ * <li>{@code pulsar-nonsuspendables} - the methods that have never been suspended. If placed in {@code META-INF/},
+ * {@link PulsarSuspendableClassifier} will not auto-instrument them.</li>
+ * </ul>
+ * Only classes compiled for Java 6 or below (which include all classes compiled by Clojure) are profiled, as the
+ * counting code is injected without recomputing stack-map frames.
+ * <p>
+ * The profile is only as good as the workload that produced it: a method that hasn't been suspended in the profiling
+ * run may still be suspended in another. Runs using an exclusion list should be verified with
+ * {@code -Dco.paralleluniverse.fibers.verifyInstrumentation=true}.
+ */
+public final class InstrumentationProfiler implements ClassFileTransformer {
+    public static final String PROFILE_PROPERTY = "co.paralleluniverse.pulsar.instrument.profile";
+
+    private static final String INSTRUMENTED_DESC = "Lco/paralleluniverse/fibers/Instrumented;";
+    private static final String[] SUSPEND_EXCEPTIONS = {
+        "co/paralleluniverse/fibers/SuspendExecution",
+        "co/paralleluniverse/fibers/RuntimeSuspendExecution"};
+    private static final String PROFILER = Type.getInternalName(InstrumentationProfiler.class);
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private static final Object lock = new Object();
+    private static volatile Counter[] counters = new Counter[0];
+    private static volatile boolean installed;
+
+    /**
+     * Installs the profiler if the profiling system property is set. Called when Pulsar is loaded.
+     */
+    static void installIfEnabled() {
+        final String dir = System.getProperty(PROFILE_PROPERTY);
+        if (dir == null || installed)
+            return;
+        installed = true;
+        final Instrumentation instrumentation = Retransform.getInstrumentation();
+        if (instrumentation == null) {
+            System.err.println("WARNING: Pulsar instrumentation profiler requires the Quasar agent; profiling is disabled.");
+            return;
+        }
+        // Registered after Quasar's transformer, so we see (and count) Quasar's output
+        instrumentation.addTransformer(new InstrumentationProfiler(), true);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeReport(new File(dir));
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }, "pulsar-instrumentation-profiler"));
+    }
+
+    public static void enter(int id) {
+        counters[id].entries.incrementAndGet();
+    }
+
+    public static void suspended(int id) {
+        counters[id].suspensions.incrementAndGet();
+    }
+
+    /**
+     * Returns a snapshot of the profile, ranked by invocation count.
+     */
+    public static List<Counter> getProfile() {
+        final List<Counter> cs = new ArrayList<Counter>();
+        Collections.addAll(cs, counters);
+        Collections.sort(cs, new Comparator<Counter>() {
+            @Override
+            public int compare(Counter o1, Counter o2) {
+                final long i1 = o1.getInvocations();
+                final long i2 = o2.getInvocations();
+                return i1 > i2 ? -1 : (i1 == i2 ? o1.method.compareTo(o2.method) : 1);
+            }
+        });
+        return cs;
+    }
+
+    public static void writeReport(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        final List<Counter> profile = getProfile();
+        try (PrintWriter report = new PrintWriter(new File(dir, "instrumentation-profile.txt"), "UTF-8");
+             PrintWriter suspendables = new PrintWriter(new File(dir, "suspendables"), "UTF-8");
+             PrintWriter nonSuspendables = new PrintWriter(new File(dir, "pulsar-nonsuspendables"), "UTF-8")) {
+            report.printf("%15s %15s %8s  %s%n", "invocations", "suspensions", "susp.%", "method");
+            int never = 0;
+            for (Counter c : profile) {
+                final long invocations = c.getInvocations();
+                final long suspensions = c.getSuspensions();
+                report.printf("%15d %15d %8.2f  %s%s%n", invocations, suspensions,
+                        invocations > 0 ? 100.0 * suspensions / invocations : 0.0, c.method, suspensions == 0 ? "  [never suspended]" : "");
+                if (suspensions > 0)
+                    suspendables.println(c.method);
+                else {
+                    nonSuspendables.println(c.method);
+                    never++;
+                }
+            }
+            report.printf("%n%d instrumented methods, %d never suspended%n", profile.size(), never);
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null)
+            return null;
+        try {
+            final ClassReader cr = new ClassReader(classfileBuffer);
+            final ClassNode cn = new ClassNode();
+            cr.accept(cn, 0);
+            if ((cn.version & 0xFFFF) > Opcodes.V1_6)
+                return null;
+
+            boolean changed = false;
+            for (MethodNode mn : cn.methods) {
+                if (isInstrumented(mn) && mn.instructions.size() > 0) {
+                    inject(mn, id(className.replace('/', '.') + '.' + mn.name));
+                    changed = true;
+                }
+            }
+            if (!changed)
+                return null;
+
+            final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            cn.accept(cw);
+            return cw.toByteArray();
+        } catch (Throwable t) {
+            System.err.println("WARNING: Pulsar instrumentation profiler failed to transform " + className + ": " + t);
+            return null;
+        }
+    }
+
+    private static boolean isInstrumented(MethodNode mn) {
+        if (mn.visibleAnnotations == null)
+            return false;
+        for (AnnotationNode an : mn.visibleAnnotations) {
+            if (INSTRUMENTED_DESC.equals(an.desc))
+                return true;
+        }
+        return false;
+    }
+
+    // Counts entries at the very start of the method, *before* Quasar's prologue, so resumes are counted as entries too
+    // (and subtracted later); counts suspensions in an outermost handler for SuspendExecution, which rethrows.
+    private static void inject(MethodNode mn, int id) {
+        final LabelNode start = new LabelNode();
+        final LabelNode end = new LabelNode();
+        final LabelNode handler = new LabelNode();
+
+        final InsnList prologue = new InsnList();
+        prologue.add(new LdcInsnNode(id));
+        prologue.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PROFILER, "enter", "(I)V", false));
+        prologue.add(start);
+        mn.instructions.insert(prologue);
+
+        final InsnList epilogue = new InsnList();
+        epilogue.add(end);
+        epilogue.add(handler);
+        epilogue.add(new LdcInsnNode(id));
+        epilogue.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PROFILER, "suspended", "(I)V", false));
+        epilogue.add(new InsnNode(Opcodes.ATHROW));
+        mn.instructions.add(epilogue);
+
+        for (String ex : SUSPEND_EXCEPTIONS)
+            mn.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, ex)); // last, so inner handlers take precedence
+    }
+
+    private static int id(String method) {
+        final Integer id = ids.get(method);
+        if (id != null)
+            return id; // a retransformed class
+        synchronized (lock) {
+            final Integer id1 = ids.get(method);
+            if (id1 != null)
+                return id1;
+            final Counter[] cs = counters;
+            final Counter[] cs1 = new Counter[cs.length + 1];
+            System.arraycopy(cs, 0, cs1, 0, cs.length);
+            cs1[cs.length] = new Counter(method);
+            counters = cs1;
+            ids.put(method, cs.length);
+            return cs.length;
+        }
+    }
+
+    public static final class Counter {
+        final String method;
+        final AtomicLong entries = new AtomicLong();
+        final AtomicLong suspensions = new AtomicLong();
+
+        Counter(String method) {
+            this.method = method;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * The number of times the method has been called (excluding resumes).
+         */
+        public long getInvocations() {
+            return Math.max(0, entries.get() - suspensions.get());
+        }
+
+        /**
+         * The number of times the method has been suspended.
+         */
+        public long getSuspensions() {
+            return suspensions.get();
+        }
+
+        @Override
+        public String toString() {
+            return method + " invocations: " + getInvocations() + " suspensions: " + getSuspensions();
+        }
+    }
+
+    private InstrumentationProfiler() {
+    }
+}
@@ -18,9 +18,13 @@ import clojure.lang.IFn;
 import clojure.lang.ISeq;
 
 /**
+ * No longer used by Pulsar: instrumentation status is now tracked per class (see {@link ClojureHelper#isInstrumented(Class)}),
+ * and {@code suspendable!} returns the original function.
  *
  * @author pron
+ * @deprecated
  */
+@Deprecated
 public class InstrumentedIFn implements IFn, Fn, IInstrumented {
     public final IFn fn;
 
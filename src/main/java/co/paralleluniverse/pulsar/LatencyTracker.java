@@ -0,0 +1,106 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps a window of recent latency samples and computes percentiles over it. Used to decide when to hedge calls.
+ * <p>
+ * Samples are recorded into a fixed-size ring without locking. Percentiles are computed by sorting a snapshot of the
+ * ring, and are cached until a number of new samples have been recorded, so querying them is usually cheap.
+ */
+public final class LatencyTracker {
+    private static final int DEFAULT_WINDOW = 1024;
+    private static final int MIN_SAMPLES = 16;
+
+    private static final LoadingCache<Object, LatencyTracker> trackers = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Object, LatencyTracker>() {
+        @Override
+        public LatencyTracker load(Object key) {
+            return new LatencyTracker(DEFAULT_WINDOW);
+        }
+    });
+
+    /**
+     * Returns the tracker associated with the given object (compared by identity), creating it if necessary.
+     * The tracker is discarded when the object is garbage collected.
+     */
+    public static LatencyTracker of(Object key) {
+        return trackers.getUnchecked(key);
+    }
+
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+    private final int recomputeInterval;
+    private volatile Cached cached;
+
+    public LatencyTracker(int window) {
+        if (window < MIN_SAMPLES)
+            throw new IllegalArgumentException("window must be at least " + MIN_SAMPLES + ": " + window);
+        this.samples = new AtomicLongArray(window);
+        this.recomputeInterval = Math.max(1, window / 8);
+    }
+
+    public void record(long nanos) {
+        final long i = count.getAndIncrement();
+        samples.lazySet((int) (i % samples.length()), nanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the given percentile (between 0 and 100) of the recorded latencies, in nanoseconds, or {@code -1} if
+     * too few samples have been recorded.
+     */
+    public long percentile(double p) {
+        if (p < 0 || p > 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + p);
+        final long n = count.get();
+        if (n < MIN_SAMPLES)
+            return -1;
+        final Cached c = cached;
+        if (c != null && c.p == p && n - c.count < recomputeInterval)
+            return c.value;
+
+        final int size = (int) Math.min(n, samples.length());
+        final long[] snapshot = new long[size];
+        for (int i = 0; i < size; i++)
+            snapshot[i] = samples.get(i);
+        Arrays.sort(snapshot);
+        final int rank = (int) Math.ceil(p / 100 * size); // nearest-rank method
+        final long value = snapshot[Math.max(0, Math.min(size, rank) - 1)];
+        cached = new Cached(p, n, value);
+        return value;
+    }
+
+    private static final class Cached {
+        final double p;
+        final long count;
+        final long value;
+
+        Cached(double p, long count, long value) {
+            this.p = p;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
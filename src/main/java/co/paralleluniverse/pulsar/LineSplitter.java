@@ -0,0 +1,100 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a stream of byte chunks into lines. Used by the file readers.
+ * <p>
+ * Lines end with {@code \n} or {@code \r\n}; the terminators are not included in the lines. A line spanning several
+ * chunks is kept until its end is found. Searching for the terminator byte-by-byte works for UTF-8 and all other
+ * charsets that encode {@code \n} as a single byte that is never part of another character.
+ */
+public final class LineSplitter {
+    private final Charset charset;
+    private byte[] partial = new byte[128];
+    private int partialLength;
+
+    public LineSplitter(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Consumes a chunk, and returns the lines it completes. The chunk's position is advanced to its limit.
+     */
+    public List<String> split(ByteBuffer chunk) {
+        final List<String> lines = new ArrayList<String>();
+        int start = chunk.position();
+        final int limit = chunk.limit();
+        for (int i = start; i < limit; i++) {
+            if (chunk.get(i) == '\n') {
+                lines.add(line(chunk, start, i));
+                start = i + 1;
+            }
+        }
+        append(chunk, start, limit);
+        chunk.position(limit);
+        return lines;
+    }
+
+    /**
+     * Returns the last line, if the stream doesn't end with a line terminator, or {@code null} otherwise.
+     */
+    public String flush() {
+        if (partialLength == 0)
+            return null;
+        final String s = decode(partial, 0, partialLength);
+        partialLength = 0;
+        return s;
+    }
+
+    private String line(ByteBuffer chunk, int start, int end) {
+        final String s;
+        if (partialLength == 0) {
+            if (end > start && chunk.get(end - 1) == '\r')
+                end--;
+            final byte[] bs = new byte[end - start];
+            for (int i = 0; i < bs.length; i++)
+                bs[i] = chunk.get(start + i);
+            s = new String(bs, charset);
+        } else {
+            append(chunk, start, end);
+            s = decode(partial, 0, partialLength);
+            partialLength = 0;
+        }
+        return s;
+    }
+
+    private String decode(byte[] bs, int offset, int length) {
+        if (length > 0 && bs[offset + length - 1] == '\r')
+            length--;
+        return new String(bs, offset, length, charset);
+    }
+
+    private void append(ByteBuffer chunk, int start, int end) {
+        final int n = end - start;
+        if (n == 0)
+            return;
+        if (partialLength + n > partial.length)
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + n));
+        for (int i = 0; i < n; i++)
+            partial[partialLength + i] = chunk.get(start + i);
+        partialLength += n;
+    }
+}
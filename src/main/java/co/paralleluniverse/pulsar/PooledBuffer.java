@@ -0,0 +1,188 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.common.util.Debug;
+import co.paralleluniverse.strands.Strand;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reference-counted byte buffer taken from a {@link BufferPool}, to be passed as a message.
+ * <p>
+ * A pooled buffer starts with a reference count of 1, held by the strand that acquired it. Sending it (with
+ * {@code !}, {@code snd} or {@code >!}) transfers that reference to the receiver without copying the buffer; the
+ * sender must not touch it afterwards. A strand that shares a buffer - say, sends it to several receivers - must
+ * {@link #retain() retain} it once for every additional reference. Every holder of a reference calls
+ * {@link #release() release} when it's done with the buffer, and when the last one does, the buffer is returned to the
+ * pool. Releasing is never automatic: a receiver that doesn't release the buffer keeps it out of the pool until it's
+ * garbage collected.
+ * <p>
+ * In debug mode ({@code co.paralleluniverse.debugMode}), or if the
+ * {@code co.paralleluniverse.pulsar.buffers.detectLeaks} system property is {@code true}:
+ * <ul>
+ * <li>Buffers that are garbage collected without having been released are reported, along with where they were
+ * acquired.</li>
+ * <li>A buffer that has been sent, and has a single reference, may only be accessed by a single receiving strand.
+ * (A retained buffer is shared, so it may be accessed by all of its holders.)</li>
+ * </ul>
+ */
+public final class PooledBuffer {
+    public static final String DETECT_LEAKS_PROPERTY = "co.paralleluniverse.pulsar.buffers.detectLeaks";
+
+    private static final boolean debug = Debug.isDebug() || Boolean.getBoolean(DETECT_LEAKS_PROPERTY);
+    private static final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<PooledBuffer>();
+    private static final Set<Leak> live = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+    private static final AtomicLong leaks = new AtomicLong();
+
+    public static PooledBuffer acquire(BufferPool pool, int size) {
+        if (debug)
+            reportLeaks();
+        return new PooledBuffer(pool, pool.acquire(size));
+    }
+
+    /**
+     * The number of buffers that have been found to have leaked (only tracked in debug mode).
+     */
+    public static long getLeakCount() {
+        if (debug)
+            reportLeaks();
+        return leaks.get();
+    }
+
+    private final BufferPool pool;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final Leak leak;
+    private volatile ByteBuffer buffer;
+    private volatile Object owner; // a Fiber or a Thread
+
+    private PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        if (debug) {
+            this.owner = currentStrand();
+            this.leak = new Leak(this);
+            live.add(leak);
+        } else
+            this.leak = null;
+    }
+
+    /**
+     * Returns the underlying buffer.
+     *
+     * @throws IllegalStateException if the buffer has been released (or, in debug mode, if it has a single reference,
+     *                               and it's being accessed by a strand other than the one it's been last sent to)
+     */
+    public ByteBuffer buffer() {
+        final ByteBuffer b = buffer;
+        if (b == null)
+            throw new IllegalStateException("Buffer has been released");
+        if (debug && refs.get() == 1) { // ownership isn't tracked for shared buffers
+            final Object s = currentStrand();
+            if (owner == null)
+                owner = s;
+            else if (owner != s)
+                throw new IllegalStateException("Buffer has been sent by " + owner + "; it may not be accessed by " + s);
+        }
+        return b;
+    }
+
+    public int refCount() {
+        return refs.get();
+    }
+
+    /**
+     * Adds a reference to this buffer.
+     *
+     * @return this buffer
+     */
+    public PooledBuffer retain() {
+        for (;;) {
+            final int r = refs.get();
+            if (r <= 0)
+                throw new IllegalStateException("Buffer has been released");
+            if (refs.compareAndSet(r, r + 1))
+                return this;
+        }
+    }
+
+    /**
+     * Drops a reference to this buffer, returning it to its pool if it's the last one.
+     *
+     * @return {@code true} if the buffer has been returned to the pool
+     */
+    public boolean release() {
+        final int r = refs.decrementAndGet();
+        if (r > 0)
+            return false;
+        if (r < 0) {
+            refs.incrementAndGet();
+            throw new IllegalStateException("Buffer has already been released");
+        }
+        final ByteBuffer b = buffer;
+        buffer = null;
+        if (leak != null) {
+            live.remove(leak);
+            leak.clear();
+        }
+        pool.release(b);
+        return true;
+    }
+
+    /**
+     * Called when the buffer is sent as a message; in debug mode, the next strand to access it becomes its owner.
+     */
+    public PooledBuffer transfer() {
+        if (debug)
+            owner = null;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        final ByteBuffer b = buffer;
+        return "PooledBuffer{" + (b != null ? b : "released") + " refs: " + refs.get() + '}';
+    }
+
+    private static Object currentStrand() {
+        return Strand.currentStrand().getUnderlying();
+    }
+
+    private static void reportLeaks() {
+        for (Reference<? extends PooledBuffer> r; (r = collected.poll()) != null;) {
+            final Leak l = (Leak) r;
+            if (live.remove(l)) {
+                leaks.incrementAndGet();
+                System.err.println("WARNING: A PooledBuffer has been garbage collected without being released. It was acquired at:");
+                l.site.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private static final class Leak extends PhantomReference<PooledBuffer> {
+        final Throwable site = new Throwable("PooledBuffer acquired");
+
+        Leak(PooledBuffer b) {
+            super(b, collected);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import clojure.lang.IPersistentVector;
+import clojure.lang.RT;
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.SimpleConditionSynchronizer;
+import co.paralleluniverse.strands.Strand;
+import co.paralleluniverse.strands.SuspendableRunnable;
+import co.paralleluniverse.strands.Timeout;
+import co.paralleluniverse.strands.channels.ReceivePort;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent set of receive ports to select from, used by {@code port-set}.
+ * <p>
+ * Unlike a one-off select, which registers with every port each time it's called, a port set watches each of its ports
+ * with a fiber of its own for as long as the port is in the set. The fiber receives a message from the port, puts the
+ * port in the set's ready queue, and waits for the message to be selected before receiving the next one. So a select
+ * only looks at the ready queue, and costs the same no matter how many ports are in the set; and each port has at
+ * most one message taken out of it that hasn't yet been selected.
+ * <p>
+ * In a fair set, ready ports are selected in the order they've become ready, so a port that always has messages waits
+ * its turn behind all other ready ports. In a priority set, the ready port added to the set first is selected first.
+ * <p>
+ * A port that's been closed is selected once, with a {@code null} message, and then leaves the set.
+ */
+public final class PortSet {
+    private final ConcurrentHashMap<ReceivePort<?>, Member> members = new ConcurrentHashMap<ReceivePort<?>, Member>();
+    private final PriorityQueue<Member> ready; // guarded by this
+    private final SimpleConditionSynchronizer sync = new SimpleConditionSynchronizer(this);
+    private final AtomicLong indexes = new AtomicLong();
+    private long seq; // guarded by this
+    private volatile boolean closed;
+
+    /**
+     * @param priority whether ready ports are selected in the order they've been added ({@code true}) or in the order
+     *                 they've become ready ({@code false})
+     */
+    public PortSet(boolean priority) {
+        this.ready = new PriorityQueue<Member>(16, priority ? BY_INDEX : BY_READINESS);
+    }
+
+    /**
+     * Adds a port to the set. Returns {@code false} if it's already in the set.
+     */
+    public boolean add(ReceivePort<?> port) {
+        if (closed)
+            throw new IllegalStateException("port set is closed");
+        final Member m = new Member(port, indexes.getAndIncrement());
+        if (members.putIfAbsent(port, m) != null)
+            return false;
+        m.fiber.start();
+        return true;
+    }
+
+    /**
+     * Removes a port from the set. A message already taken from the port may still be selected.
+     * Returns {@code false} if the port isn't in the set.
+     */
+    public boolean remove(ReceivePort<?> port) {
+        final Member m = members.remove(port);
+        if (m == null)
+            return false;
+        m.stop();
+        return true;
+    }
+
+    public boolean contains(ReceivePort<?> port) {
+        return members.containsKey(port);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public synchronized int readyCount() {
+        return ready.size();
+    }
+
+    /**
+     * Removes all ports from the set.
+     */
+    public void close() {
+        closed = true;
+        for (ReceivePort<?> port : members.keySet())
+            remove(port);
+        sync.signalAll();
+    }
+
+    /**
+     * Returns {@code [message port]} for a ready port, or {@code null} if none is ready.
+     */
+    public IPersistentVector trySelect() {
+        Member m;
+        Object message;
+        synchronized (this) {
+            m = ready.poll();
+            if (m == null)
+                return null;
+            message = m.message;
+            m.message = null;
+        }
+        if (message == null || message instanceof Failure)
+            members.remove(m.port, m);
+        else {
+            m.consumed = true;
+            Strand.unpark(m.fiber);
+        }
+        if (message instanceof Failure)
+            throw ((Failure) message).e;
+        return RT.vector(message, m.port);
+    }
+
+    /**
+     * Blocks until a port is ready, and returns {@code [message port]}.
+     */
+    public IPersistentVector select() throws SuspendExecution, InterruptedException {
+        IPersistentVector res = trySelect();
+        if (res != null)
+            return res;
+        final Object token = sync.register();
+        try {
+            for (int i = 0; (res = trySelect()) == null && !closed; i++)
+                sync.await(i);
+            return res;
+        } finally {
+            sync.unregister(token);
+        }
+    }
+
+    /**
+     * Blocks until a port is ready, and returns {@code [message port]}, or {@code null} if the timeout expires first.
+     */
+    public IPersistentVector select(long timeout, TimeUnit unit) throws SuspendExecution, InterruptedException {
+        IPersistentVector res = trySelect();
+        if (res != null || timeout <= 0)
+            return res;
+        final Timeout t = new Timeout(timeout, unit);
+        final Object token = sync.register();
+        try {
+            for (int i = 0; (res = trySelect()) == null && !closed && !t.isExpired(); i++)
+                sync.await(i, t.nanosLeft(), TimeUnit.NANOSECONDS);
+            return res;
+        } finally {
+            sync.unregister(token);
+        }
+    }
+
+    private void ready(Member m, Object message) {
+        synchronized (this) {
+            m.message = message;
+            m.seq = seq++;
+            ready.add(m);
+        }
+        sync.signalAll();
+    }
+
+    private final class Member implements SuspendableRunnable {
+        final ReceivePort<?> port;
+        final long index;
+        long seq;       // guarded by the set
+        Object message; // guarded by the set
+        volatile boolean consumed;
+        volatile boolean removed;
+        final Fiber<Void> fiber;
+
+        Member(ReceivePort<?> port, long index) {
+            this.port = port;
+            this.index = index;
+            this.fiber = new Fiber<Void>(this);
+        }
+
+        @Override
+        public void run() throws SuspendExecution, InterruptedException {
+            try {
+                while (!removed) {
+                    final Object m;
+                    try {
+                        m = port.receive();
+                    } catch (RuntimeException e) { // the port has been closed with an exception
+                        ready(this, new Failure(e));
+                        return;
+                    }
+                    consumed = false;
+                    ready(this, m);
+                    if (m == null)
+                        return;
+                    while (!consumed && !removed)
+                        Strand.park();
+                }
+            } catch (InterruptedException e) {
+                // removed
+            }
+        }
+
+        void stop() {
+            removed = true;
+            fiber.interrupt();
+        }
+    }
+
+    private static final Comparator<Member> BY_INDEX = new Comparator<Member>() {
+        @Override
+        public int compare(Member m1, Member m2) {
+            return Long.compare(m1.index, m2.index);
+        }
+    };
+
+    private static final Comparator<Member> BY_READINESS = new Comparator<Member>() {
+        @Override
+        public int compare(Member m1, Member m2) {
+            return Long.compare(m1.seq, m2.seq);
+        }
+    };
+
+    private static final class Failure {
+        final RuntimeException e;
+
+        Failure(RuntimeException e) {
+            this.e = e;
+        }
+    }
+}
@@ -18,22 +18,37 @@ package co.paralleluniverse.pulsar;
  * @author circlespainter
  */
 import co.paralleluniverse.fibers.instrument.MethodDatabase;
+import co.paralleluniverse.fibers.instrument.Retransform;
 import co.paralleluniverse.fibers.instrument.MethodDatabase.SuspendableType;
 import co.paralleluniverse.fibers.instrument.SimpleSuspendableClassifier;
 import co.paralleluniverse.fibers.instrument.SuspendableClassifier;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ServiceLoader;
+import java.util.Set;
 
 public final class PulsarSuspendableClassifier implements SuspendableClassifier {
     private static final String CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_NAME = "co.paralleluniverse.pulsar.instrument.auto";
     private static final String CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_VALUE_ALL = "all";
+    private static final String CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_VALUE_MINIMAL = "minimal";
+    private static final List<String> CLOJURE_FUNCTION_BASE_CLASSES = Arrays.asList("clojure/lang/AFunction", "clojure/lang/RestFn");
+    private static final String NON_SUSPENDABLES_RESOURCE = "META-INF/pulsar-nonsuspendables";
 
     private final List<InstrumentMatcher[]> matchLists;
     private final boolean autoInstrumentEverythingClojure;
     private final SimpleSuspendableClassifier simpleClassifier;
+    private final Set<String> nonSuspendables;
+    private final CallGraphAnalyzer callGraph;
 
     @Override
     public final SuspendableType isSuspendable(final MethodDatabase db, final String sourceName, final String sourceDebugInfo,
@@ -46,11 +61,25 @@ public final class PulsarSuspendableClassifier implements SuspendableClassifier
             if (st != null)
                 return st;
 
+            // Then to the methods an instrumentation profile has found to never suspend (see InstrumentationProfiler)
+            if (!nonSuspendables.isEmpty() && nonSuspendables.contains(className.replace('/', '.') + '.' + methodName)) {
+                PulsarInstrumentListProvider.log(db, "auto", "method excluded by instrumentation profile",
+                                                 sourceName, isInterface, className, superClassName, interfaces, methodName, methodSignature);
+                return SuspendableType.NON_SUSPENDABLE;
+            }
+
             final InstrumentMatcher.Match<SuspendableType> t =
                 match(db, matchLists, sourceName, sourceDebugInfo, isInterface, className, superClassName, interfaces,
                 methodName, methodDesc, methodSignature, methodExceptions);
-            if (t != null)
+            if (t != null) {
+                if (callGraph != null && t.getValue() == SuspendableType.SUSPENDABLE && isUserFnInvocation(sourceName, className, superClassName, methodName)
+                        && !callGraph.maySuspend(db, className, methodName)) {
+                    PulsarInstrumentListProvider.log(db, "auto", "call-graph analysis found fn can never suspend",
+                                                     sourceName, isInterface, className, superClassName, interfaces, methodName, methodSignature);
+                    return SuspendableType.NON_SUSPENDABLE;
+                }
                 return t.getValue();
+            }
 
             PulsarInstrumentListProvider.log(db, "auto", "evaluation of matchlist didn't say anything",
                                              sourceName, isInterface, className, superClassName, interfaces, methodName, methodSignature);
@@ -62,11 +91,19 @@ public final class PulsarSuspendableClassifier implements SuspendableClassifier
     }
 
     public PulsarSuspendableClassifier(final ClassLoader classLoader) {
-        this.autoInstrumentEverythingClojure =  CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_VALUE_ALL.equals(System.getProperty(CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_NAME));
+        final String strategy = System.getProperty(CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_NAME);
+        this.autoInstrumentEverythingClojure = CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_VALUE_ALL.equals(strategy)
+                                               || CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_VALUE_MINIMAL.equals(strategy);
+        if (CLOJURE_AUTO_INSTRUMENT_STRATEGY_SYSTEM_PROPERTY_VALUE_MINIMAL.equals(strategy)) {
+            this.callGraph = new CallGraphAnalyzer();
+            Retransform.addClassLoadListener(callGraph);
+        } else
+            this.callGraph = null;
         this.matchLists = loadMatchLists(classLoader);
         if (this.matchLists.size() == 0)
             this.matchLists.add(new PulsarInstrumentListProvider().getMatchList());
         this.simpleClassifier = new SimpleSuspendableClassifier(classLoader);
+        this.nonSuspendables = loadNonSuspendables(classLoader);
     }
 
     public PulsarSuspendableClassifier() {
@@ -83,6 +120,34 @@ public final class PulsarSuspendableClassifier implements SuspendableClassifier
         return ret;
     }
 
+    // Pulsar's own namespaces, tests and examples are matched by explicit rules, so only analyze user code
+    private static boolean isUserFnInvocation(final String sourceName, final String className, final String superClassName, final String methodName) {
+        return sourceName != null && sourceName.endsWith(".clj") && className.contains("$") && !className.startsWith("co/paralleluniverse/")
+               && CLOJURE_FUNCTION_BASE_CLASSES.contains(superClassName)
+               && (PulsarInstrumentListProvider.CLOJURE_FUNCTION_BASE_INVOCATION_METHODS.contains(methodName)
+                   || PulsarInstrumentListProvider.CLOJURE_FUNCTION_ADDITIONAL_INVOCATION_METHODS.contains(methodName));
+    }
+
+    private static Set<String> loadNonSuspendables(final ClassLoader classLoader) {
+        final Set<String> ret = new HashSet<String>();
+        try {
+            final Enumeration<URL> urls = classLoader != null ? classLoader.getResources(NON_SUSPENDABLES_RESOURCE) : ClassLoader.getSystemResources(NON_SUSPENDABLES_RESOURCE);
+            while (urls.hasMoreElements()) {
+                try (final BufferedReader r = new BufferedReader(new InputStreamReader(urls.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#"))
+                            ret.add(line);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        return ret;
+    }
+
     private static InstrumentMatcher.Match<SuspendableType> match(final MethodDatabase db, final List<InstrumentMatcher[]> matchLists, final String sourceName, final String sourceDebugInfo,
                                                                  final boolean isInterface, final String className, final String superClassName, final String[] interfaces,
                                                                  final String methodName, final String methodDesc, final String methodSignature, final String[] methodExceptions) {
@@ -0,0 +1,59 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.Timeout;
+import co.paralleluniverse.strands.channels.DelegatingSendPort;
+import co.paralleluniverse.strands.channels.SendPort;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SendPort} that acquires a permit from a {@link RateLimiter} before every send. A timed send fails without
+ * consuming a permit if one wouldn't be available within the timeout; a {@code trySend} that finds a permit but not
+ * room in the target port consumes the permit.
+ */
+public class RateLimitedSendPort<M> extends DelegatingSendPort<M> {
+    private final RateLimiter limiter;
+
+    public RateLimitedSendPort(SendPort<M> target, RateLimiter limiter) {
+        super(target);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void send(M message) throws SuspendExecution, InterruptedException {
+        limiter.acquire(1);
+        super.send(message);
+    }
+
+    @Override
+    public boolean send(M message, long timeout, TimeUnit unit) throws SuspendExecution, InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!limiter.tryAcquire(1, timeout, unit))
+            return false;
+        return super.send(message, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean send(M message, Timeout timeout) throws SuspendExecution, InterruptedException {
+        return send(message, timeout.nanosLeft(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean trySend(M message) {
+        return limiter.tryAcquire(1) && super.trySend(message);
+    }
+}
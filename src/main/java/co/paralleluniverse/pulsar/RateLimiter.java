@@ -0,0 +1,101 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.Strand;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A rate limiter implementing the generic cell rate algorithm (GCRA), which is equivalent to a token bucket.
+ * <p>
+ * The limiter's entire state is a single <i>theoretical arrival time</i>, updated with a CAS, so it can be shared by
+ * any number of strands without locking. Acquiring permits reserves them; the acquiring strand then sleeps exactly until
+ * the reserved permits become available, rather than polling. A request for several permits is granted as soon as the
+ * first is available, and the debt is paid by subsequent requests.
+ */
+public final class RateLimiter {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong tat;
+
+    /**
+     * @param permits the number of permits issued per {@code unit}
+     * @param unit    the time unit
+     * @param burst   the number of permits that may be acquired at once after the limiter has been idle
+     */
+    public RateLimiter(double permits, TimeUnit unit, int burst) {
+        if (permits <= 0)
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        if (burst <= 0)
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        this.intervalNanos = Math.max(1, (long) (unit.toNanos(1) / permits));
+        this.toleranceNanos = (burst - 1) * intervalNanos;
+        this.tat = new AtomicLong(System.nanoTime() - toleranceNanos);
+    }
+
+    /**
+     * Acquires the given number of permits, blocking the strand until they're available.
+     */
+    public void acquire(int permits) throws SuspendExecution, InterruptedException {
+        final long wait = reserve(permits, Long.MAX_VALUE);
+        if (wait > 0)
+            Strand.sleep(wait, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Acquires the given number of permits if they're immediately available.
+     */
+    public boolean tryAcquire(int permits) {
+        return reserve(permits, 0) >= 0;
+    }
+
+    /**
+     * Acquires the given number of permits if they become available within the given timeout, blocking the strand
+     * until they do. If they wouldn't, returns {@code false} immediately, without acquiring them.
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws SuspendExecution, InterruptedException {
+        final long wait = reserve(permits, unit.toNanos(timeout));
+        if (wait < 0)
+            return false;
+        if (wait > 0)
+            Strand.sleep(wait, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Reserves permits, and returns how long the caller must wait before using them, or {@code -1} (having reserved
+     * nothing) if that would be longer than {@code maxWaitNanos}.
+     */
+    private long reserve(int permits, long maxWaitNanos) {
+        if (permits <= 0)
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        final long increment = permits * intervalNanos;
+        for (;;) {
+            final long now = System.nanoTime();
+            final long t = tat.get();
+            final long wait = Math.max(0, t - toleranceNanos - now);
+            if (wait > maxWaitNanos)
+                return -1;
+            if (tat.compareAndSet(t, Math.max(t, now) + increment))
+                return wait;
+        }
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar;
+
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.SuspendableRunnable;
+import co.paralleluniverse.strands.dataflow.Val;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache behind {@code smemoize}: memoizes a suspendable function, coalescing concurrent calls with the same
+ * arguments.
+ * <p>
+ * The first caller to miss computes the value in its own strand; callers with the same arguments arriving while it does
+ * so block on the same {@link Val}. A computation that throws is not cached, and the exception is thrown to all the
+ * coalesced callers.
+ * <p>
+ * An unbounded cache is a {@link ConcurrentHashMap}. A bounded cache is kept in an access-ordered map under a lock that
+ * is only held for the map operation itself (never while computing). The LRU policy evicts the least recently used
+ * entry; the LFU policy evicts the least frequently used of the {@value #LFU_SAMPLE} least recently used entries.
+ * <p>
+ * With a TTL, entries expire that long after they were computed. With a refresh interval (shorter than the TTL), the
+ * first call after an entry has reached it triggers a recomputation in a new fiber, while the current value keeps being
+ * returned until the new one is ready.
+ */
+public final class SuspendableMemo {
+    private static final int LFU_SAMPLE = 16;
+    private static final Object NO_ARGS = new Object();
+    private static final Cache<Object, SuspendableMemo> registry = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * Associates a memoized function with its cache.
+     */
+    public static void register(Object fn, SuspendableMemo memo) {
+        registry.put(fn, memo);
+    }
+
+    /**
+     * Returns the cache of a function returned by {@code smemoize}, or {@code null} if {@code fn} isn't one.
+     */
+    public static SuspendableMemo of(Object fn) {
+        return registry.getIfPresent(fn);
+    }
+
+    private final IFn fn;
+    private final int maxSize;
+    private final boolean lfu;
+    private final long ttlNanos;
+    private final long refreshNanos;
+    private final ConcurrentHashMap<Object, Entry> unbounded;
+    private final LinkedHashMap<Object, Entry> bounded;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * @param fn           the memoized function
+     * @param maxSize      the maximum number of entries, or a non-positive value for an unbounded cache
+     * @param lfu          whether to evict by frequency ({@code true}) or by recency ({@code false})
+     * @param ttlNanos     how long entries live, or a non-positive value if they don't expire
+     * @param refreshNanos how long after it has been computed an entry is refreshed, or a non-positive value for no
+     *                     refresh-ahead
+     */
+    public SuspendableMemo(IFn fn, int maxSize, boolean lfu, long ttlNanos, long refreshNanos) {
+        if (refreshNanos > 0 && ttlNanos > 0 && refreshNanos >= ttlNanos)
+            throw new IllegalArgumentException("refresh interval must be shorter than the TTL");
+        this.fn = fn;
+        this.maxSize = maxSize;
+        this.lfu = lfu;
+        this.ttlNanos = ttlNanos;
+        this.refreshNanos = refreshNanos;
+        this.unbounded = maxSize > 0 ? null : new ConcurrentHashMap<Object, Entry>();
+        this.bounded = maxSize > 0 ? new LinkedHashMap<Object, Entry>(16, 0.75f, true) : null;
+    }
+
+    /**
+     * Returns the memoized function's value for the given arguments, computing it if necessary.
+     */
+    public Object get(final ISeq args) throws SuspendExecution, InterruptedException {
+        final Object key = args != null ? args : NO_ARGS;
+        Entry e = lookup(key);
+        final long now = System.nanoTime();
+        if (e != null && e.isDone() && e.isExpired(now)) {
+            remove(key, e);
+            e = null;
+        }
+        if (e == null) {
+            final Entry e1 = new Entry();
+            e = putIfAbsent(key, e1);
+            if (e == null) {
+                misses.incrementAndGet();
+                return compute(key, args, e1);
+            }
+        }
+
+        if (e.isDone()) {
+            hits.incrementAndGet();
+            if (refreshNanos > 0 && now - e.computedAt >= refreshNanos && e.refreshing.compareAndSet(false, true))
+                refresh(key, args, e);
+        } else
+            coalesced.incrementAndGet();
+        if (lfu)
+            e.frequency.incrementAndGet();
+        return e.get();
+    }
+
+    public void clear() {
+        if (unbounded != null)
+            unbounded.clear();
+        else {
+            synchronized (bounded) {
+                bounded.clear();
+            }
+        }
+    }
+
+    public int size() {
+        if (unbounded != null)
+            return unbounded.size();
+        synchronized (bounded) {
+            return bounded.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Returns the counters as a map with the keys {@code :hits}, {@code :misses}, {@code :coalesced}, {@code :evictions},
+     * {@code :refreshes} and {@code :size}.
+     */
+    public IPersistentMap getStats() {
+        return RT.map(
+                Keyword.intern("hits"), getHits(),
+                Keyword.intern("misses"), getMisses(),
+                Keyword.intern("coalesced"), getCoalesced(),
+                Keyword.intern("evictions"), getEvictions(),
+                Keyword.intern("refreshes"), getRefreshes(),
+                Keyword.intern("size"), size());
+    }
+
+    private Object compute(Object key, ISeq args, Entry e) throws SuspendExecution, InterruptedException {
+        final Object value;
+        try {
+            value = fn.applyTo(args);
+        } catch (SuspendExecution s) {
+            throw s;
+        } catch (Throwable t) {
+            remove(key, e);
+            e.complete(new Failure(t));
+            throw SuspendableMemo.<RuntimeException>sneakyThrow(t);
+        }
+        e.complete(value);
+        return value;
+    }
+
+    private void refresh(final Object key, final ISeq args, final Entry old) {
+        refreshes.incrementAndGet();
+        new Fiber<Void>(new SuspendableRunnable() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                final Entry e = new Entry();
+                try {
+                    e.complete(fn.applyTo(args));
+                } catch (SuspendExecution s) {
+                    throw s;
+                } catch (Throwable t) {
+                    old.refreshing.set(false); // keep the old value; the next call will try again
+                    return;
+                }
+                replace(key, old, e);
+            }
+        }).start();
+    }
+
+    private Entry lookup(Object key) {
+        if (unbounded != null)
+            return unbounded.get(key);
+        synchronized (bounded) {
+            return bounded.get(key);
+        }
+    }
+
+    private Entry putIfAbsent(Object key, Entry e) {
+        if (unbounded != null)
+            return unbounded.putIfAbsent(key, e);
+        synchronized (bounded) {
+            final Entry e0 = bounded.get(key);
+            if (e0 != null)
+                return e0;
+            bounded.put(key, e);
+            if (bounded.size() > maxSize)
+                evict();
+            return null;
+        }
+    }
+
+    private void remove(Object key, Entry e) {
+        if (unbounded != null)
+            unbounded.remove(key, e);
+        else {
+            synchronized (bounded) {
+                if (bounded.get(key) == e)
+                    bounded.remove(key);
+            }
+        }
+    }
+
+    private void replace(Object key, Entry old, Entry e) {
+        if (unbounded != null)
+            unbounded.replace(key, old, e);
+        else {
+            synchronized (bounded) {
+                if (bounded.get(key) == old)
+                    bounded.put(key, e);
+            }
+        }
+    }
+
+    // called with the lock held
+    private void evict() {
+        final Iterator<Map.Entry<Object, Entry>> it = bounded.entrySet().iterator();
+        if (!lfu) {
+            it.next();
+            it.remove();
+        } else {
+            Object victim = null;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < LFU_SAMPLE && it.hasNext(); i++) {
+                final Map.Entry<Object, Entry> me = it.next();
+                final int f = me.getValue().frequency.get();
+                if (f < min) {
+                    min = f;
+                    victim = me.getKey();
+                }
+            }
+            bounded.remove(victim);
+        }
+        evictions.incrementAndGet();
+    }
+
+    private final class Entry {
+        final Val<Object> val = new Val<Object>();
+        final AtomicInteger frequency = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long computedAt;
+
+        boolean isDone() {
+            return val.isDone();
+        }
+
+        boolean isExpired(long now) {
+            return ttlNanos > 0 && now - computedAt >= ttlNanos;
+        }
+
+        void complete(Object value) {
+            computedAt = System.nanoTime();
+            val.set(value);
+        }
+
+        Object get() throws SuspendExecution, InterruptedException {
+            final Object v = val.get();
+            if (v instanceof Failure)
+                throw SuspendableMemo.<RuntimeException>sneakyThrow(((Failure) v).t);
+            return v;
+        }
+    }
+
+    // Clojure functions may throw checked exceptions
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T sneakyThrow(Throwable t) throws T {
+        throw (T) t;
+    }
+
+    private static final class Failure {
+        final Throwable t;
+
+        Failure(Throwable t) {
+            this.t = t;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar.async;
+
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.Timeout;
+import co.paralleluniverse.strands.channels.Channels.OverflowPolicy;
+import co.paralleluniverse.strands.channels.QueueObjectChannel;
+import co.paralleluniverse.strands.queues.BasicQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single-assignment channel, used to implement core.async's {@code promise-chan} and the channels returned by
+ * {@code go}, {@code thread} and {@code fiber}.
+ * <p>
+ * The first message sent is kept, and any further messages are dropped. The channel closes itself once it has been
+ * given a message (waking up all waiting receivers), and if it's closed before that, all receives return {@code null}.
+ * A <i>repeating</i> channel (a {@code promise-chan}) returns the message to every receive, no matter how many strands
+ * receive or how many times; otherwise, the message is received once, like any other channel's, and the channel then
+ * reads as closed.
+ * <p>
+ * The message is held in a single slot rather than in a queue. In a repeating channel, {@code poll} doesn't clear the
+ * slot, so receives (including those made by {@link co.paralleluniverse.strands.channels.Selector selectors}) never
+ * find it empty once the message is in.
+ */
+public class PromiseChannel<Message> extends QueueObjectChannel<Message> {
+    /**
+     * Creates a repeating channel.
+     */
+    public PromiseChannel() {
+        this(true);
+    }
+
+    /**
+     * @param repeat whether every receive returns the message, or only the first
+     */
+    public PromiseChannel(boolean repeat) {
+        super(new PromiseQueue<Message>(repeat), OverflowPolicy.DROP, false, false);
+    }
+
+    @Override
+    public void send(Message message) throws SuspendExecution, InterruptedException {
+        super.send(message);
+        close();
+    }
+
+    @Override
+    public boolean send(Message message, long timeout, TimeUnit unit) throws SuspendExecution, InterruptedException {
+        final boolean res = super.send(message, timeout, unit);
+        close();
+        return res;
+    }
+
+    @Override
+    public boolean send(Message message, Timeout timeout) throws SuspendExecution, InterruptedException {
+        final boolean res = super.send(message, timeout);
+        close();
+        return res;
+    }
+
+    @Override
+    public boolean trySend(Message message) {
+        final boolean res = super.trySend(message);
+        close();
+        return res;
+    }
+
+    private static final class PromiseQueue<E> implements BasicQueue<E> {
+        private final boolean repeat;
+        private final AtomicBoolean assigned = new AtomicBoolean();
+        private final AtomicReference<E> value = new AtomicReference<E>();
+
+        PromiseQueue(boolean repeat) {
+            this.repeat = repeat;
+        }
+
+        @Override
+        public int capacity() {
+            return 1;
+        }
+
+        @Override
+        public boolean enq(E element) {
+            if (element == null)
+                throw new IllegalArgumentException("null values are not allowed");
+            if (!assigned.compareAndSet(false, true))
+                return false;
+            value.set(element);
+            return true;
+        }
+
+        @Override
+        public E poll() {
+            return repeat ? value.get() : value.getAndSet(null);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return value.get() == null;
+        }
+
+        @Override
+        public int size() {
+            return isEmpty() ? 0 : 1;
+        }
+    }
+}
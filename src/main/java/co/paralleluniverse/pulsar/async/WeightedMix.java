@@ -0,0 +1,220 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar.async;
+
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.channels.Channel;
+import co.paralleluniverse.strands.channels.Channels;
+import co.paralleluniverse.strands.channels.ReceivePort;
+import co.paralleluniverse.strands.channels.SelectAction;
+import co.paralleluniverse.strands.channels.Selector;
+import co.paralleluniverse.strands.channels.SendPort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mixes a dynamic set of input ports into an output port, giving each input a share of the output proportional to
+ * its weight (deficit round-robin). Each input's mode (mute, pause, solo) and weight is kept in its own volatile fields,
+ * so changing the state of an input doesn't rebuild the state of the whole mix. It is used to implement core.async's `mix`.
+ */
+public class WeightedMix<Message> {
+    public enum SoloEffect { MUTE_OTHERS, PAUSE_OTHERS }
+
+    private final SendPort<? super Message> out;
+    private final ConcurrentHashMap<ReceivePort<? extends Message>, Input<Message>> inputs = new ConcurrentHashMap<>();
+    private final Channel<Object> changes = Channels.newChannel(1, Channels.OverflowPolicy.DROP);
+    private volatile Input<Message>[] snapshot = newInputArray(0);
+    private volatile SoloEffect soloEffect = SoloEffect.MUTE_OTHERS;
+    private volatile int soloCount;
+
+    public WeightedMix(SendPort<? super Message> out) {
+        this.out = out;
+    }
+
+    public void add(ReceivePort<? extends Message> port) {
+        input(port);
+    }
+
+    public void remove(ReceivePort<? extends Message> port) {
+        final Input<Message> in = inputs.remove(port);
+        if (in != null) {
+            if (in.solo)
+                soloChanged();
+            changed();
+        }
+    }
+
+    public void removeAll() {
+        inputs.clear();
+        soloChanged();
+        changed();
+    }
+
+    /**
+     * Sets an input's state, adding the input to the mix if it's not already in it.
+     * {@code null} arguments leave the respective attribute unchanged.
+     */
+    public void setState(ReceivePort<? extends Message> port, Boolean mute, Boolean pause, Boolean solo, Number weight) {
+        if (weight != null && weight.intValue() < 1)
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        final Input<Message> in = input(port);
+        // mute and weight are read by the mixing strand on every message, so changing them needs no notification
+        if (mute != null)
+            in.mute = mute;
+        if (weight != null)
+            in.weight = weight.intValue();
+        boolean pauseChanged = false;
+        if (pause != null && pause != in.pause) {
+            in.pause = pause;
+            pauseChanged = true;
+        }
+        if (solo != null && solo != in.solo) {
+            in.solo = solo;
+            soloChanged();
+            changed();
+        } else if (pauseChanged)
+            wakeUp(); // the mixing strand may be parked without selecting on the input
+    }
+
+    public void setSoloEffect(SoloEffect effect) {
+        this.soloEffect = effect;
+        wakeUp();
+    }
+
+    /**
+     * Runs the mix, forwarding messages from the inputs to the output. Never returns.
+     */
+    public void run() throws SuspendExecution, InterruptedException {
+        final List<SelectAction<Object>> actions = new ArrayList<>();
+        for (;;) {
+            final Input<Message>[] ins = snapshot;
+            final boolean soloing = soloCount > 0;
+            final SoloEffect effect = soloEffect;
+
+            boolean progress = false;
+            for (Input<Message> in : ins) {
+                if (in.removed || paused(in, soloing, effect))
+                    continue;
+                in.credit += in.weight;
+                while (in.credit > 0) {
+                    final Message m = in.port.tryReceive();
+                    if (m == null) {
+                        if (in.port.isClosed())
+                            remove(in.port);
+                        in.credit = 0; // an idle input doesn't accumulate credit
+                        break;
+                    }
+                    in.credit--;
+                    progress = true;
+                    if (!muted(in, soloing, effect))
+                        out.send(m);
+                }
+            }
+            if (progress)
+                continue;
+
+            // nothing is immediately available: park until any active input, or the mix's state, changes
+            actions.clear();
+            actions.add(Selector.receive((ReceivePort) changes));
+            for (Input<Message> in : ins) {
+                if (!in.removed && !paused(in, soloing, effect))
+                    actions.add(Selector.receive((ReceivePort) in.port));
+            }
+            final SelectAction<Object> sa = Selector.select(false, actions);
+            if (sa.index() == 0)
+                continue;
+            final Input<Message> in = inputs.get(sa.port());
+            if (sa.message() == null) {
+                if (in != null)
+                    remove(in.port);
+                continue;
+            }
+            if (in != null) {
+                in.credit--; // charged against the input's next quantum
+                if (muted(in, soloCount > 0, soloEffect))
+                    continue;
+            }
+            out.send((Message) sa.message());
+        }
+    }
+
+    private Input<Message> input(ReceivePort<? extends Message> port) {
+        Input<Message> in = inputs.get(port);
+        if (in == null) {
+            final Input<Message> in1 = new Input<Message>(port);
+            in = inputs.putIfAbsent(port, in1);
+            if (in == null) {
+                in = in1;
+                changed();
+            }
+        }
+        return in;
+    }
+
+    private static boolean paused(Input<?> in, boolean soloing, SoloEffect effect) {
+        if (in.solo)
+            return false;
+        return in.pause || (soloing && effect == SoloEffect.PAUSE_OTHERS);
+    }
+
+    private static boolean muted(Input<?> in, boolean soloing, SoloEffect effect) {
+        if (in.solo)
+            return false;
+        return in.mute || (soloing && effect == SoloEffect.MUTE_OTHERS);
+    }
+
+    private synchronized void soloChanged() {
+        int n = 0;
+        for (Input<Message> in : inputs.values()) {
+            if (in.solo)
+                n++;
+        }
+        soloCount = n;
+    }
+
+    private synchronized void changed() {
+        final List<Input<Message>> current = new ArrayList<>(inputs.values());
+        for (Input<Message> in : snapshot) {
+            if (inputs.get(in.port) != in)
+                in.removed = true;
+        }
+        snapshot = current.toArray(WeightedMix.<Message>newInputArray(current.size()));
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        changes.trySend(Boolean.TRUE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M> Input<M>[] newInputArray(int n) {
+        return (Input<M>[]) new Input[n];
+    }
+
+    private static final class Input<Message> {
+        final ReceivePort<? extends Message> port;
+        volatile int weight = 1;
+        volatile boolean mute;
+        volatile boolean pause;
+        volatile boolean solo;
+        volatile boolean removed;
+        int credit; // only accessed by the mixing strand
+
+        Input(ReceivePort<? extends Message> port) {
+            this.port = port;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar.dataflow;
+
+import clojure.lang.AFn;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.Util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A glitch-free dataflow graph.
+ * <p>
+ * Unlike {@link co.paralleluniverse.strands.dataflow.Var}, which recomputes a formula every time any of its dependencies
+ * changes, nodes in a propagation graph are recomputed in topological (rank) order, at most once per transaction,
+ * and only if one of their dependencies has actually changed (by Clojure equality). Observers are notified once per
+ * transaction, after all recomputations are done, so they never see intermediate values.
+ * <p>
+ * Dependencies are discovered dynamically, by recording the nodes dereferenced while a formula is evaluated.
+ * Formulas are evaluated while holding the graph's lock, and so must not block.
+ */
+public final class PropagationGraph {
+    private static final Comparator<Node> BY_RANK = new Comparator<Node>() {
+        @Override
+        public int compare(Node o1, Node o2) {
+            return o1.rank < o2.rank ? -1 : (o1.rank == o2.rank ? 0 : 1);
+        }
+    };
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Node> dirty = new PriorityQueue<Node>(64, BY_RANK);
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+    private final ThreadLocal<Node> evaluating = new ThreadLocal<Node>();
+    private final AtomicLong transactions = new AtomicLong();
+
+    /**
+     * Creates a new input node with the given initial value.
+     */
+    public Node input(String name, Object value) {
+        final Node n = new Node(this, name, null);
+        n.value = value;
+        lock.lock();
+        try {
+            nodes.add(n);
+        } finally {
+            lock.unlock();
+        }
+        return n;
+    }
+
+    /**
+     * Creates a new formula node. The formula is evaluated immediately to discover its dependencies.
+     */
+    public Node formula(String name, IFn f) {
+        if (f == null)
+            throw new NullPointerException("formula is null");
+        final Node n = new Node(this, name, f);
+        lock.lock();
+        try {
+            nodes.add(n);
+            n.recompute();
+        } finally {
+            lock.unlock();
+        }
+        return n;
+    }
+
+    /**
+     * Starts a transaction in the current strand. Transactions nest: a nested transaction joins the outermost one, and
+     * updates are only propagated when the outermost transaction commits.
+     */
+    public void begin() {
+        Transaction t = transaction.get();
+        if (t == null) {
+            t = new Transaction();
+            transaction.set(t);
+        } else
+            t.savepoints.push(new LinkedHashMap<Node, Object>(t.updates));
+        t.depth++;
+    }
+
+    /**
+     * Commits the current strand's transaction, propagating all updates made within it if this is the outermost transaction.
+     */
+    public void commit() {
+        final Transaction t = transaction.get();
+        if (t == null)
+            throw new IllegalStateException("Not in a transaction");
+        if (--t.depth > 0) {
+            t.savepoints.pop();
+            return;
+        }
+        transaction.remove();
+        propagate(t.updates);
+    }
+
+    /**
+     * Aborts the current strand's innermost transaction, discarding the updates made within it.
+     * Aborting a nested transaction leaves the transactions enclosing it, and the updates made in them, in place.
+     */
+    public void abort() {
+        final Transaction t = transaction.get();
+        if (t == null)
+            throw new IllegalStateException("Not in a transaction");
+        if (--t.depth > 0) {
+            final Map<Node, Object> savepoint = t.savepoints.pop();
+            t.updates.clear();
+            t.updates.putAll(savepoint);
+            return;
+        }
+        transaction.remove();
+    }
+
+    /**
+     * The number of transactions (including single, non-batched updates) propagated by this graph.
+     */
+    public long getTransactionCount() {
+        return transactions.get();
+    }
+
+    /**
+     * Returns a map from each formula node in the graph to the number of times it's been recomputed.
+     */
+    public Map<Node, Long> getRecomputeCounts() {
+        lock.lock();
+        try {
+            final Map<Node, Long> counts = new LinkedHashMap<Node, Long>();
+            for (Node n : nodes) {
+                if (n.formula != null)
+                    counts.put(n, n.recomputes);
+            }
+            return counts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void resetRecomputeCounts() {
+        lock.lock();
+        try {
+            for (Node n : nodes)
+                n.recomputes = 0;
+            transactions.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void set(Node n, Object value) {
+        if (n.formula != null)
+            throw new IllegalStateException("Cannot set the value of formula node " + n);
+        final Transaction t = transaction.get();
+        if (t != null)
+            t.updates.put(n, value == null ? NULL : value);
+        else
+            propagate(Collections.<Node, Object>singletonMap(n, value == null ? NULL : value));
+    }
+
+    private void propagate(Map<Node, Object> updates) {
+        if (updates.isEmpty())
+            return;
+        final List<Node> changed = new ArrayList<Node>();
+        lock.lock();
+        try {
+            transactions.incrementAndGet();
+            for (Map.Entry<Node, Object> e : updates.entrySet()) {
+                final Node n = e.getKey();
+                final Object v = e.getValue() == NULL ? null : e.getValue();
+                if (!Util.equiv(n.value, v)) {
+                    n.value = v;
+                    changed.add(n);
+                    markDependents(n);
+                }
+            }
+            Node n;
+            while ((n = dirty.poll()) != null) {
+                n.dirty = false;
+                if (n.recompute()) {
+                    changed.add(n);
+                    markDependents(n);
+                }
+            }
+        } finally {
+            for (Node d : dirty) // only non-empty if a formula has thrown an exception
+                d.dirty = false;
+            dirty.clear();
+            lock.unlock();
+        }
+        for (Node n : changed)
+            n.notifyObservers();
+    }
+
+    private void markDependents(Node n) {
+        for (Node d : n.dependents) {
+            if (!d.dirty) {
+                d.dirty = true;
+                dirty.add(d);
+            }
+        }
+    }
+
+    private void raiseRank(Node n, int rank, Set<Node> path) {
+        if (n.rank >= rank)
+            return;
+        if (!path.add(n))
+            throw new IllegalStateException("Dependency cycle in propagation graph through " + n);
+        final boolean queued = n.dirty && dirty.remove(n);
+        n.rank = rank;
+        if (queued)
+            dirty.add(n);
+        for (Node d : n.dependents)
+            raiseRank(d, rank + 1, path);
+        path.remove(n);
+    }
+
+    private static final Object NULL = new Object();
+
+    private static final class Transaction {
+        int depth;
+        final Map<Node, Object> updates = new LinkedHashMap<Node, Object>();
+        final Deque<Map<Node, Object>> savepoints = new ArrayDeque<Map<Node, Object>>(); // one per nested transaction
+    }
+
+    /**
+     * A node in a {@link PropagationGraph}. Dereferencing the node returns its current value; invoking it with a single
+     * argument sets the value of an input node.
+     */
+    public static final class Node extends AFn implements IDeref {
+        private final PropagationGraph graph;
+        private final String name;
+        private final IFn formula;
+        private final Set<Node> dependencies = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        private final Set<Node> dependents = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        private final List<IFn> observers = new java.util.concurrent.CopyOnWriteArrayList<IFn>();
+        private volatile Object value;
+        private int rank;
+        private boolean dirty;
+        private boolean computed;
+        private long recomputes;
+
+        Node(PropagationGraph graph, String name, IFn formula) {
+            this.graph = graph;
+            this.name = name;
+            this.formula = formula;
+        }
+
+        @Override
+        public Object deref() {
+            final Node e = graph.evaluating.get();
+            if (e != null) {
+                if (dirty && graph.dirty.remove(this)) {
+                    // a dependency discovered before it's been recomputed; compute it now to avoid a glitch
+                    dirty = false;
+                    if (recompute())
+                        graph.markDependents(this);
+                }
+                if (e.dependencies.add(this))
+                    dependents.add(e);
+            }
+            return value;
+        }
+
+        @Override
+        public Object invoke(Object x) {
+            graph.set(this, x);
+            return this;
+        }
+
+        public void addObserver(IFn f) {
+            observers.add(f);
+        }
+
+        public void removeObserver(IFn f) {
+            observers.remove(f);
+        }
+
+        public long getRecomputeCount() {
+            return recomputes;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        public boolean isFormula() {
+            return formula != null;
+        }
+
+        // called with the graph lock held; returns true if the value has changed
+        boolean recompute() {
+            for (Node d : dependencies)
+                d.dependents.remove(this);
+            dependencies.clear();
+
+            final Node prev = graph.evaluating.get();
+            graph.evaluating.set(this);
+            final Object v;
+            try {
+                recomputes++;
+                v = formula.invoke();
+            } finally {
+                graph.evaluating.set(prev);
+            }
+
+            int r = 0;
+            for (Node d : dependencies)
+                r = Math.max(r, d.rank + 1);
+            try {
+                graph.raiseRank(this, r, Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>()));
+            } catch (IllegalStateException e) {
+                // unlink the node so that the cycle isn't followed again
+                for (Node d : dependencies)
+                    d.dependents.remove(this);
+                dependencies.clear();
+                throw e;
+            }
+
+            if (computed && Util.equiv(value, v))
+                return false;
+            computed = true;
+            value = v;
+            return true;
+        }
+
+        void notifyObservers() {
+            for (IFn f : observers)
+                f.invoke(value);
+        }
+
+        @Override
+        public String toString() {
+            return "Node{" + (name != null ? name + ", " : "") + "value: " + value + ", rank: " + rank + '}';
+        }
+    }
+}
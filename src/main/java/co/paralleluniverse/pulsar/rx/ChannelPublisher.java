@@ -0,0 +1,147 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar.rx;
+
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.Strand;
+import co.paralleluniverse.strands.SuspendableRunnable;
+import co.paralleluniverse.strands.channels.Channel;
+import co.paralleluniverse.strands.channels.Channels;
+import co.paralleluniverse.strands.channels.ProducerException;
+import co.paralleluniverse.strands.channels.ReceivePort;
+import co.paralleluniverse.strands.channels.SelectAction;
+import co.paralleluniverse.strands.channels.Selector;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactive Streams {@link Publisher} that publishes the messages received from a {@link ReceivePort}.
+ * <p>
+ * Each subscription is served by a fiber of its own, so if the publisher has more than one subscriber, they compete
+ * for the port's messages. The fiber parks while there is no outstanding demand, and, once woken, delivers as many
+ * immediately-available messages as the demand allows before parking again. While waiting for a message, it selects on
+ * the port together with the subscription's cancellation, so a cancelled subscription doesn't take a message it won't
+ * deliver.
+ * The subscription completes when the port is closed, and fails if the port has been closed with an exception.
+ */
+public class ChannelPublisher<T> implements Publisher<T> {
+    private final ReceivePort<T> port;
+
+    public ChannelPublisher(ReceivePort<T> port) {
+        this.port = port;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> s) {
+        if (s == null)
+            throw new NullPointerException(); // rule 1.9
+        final ChannelSubscription<T> subscription = new ChannelSubscription<T>(port, s);
+        subscription.fiber.start();
+    }
+
+    private static final class ChannelSubscription<T> implements Subscription, SuspendableRunnable {
+        private final ReceivePort<T> port;
+        private volatile Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private volatile boolean cancelled;
+        private final Channel<Object> cancellation = Channels.newChannel(1, Channels.OverflowPolicy.DROP); // closed on cancel
+        private volatile Throwable requestError;
+        final Fiber<Void> fiber;
+
+        ChannelSubscription(ReceivePort<T> port, Subscriber<? super T> subscriber) {
+            this.port = port;
+            this.subscriber = subscriber;
+            this.fiber = new Fiber<Void>(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled)
+                return;
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("rule 3.9: request must be positive: " + n);
+                cancelled = true;
+                cancellation.close();
+            } else {
+                for (;;) {
+                    final long d = demand.get();
+                    final long d1 = d + n < 0 ? Long.MAX_VALUE : d + n; // rule 3.17
+                    if (demand.compareAndSet(d, d1))
+                        break;
+                }
+            }
+            Strand.unpark(fiber);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            cancellation.close();
+            Strand.unpark(fiber);
+        }
+
+        @Override
+        public void run() throws SuspendExecution, InterruptedException {
+            final Subscriber<? super T> s = subscriber;
+            try {
+                s.onSubscribe(this);
+                for (;;) {
+                    while (demand.get() == 0 && !cancelled)
+                        Strand.park();
+                    if (cancelled)
+                        break;
+
+                    T m = receive();
+                    long n = 0;
+                    while (m != null) {
+                        s.onNext(m); // a message that's been received is delivered even if the subscription has just been cancelled (rule 2.8)
+                        n++;
+                        if (cancelled || demand.get() - n <= 0)
+                            break;
+                        m = port.tryReceive(); // deliver whatever is available without parking again
+                    }
+                    if (demand.get() != Long.MAX_VALUE)
+                        demand.addAndGet(-n);
+                    if (m == null && port.isClosed() && !cancelled) {
+                        cancelled = true;
+                        s.onComplete();
+                        break;
+                    }
+                }
+                if (requestError != null)
+                    s.onError(requestError);
+            } catch (ProducerException e) {
+                if (!cancelled)
+                    s.onError(e.getCause());
+            } catch (RuntimeException e) {
+                // the subscriber has violated rule 2.13; treat the subscription as cancelled
+                cancelled = true;
+            } finally {
+                subscriber = null; // rule 3.13
+            }
+        }
+
+        // receives a message from the port, or returns null if the port is closed or the subscription is cancelled first
+        @SuppressWarnings("unchecked")
+        private T receive() throws SuspendExecution, InterruptedException {
+            final SelectAction<Object> sa = Selector.select(false,
+                    Selector.receive((ReceivePort) port), Selector.receive((ReceivePort) cancellation));
+            return sa.index() == 0 ? (T) sa.message() : null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar.rx;
+
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.SuspendableRunnable;
+import co.paralleluniverse.strands.channels.Channel;
+import co.paralleluniverse.strands.channels.Channels;
+import co.paralleluniverse.strands.channels.ProducerException;
+import co.paralleluniverse.strands.channels.SendPort;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Reactive Streams {@link Subscriber} that sends the elements it receives to a {@link SendPort}.
+ * <p>
+ * Demand is mapped onto a buffer of the given size: the subscriber initially requests a full buffer, and a fiber
+ * forwarding the buffered elements to the port requests more in batches of half the buffer, as room becomes available.
+ * {@code onNext} therefore never blocks the publisher. The port is closed when the publisher completes, and closed
+ * with the publisher's exception if it fails.
+ */
+public class ChannelSubscriber<T> implements Subscriber<T> {
+    private final SendPort<? super T> port;
+    private final int bufferSize;
+    private final int batchSize;
+    private final Channel<T> buffer;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile Subscription subscription;
+
+    public ChannelSubscriber(SendPort<? super T> port, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("buffer size must be positive: " + bufferSize);
+        this.port = port;
+        this.bufferSize = bufferSize;
+        this.batchSize = Math.max(1, bufferSize / 2);
+        this.buffer = Channels.newChannel(bufferSize, Channels.OverflowPolicy.BLOCK, true, true);
+    }
+
+    @Override
+    public void onSubscribe(final Subscription s) {
+        if (s == null)
+            throw new NullPointerException(); // rule 2.13
+        if (!subscribed.compareAndSet(false, true)) {
+            s.cancel(); // rule 2.5
+            return;
+        }
+        this.subscription = s;
+        new Fiber<Void>(new SuspendableRunnable() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                forward(s);
+            }
+        }).start();
+        s.request(bufferSize);
+    }
+
+    @Override
+    public void onNext(T element) {
+        if (element == null)
+            throw new NullPointerException(); // rule 2.13
+        if (!buffer.trySend(element)) {
+            // the publisher has sent more than requested (rule 1.1)
+            subscription.cancel();
+            buffer.close(new IllegalStateException("Publisher has exceeded demand"));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (t == null)
+            throw new NullPointerException(); // rule 2.13
+        buffer.close(t);
+    }
+
+    @Override
+    public void onComplete() {
+        buffer.close();
+    }
+
+    private void forward(Subscription s) throws SuspendExecution, InterruptedException {
+        int consumed = 0;
+        try {
+            T m;
+            while ((m = buffer.receive()) != null) {
+                port.send(m);
+                if (++consumed == batchSize) {
+                    s.request(consumed);
+                    consumed = 0;
+                }
+            }
+            port.close();
+        } catch (ProducerException e) {
+            port.close(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Pulsar: lightweight threads and Erlang-like actors for Clojure.
+ * Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are dual-licensed under
+ * either the terms of the Eclipse Public License v1.0 as published by
+ * the Eclipse Foundation
+ *
+ *   or (per the licensee's choosing)
+ *
+ * under the terms of the GNU Lesser General Public License version 3.0
+ * as published by the Free Software Foundation.
+ */
+package co.paralleluniverse.pulsar.rx;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentVector;
+import clojure.lang.LazilyPersistentVector;
+import clojure.lang.Util;
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.pulsar.HashedWheelTimer;
+import co.paralleluniverse.strands.SuspendableRunnable;
+import co.paralleluniverse.strands.channels.Channel;
+import co.paralleluniverse.strands.channels.Channels;
+import co.paralleluniverse.strands.channels.ProducerException;
+import co.paralleluniverse.strands.channels.ReceivePort;
+import co.paralleluniverse.strands.channels.SelectAction;
+import co.paralleluniverse.strands.channels.Selector;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count- and time-based operators on receive ports, used to implement the temporal operators in the {@code rx} namespace.
+ * <p>
+ * Each operator runs in its own fiber, which reads from the source port and writes to the returned port. Buffers are
+ * collected in plain arrays that are handed over, without copying, to the vectors sent downstream. All timing is done
+ * with the shared {@link HashedWheelTimer}, and so is only as precise as the timer's tick.
+ * When the source port is closed, the returned port is closed (with the same exception, if any) after pending messages
+ * have been emitted.
+ */
+public final class TemporalPorts {
+    /**
+     * Emits vectors of {@code size} messages, starting a new buffer every {@code skip} messages.
+     * When {@code skip < size} the buffers overlap; when {@code skip > size} some messages are dropped.
+     * When the source is closed, the incomplete buffers, if any, are emitted, oldest first (as in Rx's
+     * {@code buffer(count, skip)}).
+     */
+    public static ReceivePort<IPersistentVector> bufferCount(final ReceivePort<?> in, final int size, final int skip) {
+        checkPositive("size", size);
+        checkPositive("skip", skip);
+        final Channel<IPersistentVector> out = newChannel();
+        start(in, out, new Loop() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                final Object[] ring = new Object[size];
+                int head = 0;
+                long received = 0;
+                long emitted = 0;
+                Object m;
+                while ((m = in.receive()) != null) {
+                    final long i = received++;
+                    if (skip > size && i % skip >= size)
+                        continue; // falls between buffers
+                    ring[head] = m;
+                    head = (head + 1) % size;
+                    if (received >= size && (received - size) % skip == 0) {
+                        out.send(last(ring, head, size));
+                        emitted++;
+                    }
+                }
+                for (long start = emitted * skip; start < received; start += skip)
+                    out.send(last(ring, head, (int) (received - start)));
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Emits vectors of the messages received within {@code millis} of the first message of each buffer, or as soon as
+     * {@code maxSize} messages have been collected (if {@code maxSize} is positive). Empty buffers are never emitted.
+     */
+    public static ReceivePort<IPersistentVector> bufferTime(final ReceivePort<?> in, final long millis, final int maxSize) {
+        checkPositive("millis", millis);
+        final Channel<IPersistentVector> out = newChannel();
+        start(in, out, new Loop() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                Object[] buf = new Object[maxSize > 0 ? Math.min(maxSize, 16) : 16];
+                int n = 0;
+                ReceivePort<?> deadline = null;
+                for (;;) {
+                    final Object m;
+                    if (deadline == null)
+                        m = in.receive();
+                    else {
+                        final SelectAction<Object> sa = select(in, deadline);
+                        if (sa.index() == 1) {
+                            out.send(vector(buf, n));
+                            buf = new Object[buf.length];
+                            n = 0;
+                            deadline = null;
+                            continue;
+                        }
+                        m = sa.message();
+                    }
+                    if (m == null)
+                        break;
+                    if (n == buf.length)
+                        buf = Arrays.copyOf(buf, maxSize > 0 ? Math.min(maxSize, n * 2) : n * 2);
+                    buf[n++] = m;
+                    if (n == 1)
+                        deadline = timer().timeout(millis, TimeUnit.MILLISECONDS);
+                    if (n == maxSize) {
+                        out.send(vector(buf, n));
+                        buf = new Object[buf.length];
+                        n = 0;
+                        deadline = null;
+                    }
+                }
+                if (n > 0)
+                    out.send(vector(buf, n));
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Emits a new port for every {@code size} messages; each port receives the next {@code size} messages and is then closed.
+     */
+    public static ReceivePort<ReceivePort<Object>> window(final ReceivePort<?> in, final int size) {
+        checkPositive("size", size);
+        final Channel<ReceivePort<Object>> out = newChannel();
+        start(in, out, new Loop() {
+            private Channel<Object> window;
+
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                int n = 0;
+                try {
+                    Object m;
+                    while ((m = in.receive()) != null) {
+                        if (n == 0) {
+                            window = Channels.newChannel(size, Channels.OverflowPolicy.BLOCK, true, false);
+                            out.send(window);
+                        }
+                        window.send(m); // never blocks: the window has room for all its messages
+                        if (++n == size) {
+                            window.close();
+                            window = null;
+                            n = 0;
+                        }
+                    }
+                } catch (ProducerException e) {
+                    if (window != null)
+                        window.close(e.getCause());
+                    throw e;
+                }
+                if (window != null)
+                    window.close();
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Emits a message and then drops all messages received in the following {@code millis}.
+     */
+    public static <M> ReceivePort<M> throttle(final ReceivePort<M> in, final long millis) {
+        checkPositive("millis", millis);
+        final Channel<M> out = newChannel();
+        start(in, out, new Loop() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                final long period = TimeUnit.MILLISECONDS.toNanos(millis);
+                long last = 0;
+                boolean first = true;
+                M m;
+                while ((m = in.receive()) != null) {
+                    final long now = System.nanoTime();
+                    if (first || now - last >= period) {
+                        first = false;
+                        last = now;
+                        out.send(m);
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Emits a message only once {@code millis} have passed without a newer message being received.
+     * The last message is emitted when the source is closed.
+     */
+    public static <M> ReceivePort<M> debounce(final ReceivePort<M> in, final long millis) {
+        checkPositive("millis", millis);
+        final Channel<M> out = newChannel();
+        start(in, out, new Loop() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() throws SuspendExecution, InterruptedException {
+                M pending = null;
+                ReceivePort<?> deadline = null;
+                for (;;) {
+                    final M m;
+                    if (deadline == null)
+                        m = in.receive();
+                    else {
+                        final SelectAction<Object> sa = select(in, deadline);
+                        if (sa.index() == 1) {
+                            out.send(pending);
+                            pending = null;
+                            deadline = null;
+                            continue;
+                        }
+                        m = (M) sa.message();
+                    }
+                    if (m == null)
+                        break;
+                    pending = m;
+                    deadline = timer().timeout(millis, TimeUnit.MILLISECONDS);
+                }
+                if (pending != null)
+                    out.send(pending);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Emits the most recent message at most once every {@code millis}, only if a message has been received since the
+     * last emitted one.
+     */
+    public static <M> ReceivePort<M> sample(final ReceivePort<M> in, final long millis) {
+        checkPositive("millis", millis);
+        final Channel<M> out = newChannel();
+        start(in, out, new Loop() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() throws SuspendExecution, InterruptedException {
+                M latest = null;
+                ReceivePort<?> deadline = null;
+                for (;;) {
+                    final M m;
+                    if (deadline == null)
+                        m = in.receive();
+                    else {
+                        final SelectAction<Object> sa = select(in, deadline);
+                        if (sa.index() == 1) {
+                            out.send(latest);
+                            latest = null;
+                            deadline = null;
+                            continue;
+                        }
+                        m = (M) sa.message();
+                    }
+                    if (m == null)
+                        break;
+                    latest = m;
+                    if (deadline == null)
+                        deadline = timer().timeout(millis, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Drops messages whose key (as returned by {@code keyFn}, or the message itself if {@code keyFn} is {@code null})
+     * is equal to that of the previous message.
+     */
+    public static <M> ReceivePort<M> distinctUntilChanged(final ReceivePort<M> in, final IFn keyFn) {
+        final Channel<M> out = newChannel();
+        start(in, out, new Loop() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                Object prev = null;
+                boolean first = true;
+                M m;
+                while ((m = in.receive()) != null) {
+                    final Object k = keyFn != null ? keyFn.invoke(m) : m;
+                    if (first || !Util.equiv(prev, k)) {
+                        first = false;
+                        prev = k;
+                        out.send(m);
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    private interface Loop {
+        void run() throws SuspendExecution, InterruptedException;
+    }
+
+    private static void start(final ReceivePort<?> in, final Channel<?> out, final Loop loop) {
+        new Fiber<Void>(new SuspendableRunnable() {
+            @Override
+            public void run() throws SuspendExecution, InterruptedException {
+                try {
+                    loop.run();
+                    out.close();
+                } catch (ProducerException e) {
+                    out.close(e.getCause());
+                } catch (RuntimeException e) {
+                    out.close(e);
+                }
+            }
+        }).start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SelectAction<Object> select(ReceivePort<?> in, ReceivePort<?> deadline) throws SuspendExecution, InterruptedException {
+        return Selector.select(true, Selector.receive((ReceivePort<Object>) in), Selector.receive((ReceivePort<Object>) deadline));
+    }
+
+    private static <M> Channel<M> newChannel() {
+        return Channels.newChannel(0, Channels.OverflowPolicy.BLOCK, true, false);
+    }
+
+    private static HashedWheelTimer timer() {
+        return HashedWheelTimer.getInstance();
+    }
+
+    // the n messages preceding head in the ring, oldest first
+    private static IPersistentVector last(Object[] ring, int head, int n) {
+        final Object[] a = new Object[n];
+        final int size = ring.length;
+        for (int j = 0; j < n; j++)
+            a[j] = ring[(head - n + j + size) % size];
+        return LazilyPersistentVector.createOwning(a);
+    }
+
+    private static IPersistentVector vector(Object[] buf, int n) {
+        return LazilyPersistentVector.createOwning(n == buf.length ? buf : Arrays.copyOf(buf, n));
+    }
+
+    private static void checkPositive(String name, long value) {
+        if (value <= 0)
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+    }
+
+    private TemporalPorts() {
+    }
+}
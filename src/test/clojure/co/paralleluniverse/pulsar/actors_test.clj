@@ -15,8 +15,10 @@
         co.paralleluniverse.pulsar.core
         co.paralleluniverse.pulsar.actors)
 ;  (:require [co.paralleluniverse.pulsar.lazyseq :as s :refer [channel->lazy-seq]])
+  (:require [gloss.io :refer [encode contiguous]])
   (:refer-clojure :exclude [promise await bean])
   (:import [java.util.concurrent TimeUnit TimeoutException ExecutionException]
+           [java.nio ByteBuffer]
            [co.paralleluniverse.common.util Debug]
            [co.paralleluniverse.strands Strand]
            [co.paralleluniverse.fibers Fiber]
@@ -31,6 +33,13 @@
         (join a))
       => :something)
 
+(fact "spawn-many spawns actors with a count or with argument vectors"
+      (let [as (spawn-many 10 #(+ 41 1))
+            bs (spawn-many :name "b" :mailbox-size 5 [[1 2] [3 4]] (fn [x y] [(.getName (Fiber/currentFiber)) (+ x y)]))]
+        (count as) => 10
+        (map join as) => (repeat 10 42)
+        (map join bs) => [["b-0" 3] ["b-1" 7]]))
+
 (fact "When actor throws exception then join throws it"
       (let [actor (spawn #(throw (Exception. "my exception")))]
         (join actor))
@@ -147,6 +156,96 @@
               (! actor2 "hi")
               (join actor2)) => "hi!!!"))
 
+(facts "mailbox-type"
+       (fact "A priority mailbox receives the greatest key first, and equal keys in order"
+             (let [actor (spawn :mailbox-type :priority :priority-key first
+                                #(do (Strand/sleep 100)
+                                     (loop [ms []]
+                                       (if (< (count ms) 5)
+                                         (recur (conj ms (receive)))
+                                         ms))))]
+               (! actor [1 :a])
+               (! actor [15 :b])
+               (! actor [7 :c])
+               (! actor [15 :d])
+               (! actor [1 :e])
+               (join actor)) => [[15 :b] [15 :d] [7 :c] [1 :a] [1 :e]])
+       (fact "Selective receive in a priority mailbox matches in priority order"
+             (let [actor (spawn :mailbox-type :priority :priority-key first
+                                #(do (Strand/sleep 100)
+                                     [(receive [_ (x :guard odd?)] x)
+                                      (receive [_ x] x)
+                                      (receive [_ x] x :after 10 :none)]))]
+               (! actor [1 2])
+               (! actor [3 5])
+               (! actor [2 7])
+               (join actor)) => [5 7 2])
+       (fact "Ring and linked mailboxes"
+             (let [f #(vector (receive) (receive) (receive))
+                   a1 (spawn :mailbox-type :ring f)
+                   a2 (spawn :mailbox-type :linked f)]
+               (dotimes [i 3] (! a1 i) (! a2 i))
+               [(join a1) (join a2)]) => [[0 1 2] [0 1 2]])
+       (fact "Linked mailboxes are unbounded"
+             (spawn :mailbox-type :linked :mailbox-size 10 #(receive)) => (throws IllegalArgumentException)))
+
+(fact "Senders block while the mailbox is above its high watermark"
+      (let [sent (atom 0)
+            actor (spawn :watermarks [4 2]
+                         #(do (Strand/sleep 200)
+                              (loop [i 0 sum 0]
+                                (if (< i 20)
+                                  (recur (inc i) (+ sum (receive)))
+                                  sum))))
+            producer (spawn-fiber #(dotimes [i 20]
+                                     (! actor i)
+                                     (swap! sent inc)))]
+        (Strand/sleep 100)
+        [@sent (mailbox-pressure? actor) (mailbox-pending actor)] => [4 true 4]
+        (join producer)
+        (join actor) => 190
+        (mailbox-pressure? actor) => false
+        (mailbox-pressure? (spawn #(+ 1 1))) => false))
+
+(fact "Senders blocked by an actor are released when it dies"
+      (let [actor (spawn :watermarks [2 1]
+                         #(do (Strand/sleep 100)
+                              (receive)))
+            producer (spawn-fiber #(dotimes [i 10]
+                                     (! actor i)))]
+        (join 1000 :ms producer) => nil
+        (join actor) => 0
+        (mailbox-pressure? actor) => false))
+
+(fact "Watermarks can't be combined with a mailbox that drops messages"
+      (spawn :watermarks 10 :mailbox-size 20 :overflow-policy :drop #(receive)) => (throws IllegalArgumentException))
+
+(facts "binary frames"
+       (let [fr (binary-frame :a :int16 :b :float64 :c :int32-le)
+             buf (contiguous (encode (frame-codec fr) {:a 1 :b 2.5 :c 300}))]
+         (fact "Fields are read in place"
+               (let [v (frame-view fr buf)]
+                 [(:a v) (:b v) (:c v) (:d v)] => [1 2.5 300 nil]
+                 (.position buf) => 0
+                 (.toMap v) => {:a 1 :b 2.5 :c 300}))
+         (fact "Views aren't cached across changes to the buffer"
+               (let [b (ByteBuffer/allocate (.size fr))]
+                 (.putShort b 0 (short 1))
+                 (:a (frame-view fr b)) => 1
+                 (.putShort b 0 (short 7))
+                 (:a (frame-view fr b)) => 7))
+         (fact "Non-binary messages are returned as is"
+               (frame-view fr [:foo]) => [:foo])
+         (fact "receive matches binary frames"
+               (let [actor (spawn #(vector
+                                    (receive [m (frame-view fr)]
+                                             {:a 2 :b b} [:two b])
+                                    (receive [m (frame-view fr)]
+                                             {:a a} a)))]
+                 (! actor buf)
+                 (! actor (encode (frame-codec fr) {:a 2 :b 0.5 :c 0}))
+                 (join actor)) => [[:two 0.5] 1])))
+
 (facts "actor-link"
        (fact "When an actor dies, its link gets an exception"
              (let [actor1 (spawn #(Fiber/sleep 100))
@@ -452,6 +551,55 @@
                                                    (throw (Exception. "oops!"))))))]
                (call! gs 3 4) => (throws Exception "oops!"))))
 
+(facts "concurrent gen-server calls"
+       (let [adder (fn [ms] (spawn
+                              (gen-server (reify Server
+                                            (init [_])
+                                            (terminate [_ cause])
+                                            (handle-call [_ from id [a b]]
+                                              (Strand/sleep ms)
+                                              (if (neg? a) (throw (Exception. "negative")) (+ a b)))))))
+             gs1 (adder 50)
+             gs2 (adder 50)
+             slow (adder 500)]
+         (fact "call-async! returns a derefable response"
+               (let [r (call-async! gs1 3 4)]
+                 (realized? r) => false
+                 @r => 7))
+         (fact "call-async! derefs to the call's exception"
+               @(call-async! (adder 0) -1 4) => (throws Exception "negative"))
+         (fact "call-many! makes the calls concurrently"
+               (let [start (System/nanoTime)]
+                 (call-many! [[gs1 1 2] [gs2 3 4]]) => [3 7]
+                 (- (System/nanoTime) start) => #(< % 90000000)))
+         (fact "call-many! times out"
+               (call-many! 100 :ms [[gs1 1 2] [slow 3 4]]) => (throws TimeoutException))
+         (fact "call-hedged! takes the response of the backup server"
+               (call-hedged! :delay 20 [slow gs1] 3 4) => 7
+               (call-hedged! [gs1 slow] 1 1) => 2)))
+
+(fact "BatchServer handles queued calls and casts in batches"
+      (let [batches (atom [])
+            gs (spawn
+                 (gen-server :max-batch 10
+                             (reify
+                               Server
+                               (init [_])
+                               (terminate [_ cause])
+                               BatchServer
+                               (handle-call-batch [_ batch]
+                                 (swap! batches conj (mapv :type batch))
+                                 (Strand/sleep 20)
+                                 (map (fn [{[a b] :message}] (+ a b)) batch)))))
+            fibers (doall (for [i (range 25)]
+                            (spawn-fiber #(call! gs i 1))))]
+        (cast! gs 0 0)
+        (map join fibers) => (map inc (range 25))
+        (call! gs 0 0) => 0 ; handled after the cast, so once it returns all 27 requests have been handled
+        (count (apply concat @batches)) => 27
+        (every? #(<= 1 (count %) 10) @batches) => true
+        (count @batches) => #(< % 25)))
+
 (fact "when gen-server doesn't respond then timeout"
       (let [gs (spawn
                  (gen-server (reify Server
@@ -141,6 +141,42 @@
           (<!! c)        ;; make room in the buffer
           (deref p 250 :timeout))) => true)
 
+(fact "Timeout channels close after their deadline"
+      (let [start (System/currentTimeMillis)
+            t (timeout 50)]
+        (fact (<!! t) => nil)
+        (- (System/currentTimeMillis) start)) => #(>= % 45))
+
+(fact "Timeout channels with the same deadline are shared"
+      (let [ts (repeatedly 100 #(timeout 1000))]
+        (count (distinct (map #(System/identityHashCode %) ts)))) => #(< % 100))
+
+(fact "Promise channels"
+      (fact "All takers get the first value put"
+            (let [c (promise-chan)
+                  r1 (future (<!! c))
+                  r2 (future (<!! c))]
+              (>!! c 1)
+              (>!! c 2)
+              [@r1 @r2 (<!! c) (<!! c)])
+            => [1 1 1 1])
+      (fact "Taking from a promise channel closed before a put returns nil"
+            (let [c (promise-chan)]
+              (close! c)
+              (>!! c 1)
+              (<!! c))
+            => nil)
+      (fact "Promise channels keep their value after they are closed"
+            (let [c (promise-chan (clojure.core/map inc))]
+              (>!! c 1)
+              (close! c)
+              [(<!! c) (first (alts!! [c (timeout 1000)]))])
+            => [2 2])
+      (fact "go blocks deliver their result once, and then read as closed"
+            (let [c (go 42)]
+              [(<!! c) (<!! c) (<!! (go nil))])
+            => [42 nil nil]))
+
 (def ^:dynamic test-dyn false)
 
 (fact "thread tests"
@@ -149,6 +185,32 @@
               (<!! (thread test-dyn))
               => true)))
 
+(fact "Blocking executors"
+      (fact "At most :threads tasks run at once"
+            (let [ex (blocking-executor :threads 2 :queue 100)
+                  running (atom 0)
+                  max-running (atom 0)
+                  cs (doall (repeatedly 10 #(thread-call ex (fn []
+                                                              (swap! max-running max (swap! running inc))
+                                                              (Thread/sleep 10)
+                                                              (swap! running dec)))))]
+              (doseq [c cs]
+                (<!! c))
+              [(<= @max-running 2) (:submitted (blocking-executor-stats ex))])
+            => [true 10])
+      (fact "With :abort, tasks submitted while the queue is full are rejected"
+            (let [ex (blocking-executor :threads 1 :queue 0 :rejection :abort)
+                  latch (java.util.concurrent.CountDownLatch. 1)]
+              (thread-call ex #(.await latch))
+              (try
+                (thread-call ex (fn [] nil))
+                :accepted
+                (catch java.util.concurrent.RejectedExecutionException e
+                  :rejected)
+                (finally
+                  (.countDown latch))))
+            => :rejected))
+
 (fact "fiber tests"
      (binding [test-dyn true]
        (fact "bindings"
@@ -204,6 +266,17 @@
               (<!! (a/into #{} (a/take 6 out))))
             => #{1 2 3 4 5 6})
 
+      (fact "weighted mix"
+            (let [out (chan)
+                  mx (mix out)
+                  hi (chan 100)
+                  lo (chan 100)]
+              (dotimes [_ 100] (>!! hi :hi) (>!! lo :lo))
+              (toggle mx {hi {:weight 3} lo {:weight 1}})
+              (let [freqs (frequencies (<!! (a/into [] (a/take 40 out))))]
+                (fact (:hi freqs) => #(>= % 25))
+                (fact (:lo freqs) => #(>= % 5)))))
+
       (fact "mult"
             (let [a (chan 4)
                   b (chan 4)
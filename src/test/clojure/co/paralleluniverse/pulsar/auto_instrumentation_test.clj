@@ -15,7 +15,10 @@
         co.paralleluniverse.pulsar.core)
   (:refer-clojure :exclude [promise await bean])
   (:import [co.paralleluniverse.fibers Fiber]
-           (java.io InputStream)))
+           [co.paralleluniverse.fibers.instrument Retransform$ClassLoadListener]
+           [clojure.lang Compiler]
+           (java.io File InputStream StringReader)
+           [java.nio.file Files]))
 
 (defn stcktrc [] #_(.printStackTrace (Exception.) (System/err)))
 (defn dbug [s] #_(.println System/err s))
@@ -90,4 +93,48 @@
                                    [] (range 20))]
             (join (fiber (action-fn)))) => [1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16 17 18 19 20])
     (fact "Clojure language features work with auto-instrumentation" :auto-instrumentation
-          (res) => [1 8 2 56 17 45 -1 52 452.3893421169302 17])))
\ No newline at end of file
+          (res) => [1 8 2 56 17 45 -1 52 452.3893421169302 17])))
+
+;; ## Call-graph analysis (the minimal strategy)
+
+(def ^:private call-graph-sample
+  "(ns pulsar-call-graph-sample)
+   (defn leaf [x] (inc x))
+   (defn ^:dynamic *hook* [x] x)
+   (defn leaf-caller [x] (leaf x))
+   (defn dynamic-caller [x] (*hook* x))")
+
+(defn- compiled-classes
+  ; compiles the source, and returns a map from the internal names of the classes generated to their bytes
+  [src]
+  (let [dir (.toFile (Files/createTempDirectory "pulsar-call-graph" (make-array java.nio.file.attribute.FileAttribute 0)))]
+    (binding [*compile-path* (.getPath dir)
+              *compile-files* true]
+      (Compiler/load (StringReader. src) "pulsar_call_graph_sample.clj" "pulsar_call_graph_sample.clj"))
+    (into {} (for [^File f (file-seq dir)
+                   :let [path (.replace (str (.relativize (.toPath dir) (.toPath f))) File/separatorChar \/)]
+                   :when (.endsWith path ".class")]
+               [(subs path 0 (- (count path) (count ".class"))) (Files/readAllBytes (.toPath f))]))))
+
+(defn- call-graph-analyzer
+  [classes]
+  (let [c (doto (.getDeclaredConstructor (Class/forName "co.paralleluniverse.pulsar.CallGraphAnalyzer") (make-array Class 0))
+            (.setAccessible true))
+        ^Retransform$ClassLoadListener analyzer (.newInstance c (object-array 0))]
+    (doseq [[class-name bytes] classes]
+      (.beforeTransform analyzer class-name nil bytes))
+    analyzer))
+
+(defn- may-suspend?
+  [analyzer fn-class]
+  (let [m (doto (.getDeclaredMethod (class analyzer) "maySuspend" (into-array Class [String String]))
+            (.setAccessible true))]
+    (.invoke m analyzer (object-array [fn-class "invoke"]))))
+
+(facts "call-graph analysis"
+       (let [analyzer (call-graph-analyzer (compiled-classes call-graph-sample))]
+         (fact "Functions that can't reach a suspendable call are pruned"
+               (may-suspend? analyzer "pulsar_call_graph_sample$leaf") => false
+               (may-suspend? analyzer "pulsar_call_graph_sample$leaf_caller") => false)
+         (fact "Calls through dynamic vars may suspend"
+               (may-suspend? analyzer "pulsar_call_graph_sample$dynamic_caller") => true)))
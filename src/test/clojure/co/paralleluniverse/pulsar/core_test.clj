@@ -18,7 +18,8 @@
   (:import [java.util.concurrent TimeUnit TimeoutException ExecutionException]
            [co.paralleluniverse.common.util Debug]
            [co.paralleluniverse.strands Strand]
-           [co.paralleluniverse.fibers Fiber]))
+           [co.paralleluniverse.fibers Fiber]
+           [co.paralleluniverse.pulsar FiberStackSizes]))
 
 
 ;; ## fibers
@@ -47,6 +48,29 @@
         (join fib))
       => 7)
 
+(fact "suspendable! instruments a function in place and returns it"
+      (let [f (fn [a] (Fiber/sleep 5) (inc a))
+            g (suspendable! f)]
+        (identical? f g) => true
+        (suspendable? f) => true
+        (join (spawn-fiber g 1)) => 2))
+
+(fact "Fibers running a function start with the stack size learned from previous runs"
+      (let [f (sfn [] (letfn [(deep [n] (if (zero? n) (do (Fiber/sleep 1) 0) (inc (deep (dec n)))))]
+                        ((suspendable! deep) 200)))]
+        (join (spawn-fiber f)) => 200
+        (FiberStackSizes/stackSize f -1) => #(> % 32) ; Quasar's default
+        (FiberStackSizes/stackSize f 10) => 10))
+
+(fact "Learned stack sizes decay when fibers don't need them"
+      (let [f (sfn [n] (letfn [(deep [n] (if (zero? n) (do (Fiber/sleep 1) 0) (inc (deep (dec n)))))]
+                         ((suspendable! deep) n)))]
+        (join (spawn-fiber f 200)) => 200
+        (let [learned (FiberStackSizes/stackSize f -1)]
+          (dotimes [_ 5]
+            (join (spawn-fiber f 0)))
+          (FiberStackSizes/stackSize f -1) => #(< % learned))))
+
 (fact "When fiber interrupted while sleeping then InterruptedException thrown"
       (let [fib (spawn-fiber
                   #(try
@@ -82,6 +106,11 @@
                (join fiber))
              => 30))
 
+(fact "spawn-fibers spawns fibers with a count or with argument vectors"
+      (map join (spawn-fibers 5 #(do (Fiber/sleep 5) 1))) => [1 1 1 1 1]
+      (map join (spawn-fibers :name "f" [[1 2] [3 4]] (fn [a b] [(.getName (Fiber/currentFiber)) (+ a b)])))
+      => [["f-0" 3] ["f-1" 7]])
+
 (fact "fiber->future can be used to turn a fiber into a future"
       (let [fiber (spawn-fiber
                     (fn []
@@ -108,6 +137,34 @@
                       (await service 2 5)))]
         (join fiber) => 7))
 
+(facts "smemoize"
+       (fact "Concurrent calls with the same arguments are coalesced"
+             (let [calls (atom 0)
+                   f (smemoize (fn [x] (swap! calls inc) (Fiber/sleep 50) (* x 2)))
+                   fibers (doall (repeatedly 10 #(spawn-fiber f 21)))]
+               (map join fibers) => (repeat 10 42)
+               @calls => 1
+               (f 21) => 42
+               (smemo-stats f) => (contains {:misses 1 :hits 1 :coalesced 9})))
+       (fact "Least recently used results are evicted"
+             (let [calls (atom 0)
+                   f (smemoize (fn [x] (swap! calls inc) x) :max-size 2)]
+               (f 1) (f 2) (f 1) (f 3) (f 1) (f 2)
+               @calls => 4
+               (smemo-stats f) => (contains {:evictions 2 :size 2})))
+       (fact "Results expire after the TTL"
+             (let [calls (atom 0)
+                   f (smemoize (fn [] (swap! calls inc)) :ttl [50 :ms])]
+               (f) => 1
+               (f) => 1
+               (Thread/sleep 100)
+               (f) => 2))
+       (fact "Exceptions are not cached"
+             (let [calls (atom 0)
+                   f (smemoize (fn [] (when (= 1 (swap! calls inc)) (throw (Exception. "first"))) @calls))]
+               (f) => (throws Exception "first")
+               (f) => 2)))
+
 ;; ## channels
 
 (fact "Test channel close"
@@ -182,6 +239,64 @@
                (deliver v0 2)
                @v4) => 10))
 
+(facts "rate-limiter"
+       (fact "acquire! blocks until a permit is available"
+             (let [rl (rate-limiter 100)
+                   start (System/nanoTime)]
+               (join (spawn-fiber #(dotimes [_ 11] (acquire! rl))))
+               (/ (- (System/nanoTime) start) 1e6) => #(>= % 95)))
+       (fact "Up to burst permits are available immediately"
+             (let [rl (rate-limiter 10 :sec 3)]
+               [(try-acquire! rl) (try-acquire! rl) (try-acquire! rl) (try-acquire! rl)] => [true true true false]
+               (try-acquire! rl 1 200 :ms) => true))
+       (fact "A rate-limited port limits the rate of sends"
+             (let [ch (channel -1)
+                   port (rate-limited ch (rate-limiter 50))
+                   start (System/nanoTime)]
+               (join (spawn-fiber #(dotimes [i 5] (snd port i))))
+               (/ (- (System/nanoTime) start) 1e6) => #(>= % 75)
+               (repeatedly 5 #(rcv ch)) => [0 1 2 3 4])))
+
+(facts "pooled buffers"
+       (fact "A buffer is returned to its pool when its last reference is released"
+             (let [pool (buffer-pool :direct false :min-size 64 :max-size 1024)
+                   b (pooled-buffer pool 100)
+                   bb (byte-buffer b)]
+               (.capacity bb) => 128
+               (retain! b) => (exactly b)
+               (release! b) => false
+               (release! b) => true
+               (byte-buffer b) => (throws IllegalStateException)
+               (release! b) => (throws IllegalStateException)
+               (identical? bb (byte-buffer (pooled-buffer pool 120))) => true))
+       (fact "Buffers are passed through channels without copying, and released by with-buffer"
+             (let [pool (buffer-pool :direct false :min-size 64 :max-size 1024)
+                   ch (channel 10)
+                   b (pooled-buffer pool 8)
+                   bb (byte-buffer b)]
+               (.putLong bb 42)
+               (snd ch b)
+               (join (spawn-fiber #(with-buffer [b (rcv ch)]
+                                     [(identical? bb (byte-buffer b)) (.getLong (byte-buffer b) 0)]))) => [true 42]
+               (.refCount b) => 0
+               (:reused (.getStats pool)) => 0
+               (pooled-buffer pool 8)
+               (:reused (.getStats pool)) => 1))
+       (fact "A retained buffer can be sent to, and read by, several receivers"
+             (let [pool (buffer-pool :direct false :min-size 64 :max-size 1024)
+                   ch1 (channel 10)
+                   ch2 (channel 10)
+                   b (pooled-buffer pool 8)]
+               (.putLong (byte-buffer b) 0 7)
+               (retain! b)
+               (snd ch1 b)
+               (snd ch2 b)
+               (let [readers (doall (for [ch [ch1 ch2]]
+                                      (spawn-fiber #(with-buffer [b (rcv ch)]
+                                                      (.getLong (byte-buffer b) 0)))))]
+                 (map join readers) => [7 7])
+               (.refCount b) => 0)))
+
 (facts "topics"
        (fact "When channel subscribes to topic then it receives its messages"
              (let [ch1 (channel)
@@ -260,6 +375,46 @@
         :ok) => :ok)
 
 
+(facts "port sets"
+       (fact "Messages from all channels are selected"
+             (let [chs (doall (repeatedly 1000 #(channel 10)))
+                   ps (port-set chs)]
+               (doseq [[i ch] (map vector (range) chs)]
+                 (snd ch i))
+               (let [res (join (spawn-fiber #(loop [res #{}]
+                                               (if (< (count res) 1000)
+                                                 (recur (conj res (first (sel ps))))
+                                                 res))))]
+                 (close! ps)
+                 (count res))) => 1000)
+       (fact "Ready channels are selected fairly, unless the set has priority"
+             (let [busy (channel 100)
+                   quiet (channel 100)
+                   fair (port-set [busy quiet])]
+               (dotimes [i 5]
+                 (snd busy :busy))
+               (sleep 50)
+               (snd quiet :quiet)
+               (sleep 50)
+               (let [res (vec (for [_ (range 3)] (first (sel fair :timeout 1000))))]
+                 (close! fair)
+                 res)) => [:busy :quiet :busy]
+             (let [a (channel 100)
+                   b (channel 100)
+                   ps (port-set [a b] :priority true)]
+               (dotimes [i 3]
+                 (snd b :b))
+               (snd a :a)
+               (sleep 50)
+               (let [res (vec (for [_ (range 2)] (first (sel ps :timeout 1000))))]
+                 (close! ps)
+                 res)) => [:a :b])
+       (fact "A closed channel is selected once, and leaves the set"
+             (let [ch (channel 10)
+                   ps (port-set [ch])]
+               (close! ch)
+               [(sel ps :timeout 1000) (.size ps) (sel ps :timeout 50)]) => (fn [[[m c] n r]] (and (nil? m) (some? c) (zero? n) (nil? r)))))
+
 (defn fan-in [ins size]
   (let [c (channel size)]
     (spawn-fiber #(while true
@@ -92,4 +92,73 @@
         (a 3)
         (join f)
         (sleep 100)
-        (last @r)) => 22)
\ No newline at end of file
+        (last @r)) => 22)
+
+(facts "propagation graph"
+       (fact "Diamond is recomputed once per update, without glitches"
+             (let [g (df-graph)
+                   seen (atom [])
+                   a (df-var g)
+                   b (df-var g #(inc (or @a 0)))
+                   c (df-var g #(* 2 (or @a 0)))
+                   d (df-var g #(+ @b @c))]
+               (df-watch! d #(swap! seen conj %))
+               (a 1)
+               (a 2)
+               (fact @d => 7)
+               (fact @seen => [4 7])
+               (fact (get (recompute-counts g) d) => 3)))
+       (fact "Batched updates are propagated once"
+             (let [g (df-graph)
+                   x (df-var g)
+                   y (df-var g)
+                   s (df-var g #(+ (or @x 0) (or @y 0)))]
+               (reset-recompute-counts! g)
+               (df-batch g
+                 (x 1)
+                 (y 2)
+                 (x 3))
+               (fact @s => 5)
+               (fact (get (recompute-counts g) s) => 1)))
+       (fact "Unchanged values are not propagated"
+             (let [g (df-graph)
+                   x (df-var g)
+                   p (df-var g #(even? (or @x 0)))
+                   q (df-var g #(if @p :even :odd))]
+               (reset-recompute-counts! g)
+               (x 2)
+               (x 4)
+               (fact @q => :even)
+               (fact (get (recompute-counts g) p) => 2)
+               (fact (get (recompute-counts g) q) => 0)))
+       (fact "Aborted batch discards updates"
+             (let [g (df-graph)
+                   x (df-var g)]
+               (x 1)
+               (try
+                 (df-batch g
+                   (x 2)
+                   (throw (RuntimeException. "abort")))
+                 (catch RuntimeException _))
+               @x) => 1)
+       (fact "Aborted nested batch discards only its own updates"
+             (let [g (df-graph)
+                   x (df-var g)
+                   y (df-var g)]
+               (df-batch g
+                 (x 1)
+                 (try
+                   (df-batch g
+                     (y 2)
+                     (throw (RuntimeException. "abort")))
+                   (catch RuntimeException _))
+                 (x 3))
+               [@x @y]) => [3 nil])
+       (fact "Dependency cycles are rejected"
+             (let [g (df-graph)
+                   x (df-var g)
+                   q-ref (atom nil)
+                   p (df-var g #(when @x @@q-ref))
+                   q (df-var g #(inc (or @p 0)))]
+               (reset! q-ref q)
+               (x true)) => (throws IllegalStateException)))
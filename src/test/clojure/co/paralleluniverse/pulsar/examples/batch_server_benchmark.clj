@@ -0,0 +1,46 @@
+(ns co.paralleluniverse.pulsar.examples.batch-server-benchmark
+  "Compares the throughput of a gen-server fronting a slow store, handling one call at a time and in batches.
+  Each write to the store costs a fixed latency, regardless of the number of records written."
+  (:use [co.paralleluniverse.pulsar core actors])
+  (:refer-clojure :exclude [promise await])
+  (:import [co.paralleluniverse.strands Strand]))
+
+(defn- write! [store records latency-ms]
+  (Strand/sleep latency-ms)
+  (swap! store into records))
+
+(defn- per-message-server [store latency-ms]
+  (gen-server (reify Server
+                (init [_])
+                (terminate [_ cause])
+                (handle-call [_ from id record]
+                  (write! store [record] latency-ms)
+                  :ok))))
+
+(defn- batch-server [store latency-ms]
+  (gen-server :max-batch 256
+              (reify
+                Server
+                (init [_])
+                (terminate [_ cause])
+                BatchServer
+                (handle-call-batch [_ batch]
+                  (write! store (map :message batch) latency-ms)
+                  (repeat (count batch) :ok)))))
+
+(defn- run [server clients calls]
+  (let [gs (spawn server)
+        start (System/nanoTime)]
+    (join (spawn-fibers clients #(dotimes [i calls] (call! gs i))))
+    (let [secs (/ (- (System/nanoTime) start) 1e9)]
+      (shutdown! gs)
+      (long (/ (* clients calls) secs)))))
+
+(defn -main [clients1 calls1 latency-ms1]
+  (let [clients (Integer/parseInt clients1)
+        calls (Integer/parseInt calls1)
+        latency-ms (Integer/parseInt latency-ms1)]
+    (println "clients:" clients "calls per client:" calls "write latency:" latency-ms "ms")
+    (dotimes [i 5]
+      (println i ": gen-server       " (run (per-message-server (atom []) latency-ms) clients calls) "calls/sec")
+      (println i ": batch gen-server " (run (batch-server (atom []) latency-ms) clients calls) "calls/sec"))))
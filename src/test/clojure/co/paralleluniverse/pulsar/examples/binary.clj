@@ -15,8 +15,21 @@
            {:a a :b b} (println "Got unexpected buffer" buffer "a: " a "b: " b)
            :after 100 (println "timeout!")))
 
+;; With a binary-frame, fields are read from the buffer only as the patterns need them,
+;; and a skipped buffer isn't decoded again when the mailbox is rescanned
+(def bfr (binary-frame :a :int16, :b :float32))
+
+(defsfn lazy-receiver []
+  (receive [buffer (frame-view bfr)]
+           {:a 1 :b b} (println "Got buffer (a=1) b: " b)
+           {:a a :b b} (println "Got unexpected buffer" buffer "a: " a "b: " b)
+           :after 100 (println "timeout!")))
+
 (defn -main []
   (let [r (spawn receiver)
         buffer (encode fr {:a 1 :b 2.3})]
     (! r buffer)
+    (join r))
+  (let [r (spawn lazy-receiver)]
+    (! r (encode (frame-codec bfr) {:a 1 :b 2.3}))
     (join r)))
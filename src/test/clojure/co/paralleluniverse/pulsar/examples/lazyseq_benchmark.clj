@@ -0,0 +1,38 @@
+(ns co.paralleluniverse.pulsar.examples.lazyseq-benchmark
+  "Measures clojure.core's seq functions in plain threads, before and after loading the lazyseq namespace,
+  and, optionally, after globally instrumenting them the way the lazyseq namespace used to.
+  Also measures the suspendable seq functions over a channel in a fiber."
+  (:require [co.paralleluniverse.pulsar.core :as p]
+            [co.paralleluniverse.pulsar.lazyseq :as s]))
+
+(defn- core-pipeline [n]
+  (reduce + (take 1000 (filter even? (map inc (doall (range n)))))))
+
+(defn- measure [label n]
+  (dotimes [i 5]
+    (let [start (System/nanoTime)]
+      (dotimes [_ 100]
+        (core-pipeline n))
+      (println i ":" label (/ (- (System/nanoTime) start) 1e6) "ms"))))
+
+(defn- measure-fiber [n]
+  (dotimes [i 5]
+    (let [ch (p/channel 1024)
+          start (System/nanoTime)
+          f (p/spawn-fiber
+              (fn []
+                (s/reduce + (s/take-while #(< % n) (s/filter even? (s/map inc (s/channel->lazy-seq ch)))))))]
+      (p/snd-seq ch (range n))
+      (p/close! ch)
+      (p/join f)
+      (println i ": lazyseq over a channel, in a fiber" (/ (- (System/nanoTime) start) 1e6) "ms"))))
+
+(defn -main [n1 & [instrument-core]]
+  (let [n (Integer/parseInt n1)]
+    (measure "clojure.core seq functions in a thread" n)
+    (measure-fiber n)
+    (measure "clojure.core seq functions in a thread, after using lazyseq" n)
+    (when (= instrument-core "instrument-core")
+      (doseq [f [filter doall dorun take take-while drop map nthnext nthrest]]
+        (p/suspendable! f))
+      (measure "clojure.core seq functions in a thread, instrumented" n))))
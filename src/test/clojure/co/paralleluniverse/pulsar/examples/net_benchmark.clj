@@ -0,0 +1,82 @@
+(ns co.paralleluniverse.pulsar.examples.net-benchmark
+  "Compares a fiber-based echo server built with co.paralleluniverse.pulsar.net with a plain
+  thread-per-connection echo server, on loopback. Each client thread makes round trips of
+  a small message over its own connection."
+  (:use [co.paralleluniverse.pulsar core])
+  (:require [co.paralleluniverse.pulsar.net :as net])
+  (:refer-clojure :exclude [promise await])
+  (:import [java.net ServerSocket Socket InetSocketAddress]
+           [java.io DataInputStream DataOutputStream]
+           [java.util.concurrent CountDownLatch]))
+
+(def ^:private message-size 64)
+
+(defn- fiber-server []
+  (let [server (net/start-server 0
+                                 (fn [conn]
+                                   (loop []
+                                     (when-let [m (net/read! conn)]
+                                       (net/write! conn m)
+                                       (recur)))))]
+    {:port (net/server-port server)
+     :stop #(net/stop-server server)}))
+
+(defn- thread-server []
+  (let [ss (ServerSocket. 0 1024)]
+    (.start (Thread. (fn []
+                       (try
+                         (loop []
+                           (let [s (.accept ss)]
+                             (.start (Thread. (fn []
+                                                (with-open [s s]
+                                                  (let [in (.getInputStream s)
+                                                        out (.getOutputStream s)
+                                                        buf (byte-array 8192)]
+                                                    (loop []
+                                                      (let [n (.read in buf)]
+                                                        (when (pos? n)
+                                                          (.write out buf 0 n)
+                                                          (recur)))))))))
+                             (recur)))
+                         (catch java.io.IOException e
+                           nil)))))
+    {:port (.getLocalPort ss)
+     :stop #(.close ss)}))
+
+(defn- run [server clients round-trips]
+  (let [{:keys [port stop]} (server)
+        ready (CountDownLatch. clients)
+        go (CountDownLatch. 1)
+        done (CountDownLatch. clients)]
+    (dotimes [_ clients]
+      (.start (Thread. (fn []
+                         (with-open [s (Socket.)]
+                           (.setTcpNoDelay s true)
+                           (.connect s (InetSocketAddress. "localhost" (int port)))
+                           (let [in (DataInputStream. (.getInputStream s))
+                                 out (DataOutputStream. (.getOutputStream s))
+                                 msg (byte-array message-size)
+                                 buf (byte-array message-size)]
+                             (.countDown ready)
+                             (.await go)
+                             (dotimes [_ round-trips]
+                               (.write out msg)
+                               (.flush out)
+                               (.readFully in buf))))
+                         (.countDown done)))))
+    (.await ready)
+    (let [start (System/nanoTime)]
+      (.countDown go)
+      (.await done)
+      (let [secs (/ (- (System/nanoTime) start) 1e9)]
+        (stop)
+        (long (/ (* clients round-trips) secs))))))
+
+(defn -main [clients1 round-trips1]
+  (let [clients (Integer/parseInt clients1)
+        round-trips (Integer/parseInt round-trips1)]
+    (println "clients:" clients "round trips per client:" round-trips "message size:" message-size)
+    (dotimes [i 5]
+      (println i ": fiber server             " (run fiber-server clients round-trips) "round trips/sec")
+      (println i ": thread-per-connection    " (run thread-server clients round-trips) "round trips/sec"))
+    (println "pooled buffers:" (.getStats net/default-buffer-pool))))
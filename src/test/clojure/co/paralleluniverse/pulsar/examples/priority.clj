@@ -19,6 +19,21 @@
    [_ msg] (cons msg (normal))
    :after 0 ()))
 
+(defsfn all-messages []
+  (receive
+   [_ msg] (cons msg (all-messages))
+   :after 0 ()))
+
+;; The same, with a priority mailbox, which orders the messages as they arrive
+(defn prioritized []
+  (join (spawn :mailbox-type :priority :priority-key first
+               (fn []
+                 (! @self [15 :high])
+                 (! @self [7 :low])
+                 (! @self [1 :low])
+                 (! @self [17 :high])
+                 (println (all-messages))))))
+
 (defn -main []
   (join (spawn
          (fn []
@@ -26,4 +41,5 @@
            (! @self [7 :low])
            (! @self [1 :low])
            (! @self [17 :high])
-           (println (important))))))
+           (println (important)))))
+  (prioritized))
@@ -0,0 +1,34 @@
+(ns co.paralleluniverse.pulsar.examples.spawn-benchmark
+  "Measures spawn storms: many short-lived go blocks and fibers, with and without dynamic bindings in scope.
+  Without bindings no binding frame is captured or installed; with bindings the frame is cloned and conveyed, as it
+  used to be for every spawn."
+  (:require [co.paralleluniverse.pulsar.core :as p]
+            [co.paralleluniverse.pulsar.async :as a]))
+
+(def ^:dynamic *x* 0)
+
+(defn- spawn-go [n]
+  (let [done (a/chan n)]
+    (dotimes [_ n]
+      (a/go (a/>! done *x*)))
+    (dotimes [_ n]
+      (a/<!! done))))
+
+(defn- spawn-fibers [n]
+  (p/join (mapv (fn [_] (p/spawn-fiber (fn [] *x*))) (range n))))
+
+(defn- run [n f]
+  (let [start (System/nanoTime)]
+    (f n)
+    (/ (* n 1e9) (- (System/nanoTime) start))))
+
+(defn -main [n1]
+  (let [n (Integer/parseInt n1)]
+    (println "spawns:" n)
+    (dotimes [i 5]
+      (println i ": go     no bindings  " (long (run n spawn-go)) "spawns/sec")
+      (binding [*x* 1]
+        (println i ": go     with bindings" (long (run n spawn-go)) "spawns/sec"))
+      (println i ": fibers no bindings  " (long (run n spawn-fibers)) "spawns/sec")
+      (binding [*x* 1]
+        (println i ": fibers with bindings" (long (run n spawn-fibers)) "spawns/sec")))))
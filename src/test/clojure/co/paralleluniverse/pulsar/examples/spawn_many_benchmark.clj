@@ -0,0 +1,37 @@
+(ns co.paralleluniverse.pulsar.examples.spawn-many-benchmark
+  "Measures the startup time of many actors, spawned one by one with spawn and in bulk with spawn-many"
+  (:use [co.paralleluniverse.pulsar core actors])
+  (:refer-clojure :exclude [promise await]))
+
+(defsfn shard [id]
+  (receive
+    [:get from] (! from [id :ok])))
+
+(defn- stop-all [as]
+  (let [sink (spawn #(dotimes [_ (count as)] (receive)))]
+    (doseq [a as] (! a [:get sink]))
+    (doseq [a as] (join a))
+    (join sink)))
+
+(defn- spawn-loop [n]
+  (loop [i 0 as (transient [])]
+    (if (< i n)
+      (recur (inc i) (conj! as (spawn :mailbox-size 16 shard i)))
+      (persistent! as))))
+
+(defn- spawn-bulk [n]
+  (spawn-many :mailbox-size 16 (map vector (range n)) shard))
+
+(defn- run [n f]
+  (let [start (System/nanoTime)
+        as (f n)
+        ms (/ (- (System/nanoTime) start) 1e6)]
+    (stop-all as)
+    ms))
+
+(defn -main [n1]
+  (let [n (Integer/parseInt n1)]
+    (println "actors:" n)
+    (dotimes [i 5]
+      (println i ": spawn      " (run n spawn-loop) "ms")
+      (println i ": spawn-many " (run n spawn-bulk) "ms"))))
@@ -0,0 +1,34 @@
+(ns co.paralleluniverse.pulsar.examples.stack-size-benchmark
+  "Measures throughput and heap usage of a mix of shallow and deep fibers, with and without adaptive stack sizing.
+  Run with -Dco.paralleluniverse.pulsar.fiber.adaptiveStackSize=false for the non-adaptive baseline."
+  (:require [co.paralleluniverse.pulsar.core :as p :refer [defsfn]])
+  (:import [co.paralleluniverse.pulsar FiberStackSizes]))
+
+(defsfn deep [n]
+  (if (zero? n)
+    (do (p/sleep 1) 0)
+    (inc (deep (dec n)))))
+
+(defn- run [fibers depth]
+  (let [shallow #(deep 1)
+        deeper #(deep depth)
+        rt (Runtime/getRuntime)
+        _ (System/gc)
+        mem (- (.totalMemory rt) (.freeMemory rt))
+        start (System/nanoTime)
+        fs (mapv (fn [i] (if (zero? (mod i 10))
+                           (p/spawn-fiber deeper)
+                           (p/spawn-fiber shallow)))
+                 (range fibers))
+        mem1 (- (.totalMemory rt) (.freeMemory rt))]
+    (p/join fs)
+    [(/ (- (System/nanoTime) start) 1e6) (/ (- mem1 mem) 1048576.0)]))
+
+(defn -main [fibers1 depth1]
+  (let [fibers (Integer/parseInt fibers1)
+        depth (Integer/parseInt depth1)]
+    (println "fibers:" fibers "depth of every 10th fiber:" depth)
+    (dotimes [i 5]
+      (let [[ms mb] (run fibers depth)]
+        (println i ":" ms "ms;" mb "MB allocated while spawning")))
+    (println "learned stack sizes:" (into {} (FiberStackSizes/getStackSizes)))))
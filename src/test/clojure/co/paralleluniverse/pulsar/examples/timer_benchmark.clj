@@ -0,0 +1,35 @@
+(ns co.paralleluniverse.pulsar.examples.timer-benchmark
+  "Measures timer churn: many fibers each calling alts! with a fresh timeout channel in a loop"
+  (:require [co.paralleluniverse.pulsar.core :as p]
+            [co.paralleluniverse.pulsar.async :as a])
+  (:import [co.paralleluniverse.pulsar HashedWheelTimer]
+           [co.paralleluniverse.strands.channels TimeoutChannel]
+           [java.util.concurrent TimeUnit]))
+
+(defn- run [fibers iterations timeout-fn]
+  (let [requests (a/chan 1024)
+        start (System/nanoTime)
+        fs (doall
+             (for [_ (range fibers)]
+               (p/spawn-fiber
+                 (fn []
+                   (dotimes [_ iterations]
+                     (a/alts! [requests (timeout-fn 5)]))))))]
+    (p/join fs)
+    (/ (- (System/nanoTime) start) 1e6)))
+
+(defn -main [fibers1 iterations1]
+  (let [fibers (Integer/parseInt fibers1)
+        iterations (Integer/parseInt iterations1)
+        timer (HashedWheelTimer/getInstance)
+        quasar-timeout #(TimeoutChannel/timeout % TimeUnit/MILLISECONDS)]
+    (println "fibers:" fibers "iterations:" iterations)
+    (dotimes [i 5]
+      (let [ms (run fibers iterations quasar-timeout)]
+        (println i ": TimeoutChannel    " ms "ms"))
+      (let [scheduled (.getScheduledCount timer)
+            shared (.getSharedCount timer)
+            ms (run fibers iterations a/timeout)]
+        (println i ": hashed-wheel timer" ms "ms;"
+                 "timers scheduled:" (- (.getScheduledCount timer) scheduled)
+                 "shared:" (- (.getSharedCount timer) shared))))))
@@ -0,0 +1,84 @@
+; Pulsar: lightweight threads and Erlang-like actors for Clojure.
+; Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+;
+; This program and the accompanying materials are dual-licensed under
+; either the terms of the Eclipse Public License v1.0 as published by
+; the Eclipse Foundation
+;
+;   or (per the licensee's choosing)
+;
+; under the terms of the GNU Lesser General Public License version 3.0
+; as published by the Free Software Foundation.
+
+(ns co.paralleluniverse.pulsar.file-test
+  (:use midje.sweet
+        co.paralleluniverse.pulsar.core)
+  (:refer-clojure :exclude [promise await])
+  (:require [co.paralleluniverse.pulsar.file :as file]
+            [gloss.core :refer [compile-frame]]
+            [clojure.string :refer [split-lines]])
+  (:import [java.io File]
+           [java.nio ByteBuffer]))
+
+(def fr (compile-frame {:id :int32 :x :float64}))
+
+(defn- temp-file []
+  (doto (File/createTempFile "pulsar" ".dat")
+    (.deleteOnExit)))
+
+(defsfn drain [ch]
+  (loop [ms []]
+    (if-let [m (rcv ch)]
+      (recur (conj ms m))
+      ms)))
+
+(facts "file readers"
+       (fact "Lines are read across chunk boundaries"
+             (let [f (temp-file)]
+               (spit f "first\r\nsecond line\n\nlast")
+               [(join (fiber (drain (file/lines f :read-size 4))))
+                (join (fiber (drain (file/lines f :mmap true :region-size 5))))])
+             => [["first" "second line" "" "last"]
+                 ["first" "second line" "" "last"]])
+       (fact "Records are read as fixed-size buffers"
+             (let [f (temp-file)]
+               (spit f "aaaabbbbccccdd")
+               (map #(.remaining ^ByteBuffer %) (join (fiber (drain (file/records f 4 :read-size 10))))))
+             => [4 4 4])
+       (fact "Frames are decoded with a codec"
+             (let [f (temp-file)
+                   w (file/file-writer f :codec fr)]
+               (join (fiber
+                       (dotimes [i 100]
+                         (file/append! w {:id i :x 0.5}))
+                       (file/close-writer! w)))
+               (join (fiber (drain (file/frames f fr :read-size 100)))))
+             => (for [i (range 100)] {:id i :x 0.5})))
+
+(facts "file writers"
+       (fact "Concurrent appends are all written, and sync! waits for them"
+             (let [f (temp-file)
+                   w (file/file-writer f :append false :sync false)]
+               (doseq [fb (doall (for [i (range 10)]
+                                   (fiber
+                                     (dotimes [j 10]
+                                       (file/append! w (str i "-" j "\n")))
+                                     (file/sync! w))))]
+                 (join fb))
+               (count (split-lines (slurp f))))
+             => 100)
+       (fact "Appending adds to the end of the file"
+             (let [f (temp-file)]
+               (spit f "a\n")
+               (let [w (file/file-writer f)]
+                 (join (fiber
+                         (file/append! w "b\n")
+                         (file/append! w (.getBytes "c\n"))
+                         (file/close-writer! w))))
+               (slurp f))
+             => "a\nb\nc\n")
+       (fact "A closed writer can't be appended to or synced"
+             (let [w (file/file-writer (temp-file))]
+               (join (fiber (file/close-writer! w)))
+               (join (fiber (file/append! w "a\n"))) => (throws Exception #"closed")
+               (join (fiber (file/sync! w))) => (throws Exception #"closed"))))
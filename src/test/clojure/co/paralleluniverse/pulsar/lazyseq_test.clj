@@ -21,6 +21,24 @@
            [co.paralleluniverse.strands Strand]
            [co.paralleluniverse.fibers Fiber]))
 
+(fact "Map and filter a received sequence"
+      (let [ch (channel -1)
+            fiber (spawn-fiber
+                    #(s/doall (s/filter odd? (s/map inc (s/take 5 (channel->lazy-seq ch))))))]
+        (dotimes [m 10]
+          (sleep 20)
+          (snd ch m))
+        (join fiber)) => '(1 3 5))
+
+(fact "Reduce and partition a received sequence"
+      (let [ch (channel -1)
+            fiber (spawn-fiber
+                    #(vector (s/reduce + (s/take-while (partial > 5) (channel->lazy-seq ch)))
+                             (s/doall (s/partition 2 (s/drop 1 (channel->lazy-seq ch))))))]
+        (snd-seq ch (range 12))
+        (close! ch)
+        (join fiber)) => [10 '([7 8] [9 10])])
+
 
 ;(fact "Receive sequence with sleep"
 ;      (let [ch (channel -1)
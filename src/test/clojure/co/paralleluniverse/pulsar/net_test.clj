@@ -0,0 +1,99 @@
+; Pulsar: lightweight threads and Erlang-like actors for Clojure.
+; Copyright (C) 2013-2016, Parallel Universe Software Co. All rights reserved.
+;
+; This program and the accompanying materials are dual-licensed under
+; either the terms of the Eclipse Public License v1.0 as published by
+; the Eclipse Foundation
+;
+;   or (per the licensee's choosing)
+;
+; under the terms of the GNU Lesser General Public License version 3.0
+; as published by the Free Software Foundation.
+
+(ns co.paralleluniverse.pulsar.net-test
+  (:use midje.sweet
+        co.paralleluniverse.pulsar.core)
+  (:refer-clojure :exclude [promise await])
+  (:require [co.paralleluniverse.pulsar.net :as net]
+            [co.paralleluniverse.pulsar.actors :refer [receive]]
+            [gloss.core :refer [compile-frame]])
+  (:import [co.paralleluniverse.pulsar BufferPool]
+           [java.nio ByteBuffer]))
+
+(def fr (compile-frame {:id :int32 :x :float64}))
+
+(facts "buffer pool"
+       (fact "Buffers are pooled in power-of-two size classes"
+             (let [^BufferPool pool (buffer-pool :min-size 64 :max-size 1024 :max-idle 2)
+                   b1 (.acquire pool 100)]
+               [(.capacity b1) (.limit b1) (.isDirect b1)] => [128 100 true]
+               (.release pool b1)
+               (identical? b1 (.acquire pool 120)) => true
+               (.capacity (.acquire pool 4096)) => 4096
+               (:reused (.getStats pool)) => 1)))
+
+(facts "server"
+       (fact "A fiber handler reads and writes framed messages"
+             (let [server (net/start-server 0
+                                            (fn [conn]
+                                              (loop []
+                                                (when-let [m (net/read! conn)]
+                                                  (net/write! conn (update-in m [:x] * 2))
+                                                  (recur))))
+                                            :codec fr)
+                   res (fiber
+                         (let [conn (net/connect "localhost" (net/server-port server) :codec fr)]
+                           (dotimes [i 10]
+                             (net/write! conn {:id i :x 1.5}))
+                           (let [res (loop [res []]
+                                       (if (< (count res) 10)
+                                         (recur (conj res (net/read! conn)))
+                                         res))]
+                             (net/close-connection! conn)
+                             res)))]
+               (try
+                 (join res)
+                 (finally
+                   (net/stop-server server)))) => (for [i (range 10)] {:id i :x 3.0}))
+       (fact "Frames that straddle reads are decoded once complete"
+             (let [server (net/start-server 0
+                                            (fn [conn]
+                                              (loop []
+                                                (when-let [m (net/read! conn)]
+                                                  (net/write! conn m)
+                                                  (recur))))
+                                            :codec fr :read-buffer-size 5)
+                   res (fiber
+                         (let [conn (net/connect "localhost" (net/server-port server) :codec fr :read-buffer-size 7)]
+                           (dotimes [i 10]
+                             (net/write! conn {:id i :x 0.5}))
+                           (let [res (loop [res []]
+                                       (if (< (count res) 10)
+                                         (recur (conj res (net/read! conn)))
+                                         res))]
+                             (net/close-connection! conn)
+                             res)))]
+               (try
+                 (join res)
+                 (finally
+                   (net/stop-server server)))) => (for [i (range 10)] {:id i :x 0.5}))
+       (fact "An actor handler receives messages in its mailbox"
+             (let [server (net/start-server 0
+                                            (fn [conn]
+                                              (loop [n 0]
+                                                (if-let [m (receive
+                                                             [::net/closed _] nil
+                                                             m m)]
+                                                  (do (net/write! conn m)
+                                                      (recur (inc n)))
+                                                  (net/write! conn {:id n :x 0.0}))))
+                                            :mode :actor :codec fr :idle-timeout 200)
+                   res (fiber
+                         (let [conn (net/connect "localhost" (net/server-port server) :codec fr)]
+                           (net/write! conn {:id 7 :x 7.0})
+                           ; the server closes the connection once it's been idle
+                           [(net/read! conn) (net/read! conn) (net/read! conn)]))]
+               (try
+                 (join res)
+                 (finally
+                   (net/stop-server server)))) => [{:id 7 :x 7.0} {:id 1 :x 0.0} nil]))
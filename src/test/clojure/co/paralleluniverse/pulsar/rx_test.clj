@@ -15,7 +15,10 @@
         co.paralleluniverse.pulsar.core)
   (:refer-clojure :exclude [promise await])
   (:require [co.paralleluniverse.pulsar.rx :as rx]
-            [midje.checking.core :as checking]))
+            [midje.checking.core :as checking])
+  (:import [org.reactivestreams.tck TestEnvironment PublisherVerification SubscriberBlackboxVerification]
+           [java.lang.reflect InvocationTargetException Method]
+           [org.testng SkipException]))
 
 (facts "test map and filter"
        (fact "test filter"
@@ -280,4 +283,96 @@
         (sleep 20)
         (snd in 5)
         (close! in)
-        (join fiber))  => '(20 40 1234 nil))
\ No newline at end of file
+        (join fiber))  => '(20 40 1234 nil))
+(facts "test windowing operators"
+       (fact "test buffer-count"
+             (let [ch (channel 100)
+                   ch1 (rx/buffer-count 3 ch)]
+               (snd-seq ch (range 8))
+               (close! ch)
+               (list (rcv ch1) (rcv ch1) (rcv ch1) (rcv ch1))) => '([0 1 2] [3 4 5] [6 7] nil))
+       (fact "test buffer-count with skip"
+             (let [ch (channel 100)
+                   ch1 (rx/buffer-count 3 2 ch)]
+               (snd-seq ch (range 7))
+               (close! ch)
+               (list (rcv ch1) (rcv ch1) (rcv ch1) (rcv ch1) (rcv ch1))) => '([0 1 2] [2 3 4] [4 5 6] [6] nil))
+       (fact "test buffer-count with overlapping incomplete buffers"
+             (let [ch (channel 100)
+                   ch1 (rx/buffer-count 3 1 ch)]
+               (snd-seq ch (range 4))
+               (close! ch)
+               (list (rcv ch1) (rcv ch1) (rcv ch1) (rcv ch1) (rcv ch1))) => '([0 1 2] [1 2 3] [2 3] [3] nil))
+       (fact "test buffer-time"
+             (let [ch (channel 100)
+                   ch1 (rx/buffer-time 50 ch)]
+               (snd ch 1)
+               (snd ch 2)
+               (sleep 150)
+               (snd ch 3)
+               (close! ch)
+               (list (rcv ch1) (rcv ch1) (rcv ch1))) => '([1 2] [3] nil))
+       (fact "test debounce"
+             (let [ch (channel 100)
+                   ch1 (rx/debounce 50 ch)]
+               (snd ch 1)
+               (snd ch 2)
+               (sleep 150)
+               (snd ch 3)
+               (snd ch 4)
+               (close! ch)
+               (list (rcv ch1) (rcv ch1) (rcv ch1))) => '(2 4 nil))
+       (fact "test distinct-until-changed"
+             (let [ch (channel 100)
+                   ch1 (rx/distinct-until-changed ch)]
+               (snd-seq ch [1 1 2 2 2 1 3 3])
+               (close! ch)
+               (rcv-into [] ch1 10)) => [1 2 1 3]))
+
+(defn- range-channel [n]
+  (let [ch (channel 16)]
+    (spawn-fiber #(do (snd-seq ch (range n)) (close! ch)))
+    ch))
+
+(defn- run-tck
+  "Runs all the rule verifications in a Reactive Streams TCK verification object,
+  and returns the names of those that have failed."
+  [verification]
+  (for [^Method m (.getMethods (class verification))
+        :let [name (.getName m)]
+        :when (re-matches #"(required|optional|stochastic)_.*" name)
+        :when (try
+                (.invoke (.getMethod (class verification) "setUp" (make-array Class 0)) verification (object-array 0))
+                (.invoke m verification (object-array 0))
+                false
+                (catch InvocationTargetException e
+                  (not (instance? SkipException (.getCause e)))))]
+    name))
+
+(facts "test reactive streams"
+       (fact "test publisher to subscriber"
+             (let [out (channel 4)]
+               (.subscribe (rx/publisher (range-channel 100)) (rx/subscriber 8 out))
+               (rcv-into [] out 1000)) => (vec (range 100)))
+       (fact "test publisher closed with exception"
+             (let [ch (channel)
+                   out (channel)]
+               (close! ch (Exception. "foo"))
+               (.subscribe (rx/publisher ch) (rx/subscriber out))
+               (rcv out)) => (throws Exception))
+       (fact "publisher passes the TCK"
+             (doall (run-tck (proxy [PublisherVerification] [(TestEnvironment. 300) 1000]
+                               (createPublisher [n]
+                                 (rx/publisher (range-channel n)))
+                               (createFailedPublisher []
+                                 (rx/publisher (doto (channel) (close! (Exception. "failed")))))
+                               (maxElementsFromPublisher []
+                                 1024)))) => empty?)
+       (fact "subscriber passes the TCK"
+             (doall (run-tck (proxy [SubscriberBlackboxVerification] [(TestEnvironment. 300)]
+                               (createSubscriber []
+                                 (let [ch (channel 16)]
+                                   (spawn-fiber #(while (rcv ch)))
+                                   (rx/subscriber 4 ch)))
+                               (createElement [i]
+                                 i)))) => empty?))